@@ -0,0 +1,131 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Matches a batch of short CSS values against one shared recognizer.
+ *
+ * Compare the single-threaded score with the @Threads variants: matching a
+ * shared recognizer writes no shared state, apart from the occasional
+ * sampled call to an adaptive choice, so throughput should grow with the
+ * number of threads up to the number of cores.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchBenchmark {
+
+  private static final int BATCH_SIZE = 20000;
+
+  @Benchmark
+  @Threads(1)
+  public void sharedOneThread(BenchmarkState state, ThreadState local, Blackhole blackhole) {
+    blackhole.consume(state.matchSequential(local.ends));
+  }
+
+  @Benchmark
+  @Threads(2)
+  public void sharedTwoThreads(BenchmarkState state, ThreadState local, Blackhole blackhole) {
+    blackhole.consume(state.matchSequential(local.ends));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void sharedFourThreads(BenchmarkState state, ThreadState local, Blackhole blackhole) {
+    blackhole.consume(state.matchSequential(local.ends));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void sharedMaxThreads(BenchmarkState state, ThreadState local, Blackhole blackhole) {
+    blackhole.consume(state.matchSequential(local.ends));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void matchAll(BenchmarkState state, ThreadState local, Blackhole blackhole) {
+    Recognizers.matchAll(state.pattern, state.inputs, local.ends);
+    blackhole.consume(local.ends);
+  }
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkState {
+
+    final Recognizer pattern = sequence(
+        zeroOrOne(characters('-')),
+        digits(),
+        zeroOrOne(sequence(characters('.'), digits())),
+        zeroOrOne(choice(literals("px", "em", "rem", "vh", "vw", "pt"), characters('%'))));
+
+    final CharSequence[] inputs = inputs();
+
+    int[] matchSequential(int[] ends) {
+      for (int i = 0; i < inputs.length; i++) {
+        CharSequence input = inputs[i];
+        ends[i] = Recognizers.match(pattern, input, 0, input.length());
+      }
+      return ends;
+    }
+
+    private static CharSequence[] inputs() {
+      String[] units = new String[] { "px", "em", "rem", "%", "", "deg" };
+      Random random = new Random(1);
+      CharSequence[] result = new CharSequence[BATCH_SIZE];
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        String sign = random.nextInt(4) == 0 ? "-" : "";
+        String fraction = random.nextBoolean() ? "." + random.nextInt(100) : "";
+        result[i] = sign + random.nextInt(2000) + fraction + units[random.nextInt(units.length)];
+      }
+      return result;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+
+    final int[] ends = new int[BATCH_SIZE];
+
+  }
+
+}
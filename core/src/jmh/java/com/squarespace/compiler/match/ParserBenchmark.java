@@ -31,6 +31,7 @@ import static com.squarespace.compiler.parse.Atom.atom;
 import static com.squarespace.compiler.parse.Parser.matcher;
 import static com.squarespace.compiler.parse.Struct.struct;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
@@ -44,14 +45,24 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.infra.Blackhole;
 
+import com.squarespace.compiler.common.Converters;
 import com.squarespace.compiler.common.Maybe;
 import com.squarespace.compiler.match.Recognizers.Recognizer;
 import com.squarespace.compiler.parse.Node;
+import com.squarespace.compiler.parse.OffsetParser;
+import com.squarespace.compiler.parse.OperatorTable;
+import com.squarespace.compiler.parse.OperatorTable.Associativity;
 import com.squarespace.compiler.parse.Pair;
+import com.squarespace.compiler.parse.ParseState;
 import com.squarespace.compiler.parse.Parser;
+import com.squarespace.compiler.parse.Struct;
 
 /**
  * Measure the overhead of parsing versus simply recognizing a pattern.
+ *
+ * Run with "-prof gc" to compare the allocation per parse of the
+ * subsequence-slicing {@link Parser}, the {@link OffsetParser} through its
+ * Maybe adapter, and the OffsetParser writing into a reused ParseState.
  */
 @Fork(1)
 @Warmup(iterations = 3, time = 2)
@@ -62,16 +73,105 @@ public class ParserBenchmark {
 
   private static final String EXPRESSION = "n % 1000 != 350";
 
+  // Fails after every alternative at every level has been tried.
+  private static final String BACKTRACK = "12345c";
+
+  // Every step of a slicing parser copies what is left of this.
+  private static final String LIST = list(200);
+
+  private static final String CHAIN = chain(200);
+
   @Benchmark
   public void recognizer(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.match(EXPRESSION));
   }
 
+  @Benchmark
+  public void compiledRecognizer(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matchCompiled(EXPRESSION));
+  }
+
+  @Benchmark
+  public void optimizedRecognizer(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matchOptimized(EXPRESSION));
+  }
+
   @Benchmark
   public void parser(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.parse(EXPRESSION));
   }
 
+  @Benchmark
+  public void operatorParser(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOperators(EXPRESSION));
+  }
+
+  @Benchmark
+  public void offsetOperatorParser(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOffsetOperators(EXPRESSION));
+  }
+
+  @Benchmark
+  public void operatorParserChain(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOperators(CHAIN));
+  }
+
+  @Benchmark
+  public void offsetOperatorParserChain(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOffsetOperators(CHAIN));
+  }
+
+  @Benchmark
+  public void offsetParser(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOffset(EXPRESSION));
+  }
+
+  @Benchmark
+  public void stateParser(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseState(EXPRESSION));
+  }
+
+  @Benchmark
+  public void parserList(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseList(LIST));
+  }
+
+  @Benchmark
+  public void offsetParserList(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseOffsetList(LIST));
+  }
+
+  @Benchmark
+  public void stateParserList(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.parseStateList(LIST));
+  }
+
+  @Benchmark
+  public void backtracking(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.backtrack(state.backtracking(), BACKTRACK));
+  }
+
+  @Benchmark
+  public void backtrackingMemo(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.backtrack(state.backtrackingMemo(), BACKTRACK));
+  }
+
+  private static String list(int size) {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      buf.append(i == 0 ? "" : ", ").append(i * 7919 % 100000);
+    }
+    return buf.toString();
+  }
+
+  private static String chain(int size) {
+    StringBuilder buf = new StringBuilder("n");
+    for (int i = 1; i < size; i++) {
+      buf.append(" % ").append(i * 7919 % 1000 + 1);
+    }
+    return buf.append(" != 350").toString();
+  }
+
   @State(Scope.Benchmark)
   public static class BenchmarkState {
 
@@ -101,6 +201,10 @@ public class ParserBenchmark {
         M_SPACES,
         M_DIGITS);
 
+    private static final Recognizer M_EXPR_COMPILED = Recognizers.compile(M_EXPR);
+
+    private static final Recognizer M_EXPR_OPTIMIZED = Recognizers.optimize(M_EXPR);
+
     // Assemble the monadic expression parser
     private static Parser<CharSequence> P_SPACES =
         matcher(M_SPACES);
@@ -125,14 +229,153 @@ public class ParserBenchmark {
         P_OPERAND.flatMap(o -> P_MODOP.orDefault(null).flatMap(m -> P_RELOP.flatMap(op -> P_INTEGER
             .map(r -> m == null ? struct(EXPR, o, op, r) : struct(EXPR, o, m, op, r)))));
 
+    private static final Parser<List<Integer>> P_LIST =
+        matcher(M_DIGITS).prefix(P_SPACES).map(v -> toInteger(v))
+            .separated(matcher(characters(',')).prefix(P_SPACES));
+
+    // The expression as operators over operands, built by an operator table.
+    private static final Parser<Node<NodeType>> P_OPERATORS = new OperatorTable<NodeType>()
+        .infix(matcher(characters('%')).prefix(P_SPACES), NodeType.MODOP, 20, Associativity.LEFT)
+        .infix(matcher(M_RELOP).prefix(P_SPACES), RELOP, 10, Associativity.LEFT)
+        .parser(P_OPERAND.or(P_INTEGER));
+
+    // The same grammars over offsets.
+    private static final OffsetParser<CharSequence> O_SPACES =
+        OffsetParser.matcher(M_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> O_MODOP =
+        OffsetParser.matcher(characters('%')).prefix(O_SPACES).flatMap(o -> OffsetParser.matcher(M_DIGITS)
+            .prefix(O_SPACES).map(v -> atom(NodeType.MODOP, toInteger(v))));
+
+    private static final OffsetParser<Node<NodeType>> O_RELOP =
+        OffsetParser.matcher(M_RELOP).prefix(O_SPACES)
+            .map(v -> atom(RELOP, v));
+
+    private static final OffsetParser<Node<NodeType>> O_OPERAND =
+        OffsetParser.matcher(M_OPERAND).prefix(O_SPACES)
+            .map(v -> atom(NodeType.OPERAND, v));
+
+    private static final OffsetParser<Node<NodeType>> O_INTEGER =
+        OffsetParser.matcher(M_DIGITS).prefix(O_SPACES)
+            .map(v -> atom(INTEGER, toInteger(v)));
+
+    private static final OffsetParser<Node<NodeType>> O_EXPR =
+        O_OPERAND.flatMap(o -> O_MODOP.orDefault(null).flatMap(m -> O_RELOP.flatMap(op -> O_INTEGER
+            .map(r -> m == null ? struct(EXPR, o, op, r) : struct(EXPR, o, m, op, r)))));
+
+    private static final OffsetParser<List<Integer>> O_LIST =
+        OffsetParser.matcher(M_DIGITS).prefix(O_SPACES).map(v -> toInteger(v))
+            .separated(OffsetParser.matcher(characters(',')).prefix(O_SPACES));
+
+    // The same grammars written to allocate nothing but the nodes.
+    private static final OffsetParser<Void> S_SPACES =
+        OffsetParser.skip(M_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> S_MODOP =
+        OffsetParser.matcher(M_DIGITS, (s, start, end) -> atom(NodeType.MODOP, toInteger(s, start, end)))
+            .prefix(S_SPACES).prefix(OffsetParser.skip(characters('%'))).prefix(S_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> S_RELOP =
+        OffsetParser.matcher(M_RELOP, (s, start, end) -> atom(RELOP, s.subSequence(start, end)))
+            .prefix(S_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> S_OPERAND =
+        OffsetParser.matcher(M_OPERAND, (s, start, end) -> atom(NodeType.OPERAND, s.subSequence(start, end)))
+            .prefix(S_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> S_INTEGER =
+        OffsetParser.matcher(M_DIGITS, (s, start, end) -> atom(INTEGER, toInteger(s, start, end)))
+            .prefix(S_SPACES);
+
+    private static final OffsetParser<Node<NodeType>> S_EXPR =
+        S_OPERAND.map(o -> new Struct<>(EXPR, o))
+            .then(S_MODOP.orDefault(null), (e, m) -> e.addNotNull(m))
+            .then(S_RELOP, (e, op) -> e.addNotNull(op))
+            .then(S_INTEGER, (e, r) -> (Node<NodeType>) e.addNotNull(r));
+
+    private static final OffsetParser<Node<NodeType>> S_OPERATORS = new OperatorTable<NodeType>()
+        .infix(OffsetParser.skip(characters('%')).prefix(S_SPACES), NodeType.MODOP, 20, Associativity.LEFT)
+        .infix(OffsetParser.skip(M_RELOP).prefix(S_SPACES), RELOP, 10, Associativity.LEFT)
+        .offsetParser(S_OPERAND.or(S_INTEGER));
+
+    private static final OffsetParser<List<Integer>> S_LIST =
+        OffsetParser.matcher(M_DIGITS, Converters::toInteger).prefix(S_SPACES)
+            .separated(OffsetParser.skip(characters(',')).prefix(S_SPACES));
+
+    // Nested rules which each try three alternatives after the same prefix.
+    private final OffsetParser<Void> backtracking = nested(8, false);
+
+    private final OffsetParser<Void> backtrackingMemo = nested(8, true);
+
+    private final ParseState state = new ParseState();
+
+    private static OffsetParser<Void> nested(int depth, boolean memo) {
+      OffsetParser<Void> rule = OffsetParser.skip(M_DIGITS);
+      for (int i = 0; i < depth; i++) {
+        OffsetParser<Void> prefix = memo ? rule.memo() : rule;
+        rule = prefix.then(OffsetParser.skip(characters('x')), (a, b) -> b)
+            .or(prefix.then(OffsetParser.skip(characters('y')), (a, b) -> b))
+            .or(prefix.then(OffsetParser.skip(characters('z')), (a, b) -> b));
+      }
+      return rule;
+    }
+
+    public OffsetParser<Void> backtracking() {
+      return backtracking;
+    }
+
+    public OffsetParser<Void> backtrackingMemo() {
+      return backtrackingMemo;
+    }
+
+    public boolean backtrack(OffsetParser<Void> parser, String source) {
+      return parser.parse(state.reset(source, 0));
+    }
+
     public int match(String source) {
       return M_EXPR.match(source, 0, source.length());
     }
 
+    public int matchCompiled(String source) {
+      return M_EXPR_COMPILED.match(source, 0, source.length());
+    }
+
+    public int matchOptimized(String source) {
+      return M_EXPR_OPTIMIZED.match(source, 0, source.length());
+    }
+
     public Maybe<Pair<Node<NodeType>, CharSequence>> parse(String source) {
       return P_EXPR.parse(source);
     }
 
+    public Maybe<Pair<Node<NodeType>, CharSequence>> parseOperators(String source) {
+      return P_OPERATORS.parse(source);
+    }
+
+    public Node<NodeType> parseOffsetOperators(String source) {
+      return S_OPERATORS.parse(state.reset(source, 0)) ? state.value() : null;
+    }
+
+    public Maybe<Pair<Node<NodeType>, Integer>> parseOffset(String source) {
+      return O_EXPR.parse(source);
+    }
+
+    public Node<NodeType> parseState(String source) {
+      return S_EXPR.parse(state.reset(source, 0)) ? state.value() : null;
+    }
+
+    public List<Integer> parseStateList(String source) {
+      return S_LIST.parse(state.reset(source, 0)) ? state.value() : null;
+    }
+
+    public Maybe<Pair<List<Integer>, CharSequence>> parseList(String source) {
+      return P_LIST.parse(source);
+    }
+
+    public Maybe<Pair<List<Integer>, Integer>> parseOffsetList(String source) {
+      return O_LIST.parse(source);
+    }
+
   }
 
 //  public static void main(String[] args) {
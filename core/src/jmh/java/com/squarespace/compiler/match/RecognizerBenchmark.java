@@ -17,12 +17,25 @@
 package com.squarespace.compiler.match;
 
 import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.decimal;
 import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.finder;
+import static com.squarespace.compiler.match.Recognizers.group;
 import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.literalsIgnoreCase;
+import static com.squarespace.compiler.match.Recognizers.nfa;
+import static com.squarespace.compiler.match.Recognizers.notCharacters;
 import static com.squarespace.compiler.match.Recognizers.oneOrMore;
 import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
 import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,7 +51,9 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.infra.Blackhole;
 
+import com.squarespace.compiler.match.Recognizers.NumberRecognizer;
 import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Utf8Recognizer;
 
 
 @Fork(1)
@@ -56,6 +71,27 @@ public class RecognizerBenchmark {
 
   private static final String PERCENT_FAIL = "___123123123.123123123_";
 
+  // Exponential for a backtracking matcher: 2^n ways to split the run of a's.
+  private static final String PATHOLOGICAL = "aaaaaaaaaaaaaaaaaaaa!";
+
+  private static final String[] KEYWORDS = new String[] {
+    "alternates", "bind-var", "ctx", "else", "end", "eval", "if", "include", "inject", "macro",
+    "meta-left", "meta-right", "newline", "or", "pluralize", "predicate", "repeated", "section",
+    "space", "tab", "var", "cm", "mm", "in", "px", "pt", "pc", "em", "ex", "ch", "rem", "vw", "vh",
+    "vmin", "vmax",
+  };
+
+  private static final String KEYWORD_OK = "___vmax";
+
+  // Matched by the last alternative of the skewed choice.
+  private static final String SKEWED = "12.5em";
+
+  private static final String NUMBER_OK = "___1234.5678";
+
+  private static final String KEYWORD_FAIL = "___section-";
+
+  private static final String KEYWORD_IGNORE_CASE = "___VMax";
+
   @Benchmark
   public void regexLiteralOk(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.matches(state.benchLiteral().regex, LITERAL_OK, 3));
@@ -66,6 +102,11 @@ public class RecognizerBenchmark {
     blackhole.consume(state.matches(state.benchLiteral().recognizer, LITERAL_OK, 3));
   }
 
+  @Benchmark
+  public void generatedLiteralOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchLiteral().generated, LITERAL_OK, 3));
+  }
+
   @Benchmark
   public void regexLiteralFail(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.matches(state.benchLiteral().regex, LITERAL_FAIL, 3));
@@ -76,6 +117,11 @@ public class RecognizerBenchmark {
     blackhole.consume(state.matches(state.benchLiteral().recognizer, LITERAL_FAIL, 3));
   }
 
+  @Benchmark
+  public void generatedLiteralFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchLiteral().generated, LITERAL_FAIL, 3));
+  }
+
   @Benchmark
   public void regexPercentOk(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.matches(state.benchPercent().regex, PERCENT_OK, 3));
@@ -86,6 +132,31 @@ public class RecognizerBenchmark {
     blackhole.consume(state.matches(state.benchPercent().recognizer, PERCENT_OK, 3));
   }
 
+  @Benchmark
+  public void generatedPercentOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().generated, PERCENT_OK, 3));
+  }
+
+  @Benchmark
+  public void recognizerPercentOkCharSequence(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().recognizer, (CharSequence) PERCENT_OK, 3));
+  }
+
+  @Benchmark
+  public void recognizerPercentOkCharArray(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().recognizer, state.percentChars(), 3));
+  }
+
+  @Benchmark
+  public void profiledPercentOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.percentProfiled(), PERCENT_OK, 3));
+  }
+
+  @Benchmark
+  public void nfaPercentOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().nfa, PERCENT_OK, 3));
+  }
+
   @Benchmark
   public void regexPercentFail(BenchmarkState state, Blackhole blackhole) {
     blackhole.consume(state.matches(state.benchPercent().regex, PERCENT_FAIL, 3));
@@ -96,16 +167,239 @@ public class RecognizerBenchmark {
     blackhole.consume(state.matches(state.benchPercent().recognizer, PERCENT_FAIL, 3));
   }
 
+  @Benchmark
+  public void generatedPercentFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().generated, PERCENT_FAIL, 3));
+  }
+
+  @Benchmark
+  public void nfaPercentFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPercent().nfa, PERCENT_FAIL, 3));
+  }
+
+  @Benchmark
+  public void regexPathological(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPathological().regex, PATHOLOGICAL, 0));
+  }
+
+  @Benchmark
+  public void nfaPathological(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchPathological().nfa, PATHOLOGICAL, 0));
+  }
+
+  @Benchmark
+  public void regexKeywordOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchKeyword().regex, KEYWORD_OK, 3));
+  }
+
+  @Benchmark
+  public void recognizerKeywordOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchKeyword().recognizer, KEYWORD_OK, 3));
+  }
+
+  @Benchmark
+  public void literalsKeywordOk(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.keywordLiterals(), KEYWORD_OK, 3));
+  }
+
+  @Benchmark
+  public void regexKeywordFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchKeyword().regex, KEYWORD_FAIL, 3));
+  }
+
+  @Benchmark
+  public void recognizerKeywordFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.benchKeyword().recognizer, KEYWORD_FAIL, 3));
+  }
+
+  @Benchmark
+  public void literalsKeywordFail(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.keywordLiterals(), KEYWORD_FAIL, 3));
+  }
+
+  @Benchmark
+  public void regexKeywordIgnoreCase(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.keywordRegexIgnoreCase(), KEYWORD_IGNORE_CASE, 3));
+  }
+
+  @Benchmark
+  public void literalsKeywordIgnoreCase(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.keywordLiteralsIgnoreCase(), KEYWORD_IGNORE_CASE, 3));
+  }
+
+  @Benchmark
+  public void regexGroups(BenchmarkState state, Blackhole blackhole) {
+    Matcher matcher = state.percentGroupsRegex().reset(PERCENT_OK).region(3, PERCENT_OK.length());
+    if (matcher.lookingAt()) {
+      blackhole.consume(matcher.group(1));
+      blackhole.consume(matcher.group(2));
+    }
+  }
+
+  @Benchmark
+  public void regexGroupOffsets(BenchmarkState state, Blackhole blackhole) {
+    Matcher matcher = state.percentGroupsRegex().reset(PERCENT_OK).region(3, PERCENT_OK.length());
+    if (matcher.lookingAt()) {
+      blackhole.consume(matcher.start(1) + matcher.end(1) + matcher.start(2) + matcher.end(2));
+    }
+  }
+
+  @Benchmark
+  public void recognizerGroups(BenchmarkState state, Blackhole blackhole) {
+    int[] groups = state.groups();
+    if (state.percentGroups().match(PERCENT_OK, 3, PERCENT_OK.length(), groups) != Recognizers.FAIL) {
+      blackhole.consume(groups[0] + groups[1] + groups[2] + groups[3]);
+    }
+  }
+
+  @Benchmark
+  public void regexSearch(BenchmarkState state, Blackhole blackhole) {
+    Matcher matcher = state.instructionRegex().reset(state.source());
+    int count = 0;
+    while (matcher.find()) {
+      count++;
+    }
+    blackhole.consume(count);
+  }
+
+  @Benchmark
+  public void recognizerSearch(BenchmarkState state, Blackhole blackhole) {
+    // Try the recognizer at every position.
+    String source = state.source();
+    Recognizer recognizer = state.instruction();
+    int length = source.length();
+    int count = 0;
+    int pos = 0;
+    while (pos < length) {
+      int end = recognizer.match(source, pos, length);
+      if (end == Recognizers.FAIL) {
+        pos++;
+      } else {
+        count++;
+        pos = end;
+      }
+    }
+    blackhole.consume(count);
+  }
+
+  @Benchmark
+  public void finderSearch(BenchmarkState state, Blackhole blackhole) {
+    String source = state.source();
+    Finder finder = state.instructionFinder().reset(source, 0, source.length());
+    int count = 0;
+    while (finder.find()) {
+      count++;
+    }
+    blackhole.consume(count);
+  }
+
+  @Benchmark
+  public void choiceSkewed(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.skewedChoice(), SKEWED, 0));
+  }
+
+  @Benchmark
+  public void adaptiveChoiceSkewed(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.matches(state.skewedAdaptive(), SKEWED, 0));
+  }
+
+  @Benchmark
+  public void numberParse(BenchmarkState state, Blackhole blackhole) {
+    int end = state.decimal().match(NUMBER_OK, 3, NUMBER_OK.length());
+    blackhole.consume(Double.parseDouble(NUMBER_OK.substring(3, end)));
+  }
+
+  @Benchmark
+  public void numberFused(BenchmarkState state, Blackhole blackhole) {
+    NumberValue value = state.numberValue();
+    state.number().match(NUMBER_OK, 3, NUMBER_OK.length(), value);
+    blackhole.consume(value.doubleValue());
+  }
+
+  @Benchmark
+  public void utf8Decoded(BenchmarkState state, Blackhole blackhole) {
+    byte[] bytes = state.percentBytes();
+    String str = new String(bytes, StandardCharsets.UTF_8);
+    blackhole.consume(state.benchPercent().recognizer.match(str, 3, str.length()));
+  }
+
+  @Benchmark
+  public void utf8Bytes(BenchmarkState state, Blackhole blackhole) {
+    byte[] bytes = state.percentBytes();
+    blackhole.consume(state.percentUtf8().match(bytes, 3, bytes.length));
+  }
+
+  @Benchmark
+  public void tablesCompile(BenchmarkState state, Blackhole blackhole) {
+    for (String pattern : state.tablePatterns().values()) {
+      blackhole.consume(Recognizers.compile(Recognizers.fromRegex(pattern)));
+    }
+  }
+
+  @Benchmark
+  public void tablesLoad(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(RecognizerTables.load(state.tables()));
+  }
+
   @State(Scope.Benchmark)
   public static class BenchmarkState {
 
-    private final BenchCase benchLiteral = benchCase(
-        "(?:foobar)+",
-        oneOrMore(literal("foobar")));
+    private final BenchCase benchLiteral = new BenchCase("(?:foobar)+");
+
+    private final BenchCase benchPercent = new BenchCase("(?:\\d+\\.\\d+|\\d+)%");
+
+    private final BenchCase benchKeyword = new BenchCase("(?:" + String.join("|", KEYWORDS) + ")");
+
+    private final BenchCase benchPathological = new BenchCase("(?:a+)+b");
+
+    private final Recognizer keywordLiterals = literals(KEYWORDS);
+
+    private final Matcher keywordRegexIgnoreCase = Pattern.compile(
+        "(?:" + String.join("|", KEYWORDS) + ")", Pattern.CASE_INSENSITIVE).matcher("");
+
+    private final Recognizer keywordLiteralsIgnoreCase = literalsIgnoreCase(KEYWORDS);
+
+    private final Matcher percentGroupsRegex = Pattern.compile("(\\d+)(?:\\.(\\d+))?%").matcher("");
+
+    private final Recognizer percentGroups = sequence(
+        group(0, digits()), zeroOrOne(sequence(characters('.'), group(1, digits()))), characters('%'));
+
+    private final int[] groups = new int[4];
+
+    private final char[] percentChars = PERCENT_OK.toCharArray();
 
-    private final BenchCase benchPercent = benchCase(
-        "(?:\\d+\\.\\d+|\\d+)%",
-        sequence(digits(), zeroOrOne(sequence(characters('.'), digits())), characters('%')));
+    private final Recognizer percentProfiled = profiledPercent();
+
+    private final String source = templateSource(1 << 20);
+
+    private final Recognizer instruction = sequence(
+        literal("{."), oneOrMore(word()), zeroOrMore(notCharacters('}')), characters('}'));
+
+    private final Matcher instructionRegex = Pattern.compile("\\{\\.\\w+[^}]*\\}").matcher("");
+
+    private final Finder instructionFinder = finder(instruction);
+
+    private final Recognizer[] skewedAlternatives = new Recognizer[] {
+        literals(KEYWORDS), sequence(digits(), literal("%")), sequence(decimal(), literals("px", "em", "rem")),
+    };
+
+    private final Recognizer skewedChoice = Recognizers.choice(skewedAlternatives);
+
+    private final Recognizer skewedAdaptive = Recognizers.adaptiveChoice(skewedAlternatives);
+
+    private final byte[] percentBytes = PERCENT_OK.getBytes(StandardCharsets.UTF_8);
+
+    private final Utf8Recognizer percentUtf8 = Recognizers.utf8(benchPercent.recognizer);
+
+    private final Recognizer decimal = Recognizers.decimal();
+
+    private final NumberRecognizer number = Recognizers.number();
+
+    private final NumberValue numberValue = new NumberValue();
+
+    private final Map<String, String> tablePatterns = cssPatterns();
+
+    private final ByteBuffer tables = tables(tablePatterns);
 
     public BenchCase benchLiteral() {
       return benchLiteral;
@@ -115,6 +409,98 @@ public class RecognizerBenchmark {
       return benchPercent;
     }
 
+    public BenchCase benchKeyword() {
+      return benchKeyword;
+    }
+
+    public BenchCase benchPathological() {
+      return benchPathological;
+    }
+
+    public Recognizer keywordLiterals() {
+      return keywordLiterals;
+    }
+
+    public Matcher keywordRegexIgnoreCase() {
+      return keywordRegexIgnoreCase;
+    }
+
+    public Recognizer keywordLiteralsIgnoreCase() {
+      return keywordLiteralsIgnoreCase;
+    }
+
+    public Matcher percentGroupsRegex() {
+      return percentGroupsRegex;
+    }
+
+    public Recognizer percentGroups() {
+      return percentGroups;
+    }
+
+    public int[] groups() {
+      return groups;
+    }
+
+    public char[] percentChars() {
+      return percentChars;
+    }
+
+    public Recognizer percentProfiled() {
+      return percentProfiled;
+    }
+
+    public String source() {
+      return source;
+    }
+
+    public Recognizer instruction() {
+      return instruction;
+    }
+
+    public Matcher instructionRegex() {
+      return instructionRegex;
+    }
+
+    public Finder instructionFinder() {
+      return instructionFinder;
+    }
+
+    public Recognizer skewedChoice() {
+      return skewedChoice;
+    }
+
+    public Recognizer skewedAdaptive() {
+      return skewedAdaptive;
+    }
+
+    public byte[] percentBytes() {
+      return percentBytes;
+    }
+
+    public Utf8Recognizer percentUtf8() {
+      return percentUtf8;
+    }
+
+    public Recognizer decimal() {
+      return decimal;
+    }
+
+    public NumberRecognizer number() {
+      return number;
+    }
+
+    public NumberValue numberValue() {
+      return numberValue;
+    }
+
+    public Map<String, String> tablePatterns() {
+      return tablePatterns;
+    }
+
+    public ByteBuffer tables() {
+      return tables;
+    }
+
     public boolean matches(Matcher matcher, String str, int pos) {
       return matcher.reset(str).region(pos, str.length()).lookingAt();
     }
@@ -124,21 +510,81 @@ public class RecognizerBenchmark {
       return recognizer.match(str, pos, len) == len;
     }
 
-    private BenchCase benchCase(String pattern, Recognizer recognizer) {
-      return new BenchCase(pattern, recognizer);
+    public boolean matches(Recognizer recognizer, CharSequence seq, int pos) {
+      int len = seq.length();
+      return recognizer.match(seq, pos, len) == len;
+    }
+
+    public boolean matches(Recognizer recognizer, char[] buf, int pos) {
+      return recognizer.match(buf, pos, buf.length) == buf.length;
+    }
+
+    /**
+     * Markup with a template instruction every few hundred characters.
+     */
+    private static String templateSource(int size) {
+      StringBuilder buf = new StringBuilder(size);
+      while (buf.length() < size) {
+        buf.append("<div class=\"item\"><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, ");
+        buf.append("sed do eiusmod tempor incididunt ut labore et dolore {magna} aliqua.</p>\n");
+        buf.append("<p>Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut ");
+        buf.append("aliquip ex ea commodo consequat.</p></div>\n{.section item}{title}{.end}\n");
+      }
+      return buf.toString();
+    }
+
+    private static Map<String, String> cssPatterns() {
+      Map<String, String> result = new LinkedHashMap<>();
+      result.put("literal", "(?:foobar)+");
+      result.put("percent", "(?:\\d+\\.\\d+|\\d+)%");
+      result.put("keyword", "(?:" + String.join("|", KEYWORDS) + ")");
+      result.put("length", "-?(?:\\d+(?:\\.\\d*)?|\\.\\d+)(?:px|em|rem|%|vh|vw|pt)?");
+      result.put("identifier", "-?[a-zA-Z_][\\w-]*");
+      return result;
+    }
+
+    private static ByteBuffer tables(Map<String, String> patterns) {
+      Map<String, Recognizer> recognizers = new LinkedHashMap<>();
+      for (Map.Entry<String, String> entry : patterns.entrySet()) {
+        recognizers.put(entry.getKey(), Recognizers.fromRegex(entry.getValue()));
+      }
+      return ByteBuffer.wrap(RecognizerTables.encode(recognizers));
+    }
+
+    private static Recognizer profiledPercent() {
+      RecognizerProfiles.setEnabled(true);
+      try {
+        return Recognizers.profiled("percent",
+            sequence(digits(), zeroOrOne(sequence(characters('.'), digits())), characters('%')));
+      } finally {
+        RecognizerProfiles.setEnabled(false);
+      }
     }
 
   }
 
+  /**
+   * A regex and the recognizer parsed from the same pattern string. They
+   * describe the same language, but only find the same match where no choice
+   * has a shorter alternative the regex would take first. fromRegex already
+   * runs patterns which need backtracking, such as the pathological one, as
+   * an NFA, so those are not wrapped a second time.
+   */
   public static class BenchCase {
 
     public final Matcher regex;
 
     public final Recognizer recognizer;
 
-    public BenchCase(String pattern, Recognizer recognizer) {
+    public final Recognizer generated;
+
+    public final Recognizer nfa;
+
+    public BenchCase(String pattern) {
       this.regex = Pattern.compile(pattern).matcher("");
-      this.recognizer = recognizer;
+      this.recognizer = Recognizers.fromRegex(pattern);
+      this.generated = Recognizers.generate(recognizer);
+      this.nfa = recognizer instanceof PikeVm ? recognizer : nfa(recognizer);
     }
   }
 
@@ -0,0 +1,120 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.squarespace.compiler.common.Converters;
+import com.squarespace.compiler.common.StringView;
+import com.squarespace.compiler.parse.OffsetParser;
+import com.squarespace.compiler.parse.ParseState;
+import com.squarespace.compiler.parse.Parser;
+
+
+/**
+ * Parses comma-separated lists of integers of increasing length. The time
+ * per element should stay flat as the lists grow.
+ *
+ * The Parser runs over a {@link StringView}, whose subsequences are views,
+ * so the cost measured is the repetition itself rather than copying the
+ * rest of the input at each step.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RepetitionBenchmark {
+
+  @Benchmark
+  public void parserSeparated(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.list.parse(state.view));
+  }
+
+  @Benchmark
+  public void parserOneOrMore(BenchmarkState state, Blackhole blackhole) {
+    blackhole.consume(state.items.parse(state.view));
+  }
+
+  @Benchmark
+  public void offsetParserSeparated(BenchmarkState state, Blackhole blackhole) {
+    ParseState parse = state.state.reset(state.input, 0);
+    blackhole.consume(state.offsetList.parse(parse) ? parse.value() : null);
+  }
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkState {
+
+    private static final Parser<CharSequence> SPACES = Parser.matcher(zeroOrMore(whitespace()));
+
+    private static final Parser<CharSequence> COMMA = Parser.matcher(characters(',')).prefix(SPACES);
+
+    private static final OffsetParser<Void> O_SPACES = OffsetParser.skip(zeroOrMore(whitespace()));
+
+    @Param({ "10", "1000", "100000" })
+    int size;
+
+    final Parser<List<Integer>> list = Parser.matcher(digits()).prefix(SPACES)
+        .map(Converters::toInteger)
+        .separated(COMMA);
+
+    final Parser<List<Integer>> items = Parser.matcher(digits()).prefix(SPACES)
+        .map(Converters::toInteger)
+        .suffix(COMMA.orDefault(""))
+        .oneOrMore();
+
+    final OffsetParser<List<Integer>> offsetList = OffsetParser.matcher(digits(), Converters::toInteger)
+        .prefix(O_SPACES)
+        .separated(OffsetParser.skip(characters(',')).prefix(O_SPACES));
+
+    final ParseState state = new ParseState();
+
+    String input;
+
+    CharSequence view;
+
+    @Setup
+    public void setup() {
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < size; i++) {
+        buf.append(i == 0 ? "" : ", ").append(i * 7919 % 100000);
+      }
+      input = buf.toString();
+      view = new StringView(input);
+    }
+  }
+
+}
@@ -22,10 +22,16 @@ public class Converters {
    * Quick string to integer conversion.
    */
   public static int toInteger(CharSequence seq) {
-    int len = seq.length();
+    return toInteger(seq, 0, seq.length());
+  }
+
+  /**
+   * Quick conversion of the characters between start and end to an integer.
+   */
+  public static int toInteger(CharSequence seq, int start, int end) {
     int n = 0;
-    int i = 0;
-    while (i < len) {
+    int i = start;
+    while (i < end) {
       char c = seq.charAt(i);
       if (c >= '0' && c <= '9') {
         n *= 10;
@@ -0,0 +1,91 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Matches one recognizer at the start of each of a list of inputs, splitting
+ * large batches in halves across a fork/join pool.
+ *
+ * Recognizers are immutable, so every task shares the one instance. Each task
+ * writes a disjoint range of the result array, and the pool's join makes the
+ * writes visible to the caller.
+ */
+final class BatchMatch extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  // Batches at or below this size are matched on the calling thread.
+  static final int THRESHOLD = 512;
+
+  private final Recognizer pattern;
+
+  private final List<? extends CharSequence> inputs;
+
+  private final int[] ends;
+
+  private final int from;
+
+  private final int to;
+
+  private BatchMatch(Recognizer pattern, List<? extends CharSequence> inputs, int[] ends, int from, int to) {
+    this.pattern = pattern;
+    this.inputs = inputs;
+    this.ends = ends;
+    this.from = from;
+    this.to = to;
+  }
+
+  static void match(Recognizer pattern, List<? extends CharSequence> inputs, int[] ends, ForkJoinPool pool) {
+    int size = inputs.size();
+    if (ends.length < size) {
+      throw new IllegalArgumentException("result array holds " + ends.length + " ends for " + size + " inputs");
+    }
+    if (size <= THRESHOLD) {
+      matchRange(pattern, inputs, ends, 0, size);
+    } else {
+      pool.invoke(new BatchMatch(pattern, inputs, ends, 0, size));
+    }
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from <= THRESHOLD) {
+      matchRange(pattern, inputs, ends, from, to);
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    invokeAll(
+        new BatchMatch(pattern, inputs, ends, from, mid),
+        new BatchMatch(pattern, inputs, ends, mid, to));
+  }
+
+  private static void matchRange(Recognizer pattern, List<? extends CharSequence> inputs, int[] ends,
+      int from, int to) {
+    for (int i = from; i < to; i++) {
+      CharSequence input = inputs.get(i);
+      ends[i] = Recognizers.match(pattern, input, 0, input.length());
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.util.BitSet;
+
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.text.CharClassifier;
+import com.squarespace.compiler.text.DefaultCharClassifier;
+
+
+/**
+ * Builds a recognizer matching a single character from an arbitrary set,
+ * formed from unions and differences of characters, ranges and classes.
+ *
+ * Operations are applied in order, so a later add() can put back characters
+ * an earlier remove() took out.
+ */
+public class CharSetBuilder {
+
+  private static final int CHARS = 0x10000;
+
+  private static final CharClassifier CLASSIFIER = new DefaultCharClassifier();
+
+  private final BitSet set = new BitSet(CHARS);
+
+  CharSetBuilder() {
+  }
+
+  public CharSetBuilder add(char first, char... chars) {
+    return update(true, first, chars);
+  }
+
+  public CharSetBuilder addRange(char start, char end) {
+    return updateRange(true, start, end);
+  }
+
+  /**
+   * Adds the members of the given {@link DefaultCharClassifier} classes.
+   */
+  public CharSetBuilder addClass(int bitmask) {
+    return updateClass(true, bitmask, CLASSIFIER);
+  }
+
+  public CharSetBuilder addClass(int bitmask, CharClassifier classifier) {
+    return updateClass(true, bitmask, classifier);
+  }
+
+  public CharSetBuilder addWhitespace() {
+    return updateWhitespace(true);
+  }
+
+  public CharSetBuilder remove(char first, char... chars) {
+    return update(false, first, chars);
+  }
+
+  public CharSetBuilder removeRange(char start, char end) {
+    return updateRange(false, start, end);
+  }
+
+  /**
+   * Removes the members of the given {@link DefaultCharClassifier} classes.
+   */
+  public CharSetBuilder removeClass(int bitmask) {
+    return updateClass(false, bitmask, CLASSIFIER);
+  }
+
+  public CharSetBuilder removeClass(int bitmask, CharClassifier classifier) {
+    return updateClass(false, bitmask, classifier);
+  }
+
+  public CharSetBuilder removeWhitespace() {
+    return updateWhitespace(false);
+  }
+
+  /**
+   * Replaces the set with its complement.
+   */
+  public CharSetBuilder invert() {
+    set.flip(0, CHARS);
+    return this;
+  }
+
+  public Recognizer build() {
+    return new CharSet(set);
+  }
+
+  private CharSetBuilder update(boolean value, char first, char... chars) {
+    set.set(first, value);
+    for (char ch : chars) {
+      set.set(ch, value);
+    }
+    return this;
+  }
+
+  private CharSetBuilder updateRange(boolean value, char start, char end) {
+    if (start <= end) {
+      set.set(start, end + 1, value);
+    }
+    return this;
+  }
+
+  private CharSetBuilder updateClass(boolean value, int bitmask, CharClassifier classifier) {
+    for (int ch = 0; ch < CHARS; ch++) {
+      if (classifier.isMember((char) ch, bitmask)) {
+        set.set(ch, value);
+      }
+    }
+    return this;
+  }
+
+  private CharSetBuilder updateWhitespace(boolean value) {
+    for (int ch = 0; ch < CHARS; ch++) {
+      if (DefaultCharClassifier.whitespace((char) ch)) {
+        set.set(ch, value);
+      }
+    }
+    return this;
+  }
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Recognizer backed by a flat DFA transition table. Built by {@link DfaCompiler}.
+ *
+ * Characters are first mapped to an equivalence class, so the table only needs
+ * one column per class. ASCII characters use a direct lookup, the rest of the
+ * BMP is covered by a sorted list of runs.
+ *
+ * The table can hold several segments which are matched one after the other.
+ * Each segment takes the longest match it can, and when it can go no further
+ * the next segment starts from that position. This mirrors the way a
+ * {@link Recognizers.Sequence} hands the end of one child to the next.
+ */
+final class Dfa implements Recognizer {
+
+  static final int DEAD = -1;
+
+  static final int ASCII_LIMIT = 0x80;
+
+  final int classes;
+
+  final int[] asciiClasses;
+
+  final char[] runStarts;
+
+  final int[] runClasses;
+
+  final int[] transitions;
+
+  final boolean[] accept;
+
+  final int[] follow;
+
+  Dfa(int classes, int[] asciiClasses, char[] runStarts, int[] runClasses,
+      int[] transitions, boolean[] accept, int[] follow) {
+    this.classes = classes;
+    this.asciiClasses = asciiClasses;
+    this.runStarts = runStarts;
+    this.runClasses = runClasses;
+    this.transitions = transitions;
+    this.accept = accept;
+    this.follow = follow;
+  }
+
+  @Override
+  public int match(CharSequence seq, int pos, int length) {
+    int state = 0;
+    int last = accept[0] ? pos : FAIL;
+    while (true) {
+      int next = DEAD;
+      if (pos < length) {
+        char ch = seq.charAt(pos);
+        int cls = ch < ASCII_LIMIT ? asciiClasses[ch] : classOf(ch);
+        next = transitions[state * classes + cls];
+      }
+      if (next != DEAD) {
+        state = next;
+        pos++;
+        if (accept[state]) {
+          last = pos;
+        }
+        continue;
+      }
+
+      // Current segment is done. Either fail, finish, or resume the next
+      // segment from the last accepting position.
+      int resume = follow[state];
+      if (last == FAIL || resume == DEAD) {
+        return last;
+      }
+      pos = last;
+      state = resume;
+      last = accept[state] ? pos : FAIL;
+    }
+  }
+
+  @Override
+  public int match(String str, int pos, int length) {
+    int state = 0;
+    int last = accept[0] ? pos : FAIL;
+    while (true) {
+      int next = DEAD;
+      if (pos < length) {
+        char ch = str.charAt(pos);
+        int cls = ch < ASCII_LIMIT ? asciiClasses[ch] : classOf(ch);
+        next = transitions[state * classes + cls];
+      }
+      if (next != DEAD) {
+        state = next;
+        pos++;
+        if (accept[state]) {
+          last = pos;
+        }
+        continue;
+      }
+
+      // Current segment is done. Either fail, finish, or resume the next
+      // segment from the last accepting position.
+      int resume = follow[state];
+      if (last == FAIL || resume == DEAD) {
+        return last;
+      }
+      pos = last;
+      state = resume;
+      last = accept[state] ? pos : FAIL;
+    }
+  }
+
+  @Override
+  public int match(char[] buf, int pos, int length) {
+    int state = 0;
+    int last = accept[0] ? pos : FAIL;
+    while (true) {
+      int next = DEAD;
+      if (pos < length) {
+        char ch = buf[pos];
+        int cls = ch < ASCII_LIMIT ? asciiClasses[ch] : classOf(ch);
+        next = transitions[state * classes + cls];
+      }
+      if (next != DEAD) {
+        state = next;
+        pos++;
+        if (accept[state]) {
+          last = pos;
+        }
+        continue;
+      }
+
+      // Current segment is done. Either fail, finish, or resume the next
+      // segment from the last accepting position.
+      int resume = follow[state];
+      if (last == FAIL || resume == DEAD) {
+        return last;
+      }
+      pos = last;
+      state = resume;
+      last = accept[state] ? pos : FAIL;
+    }
+  }
+
+  /**
+   * Number of states in the table.
+   */
+  int states() {
+    return accept.length;
+  }
+
+  /**
+   * Maps a non-ASCII character to its equivalence class.
+   */
+  int classOf(char ch) {
+    int lo = 0;
+    int hi = runStarts.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (runStarts[mid] <= ch) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return runClasses[lo];
+  }
+
+}
@@ -0,0 +1,963 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.ASCII_LIMIT;
+import static com.squarespace.compiler.match.Dfa.DEAD;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.squarespace.compiler.match.Recognizers.AdaptiveChoice;
+import com.squarespace.compiler.match.Recognizers.Any;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharacterClass;
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Decimal;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Whitespace;
+import com.squarespace.compiler.text.DefaultCharClassifier;
+
+
+/**
+ * Compiles recognizer trees into {@link Dfa} tables.
+ *
+ * Recognizers match greedily and never backtrack, while a DFA finds the
+ * longest prefix of the input in the pattern's language. The two agree for a
+ * subtree when every child agrees and no child can stop early in a way that
+ * lets the rest of the pattern go further. We call such subtrees "exact":
+ *
+ *  - single character recognizers, literals and decimal are exact
+ *  - a choice of exact alternatives is exact
+ *  - a sequence of exact children is exact when the characters which can
+ *    extend the match so far never begin the next child
+ *  - a repetition of an exact, non-empty child is exact under the same
+ *    condition applied to the child against itself
+ *
+ * Exact subtrees become DFA tables. Runs of exact children in a sequence
+ * become segments of one table. Everything else is rebuilt around its
+ * compiled children.
+ */
+final class DfaCompiler {
+
+  private static final int CHARS = 0x10000;
+
+  private static final int MAX_NFA_STATES = 16384;
+
+  private static final int MAX_DFA_STATES = 4096;
+
+  private static final BitSet DIGITS = range('0', '9');
+
+  private static final BitSet DECIMAL_FIRST = range('.', '.');
+
+  static {
+    DECIMAL_FIRST.or(DIGITS);
+  }
+
+  private final Map<Recognizer, Info> infos = new IdentityHashMap<>();
+
+  private final Map<Recognizer, BitSet> leaves = new IdentityHashMap<>();
+
+  private DfaCompiler() {
+  }
+
+  static Recognizer compile(Recognizer pattern) {
+    return new DfaCompiler().rewrite(pattern);
+  }
+
+  /**
+   * Indicates whether the pattern is exact, matching the longest prefix of
+   * the input in its language without needing to backtrack.
+   */
+  static boolean exact(Recognizer pattern) {
+    return new DfaCompiler().info(pattern).exact;
+  }
+
+  /**
+   * Replaces exact subtrees with DFAs.
+   */
+  private Recognizer rewrite(Recognizer pattern) {
+    if (pattern instanceof Dfa) {
+      return pattern;
+    }
+    if (info(pattern).exact) {
+      Dfa dfa = build(Collections.singletonList(Collections.singletonList(pattern)));
+      if (dfa != null) {
+        return dfa;
+      }
+    }
+
+    if (pattern instanceof Sequence) {
+      return rewriteSequence((Sequence) pattern);
+    }
+    if (pattern instanceof Choice) {
+      Recognizer[] patterns = ((Choice) pattern).patterns;
+      Recognizer[] result = new Recognizer[patterns.length];
+      for (int i = 0; i < patterns.length; i++) {
+        result[i] = rewrite(patterns[i]);
+      }
+      return pattern instanceof AdaptiveChoice ? new AdaptiveChoice(result) : new Choice(result);
+    }
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      return new Cardinality(rewrite(card.pattern), card.start, card.limit);
+    }
+    if (pattern instanceof LookAhead) {
+      return new LookAhead(rewrite(((LookAhead) pattern).pattern));
+    }
+    if (pattern instanceof Group) {
+      return new Group(((Group) pattern).index, rewrite(((Group) pattern).pattern));
+    }
+    if (pattern instanceof Profiled) {
+      return new Profiled(((Profiled) pattern).name, rewrite(((Profiled) pattern).pattern));
+    }
+    return pattern;
+  }
+
+  /**
+   * Groups the children of a sequence into runs of exact children and builds
+   * one table holding a segment per run.
+   */
+  private Recognizer rewriteSequence(Sequence sequence) {
+    Recognizer[] patterns = sequence.patterns;
+    if (patterns.length == 0) {
+      return sequence;
+    }
+
+    List<Recognizer> result = new ArrayList<>();
+    List<List<Recognizer>> runs = new ArrayList<>();
+    List<Recognizer> run = null;
+    Info runInfo = null;
+    for (Recognizer pattern : patterns) {
+      Info info = info(pattern);
+      if (!info.exact) {
+        flush(runs, result);
+        run = null;
+        result.add(rewrite(pattern));
+        continue;
+      }
+      if (run != null && !runInfo.ext.intersects(info.first)) {
+        run.add(pattern);
+        runInfo = concat(runInfo, info);
+      } else {
+        run = new ArrayList<>();
+        run.add(pattern);
+        runs.add(run);
+        runInfo = info;
+      }
+    }
+    flush(runs, result);
+
+    return result.size() == 1 ? result.get(0) : new Sequence(result.toArray(new Recognizer[result.size()]));
+  }
+
+  /**
+   * Builds the pending runs into a single table, falling back to one table per
+   * run, and then to rewriting each child, if the table grows too large.
+   */
+  private void flush(List<List<Recognizer>> runs, List<Recognizer> result) {
+    if (runs.isEmpty()) {
+      return;
+    }
+    Dfa dfa = build(runs);
+    if (dfa != null) {
+      result.add(dfa);
+    } else {
+      for (List<Recognizer> run : runs) {
+        dfa = runs.size() > 1 ? build(Collections.singletonList(run)) : null;
+        if (dfa != null) {
+          result.add(dfa);
+        } else {
+          for (Recognizer pattern : run) {
+            result.add(rewrite(pattern));
+          }
+        }
+      }
+    }
+    runs.clear();
+  }
+
+  // ANALYSIS
+
+  /**
+   * Properties of a subtree used to decide whether it is exact.
+   */
+  private static class Info {
+
+    static final Info IRREGULAR = new Info(false, false, new BitSet(), new BitSet());
+
+    final boolean exact;
+
+    final boolean nullable;
+
+    // Characters which can begin a non-empty match.
+    final BitSet first;
+
+    // Characters which can follow an accepted prefix and still lead to a longer match.
+    final BitSet ext;
+
+    Info(boolean exact, boolean nullable, BitSet first, BitSet ext) {
+      this.exact = exact;
+      this.nullable = nullable;
+      this.first = first;
+      this.ext = ext;
+    }
+  }
+
+  private Info info(Recognizer pattern) {
+    Info info = infos.get(pattern);
+    if (info == null) {
+      info = analyze(pattern);
+      infos.put(pattern, info);
+    }
+    return info;
+  }
+
+  private Info analyze(Recognizer pattern) {
+    BitSet chars = leaf(pattern);
+    if (chars != null) {
+      return chars.isEmpty() ? Info.IRREGULAR : new Info(true, false, chars, new BitSet());
+    }
+
+    if (pattern instanceof Literal) {
+      String literal = ((Literal) pattern).literal;
+      BitSet first = new BitSet();
+      if (!literal.isEmpty()) {
+        first.set(literal.charAt(0));
+      }
+      return new Info(true, literal.isEmpty(), first, new BitSet());
+    }
+
+    if (pattern instanceof Decimal) {
+      return new Info(true, false, DECIMAL_FIRST, DECIMAL_FIRST);
+    }
+
+    if (pattern instanceof Sequence) {
+      Recognizer[] patterns = ((Sequence) pattern).patterns;
+      if (patterns.length == 0) {
+        return Info.IRREGULAR;
+      }
+      Info result = info(patterns[0]);
+      for (int i = 1; i < patterns.length; i++) {
+        Info next = info(patterns[i]);
+        if (!result.exact || !next.exact || result.ext.intersects(next.first)) {
+          return Info.IRREGULAR;
+        }
+        result = concat(result, next);
+      }
+      return result;
+    }
+
+    if (pattern instanceof Choice) {
+      Recognizer[] patterns = ((Choice) pattern).patterns;
+      if (patterns.length == 0) {
+        return Info.IRREGULAR;
+      }
+      boolean nullable = false;
+      BitSet first = new BitSet();
+      for (Recognizer child : patterns) {
+        Info info = info(child);
+        if (!info.exact) {
+          return Info.IRREGULAR;
+        }
+        nullable |= info.nullable;
+        first.or(info.first);
+      }
+
+      // Extension characters may cross from one alternative to another, so
+      // read them off the choice's own table.
+      Dfa dfa = build(Collections.singletonList(Collections.singletonList(pattern)));
+      return dfa == null ? Info.IRREGULAR : new Info(true, nullable, first, extension(dfa));
+    }
+
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      Info info = info(card.pattern);
+      if (!info.exact || info.nullable || (card.limit > 0 && card.start > card.limit)) {
+        return Info.IRREGULAR;
+      }
+      boolean repeats = card.limit != 1;
+      if (repeats && info.ext.intersects(info.first)) {
+        return Info.IRREGULAR;
+      }
+      BitSet ext = (BitSet) info.ext.clone();
+      if (card.limit == 0 || card.start < card.limit) {
+        ext.or(info.first);
+      }
+      return new Info(true, card.start == 0, info.first, ext);
+    }
+
+    return Info.IRREGULAR;
+  }
+
+  /**
+   * Properties of two exact patterns matched one after the other.
+   */
+  private static Info concat(Info left, Info right) {
+    BitSet first = (BitSet) left.first.clone();
+    if (left.nullable) {
+      first.or(right.first);
+    }
+    BitSet ext = (BitSet) right.ext.clone();
+    if (right.nullable) {
+      ext.or(left.ext);
+      ext.or(right.first);
+    }
+    return new Info(true, left.nullable && right.nullable, first, ext);
+  }
+
+  /**
+   * Characters which lead out of an accepting state of a single-segment table.
+   */
+  private static BitSet extension(Dfa dfa) {
+    BitSet classes = new BitSet();
+    for (int state = 0; state < dfa.states(); state++) {
+      if (dfa.accept[state]) {
+        for (int cls = 0; cls < dfa.classes; cls++) {
+          if (dfa.transitions[state * dfa.classes + cls] != DEAD) {
+            classes.set(cls);
+          }
+        }
+      }
+    }
+    BitSet result = new BitSet();
+    for (int ch = 0; ch < CHARS; ch++) {
+      int cls = ch < ASCII_LIMIT ? dfa.asciiClasses[ch] : dfa.classOf((char) ch);
+      if (classes.get(cls)) {
+        result.set(ch);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Cached {@link #members(Recognizer)}.
+   */
+  private BitSet leaf(Recognizer pattern) {
+    BitSet result = leaves.get(pattern);
+    if (result == null && !leaves.containsKey(pattern)) {
+      result = members(pattern);
+      leaves.put(pattern, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the set of characters matched by a single-character recognizer,
+   * or null if the pattern is not one.
+   */
+  static BitSet members(Recognizer pattern) {
+    BitSet result = null;
+    if (pattern instanceof Any) {
+      result = range(0, CHARS - 1);
+
+    } else if (pattern instanceof Characters) {
+      Characters chars = (Characters) pattern;
+      result = new BitSet(CHARS);
+      result.set(chars.first);
+      for (char ch : chars.chars) {
+        result.set(ch);
+      }
+      if (chars.invert) {
+        result.flip(0, CHARS);
+      }
+
+    } else if (pattern instanceof CharacterClass) {
+      CharacterClass cls = (CharacterClass) pattern;
+      result = new BitSet(CHARS);
+      for (int ch = 0; ch < CHARS; ch++) {
+        if (cls.classifier.isMember((char) ch, cls.bitmask) != cls.invert) {
+          result.set(ch);
+        }
+      }
+
+    } else if (pattern instanceof CharSet) {
+      result = ((CharSet) pattern).toBitSet();
+
+    } else if (pattern instanceof CharacterRange) {
+      CharacterRange range = (CharacterRange) pattern;
+      result = new BitSet(CHARS);
+      if (range.start <= range.end) {
+        result.set(range.start, range.end + 1);
+      }
+      if (range.invert) {
+        result.flip(0, CHARS);
+      }
+
+    } else if (pattern instanceof Whitespace) {
+      result = new BitSet(CHARS);
+      for (int ch = 0; ch < CHARS; ch++) {
+        if (DefaultCharClassifier.whitespace((char) ch)) {
+          result.set(ch);
+        }
+      }
+      if (((Whitespace) pattern).invert) {
+        result.flip(0, CHARS);
+      }
+    }
+
+    return result;
+  }
+
+  private static BitSet range(int start, int end) {
+    BitSet result = new BitSet(CHARS);
+    result.set(start, end + 1);
+    return result;
+  }
+
+  // CONSTRUCTION
+
+  /**
+   * Builds a table with one segment per run, where each run is a list of
+   * exact patterns to match in order. Returns null if the table would be
+   * too large.
+   */
+  private Dfa build(List<List<Recognizer>> runs) {
+    // Partition the character space into classes which no pattern can tell apart.
+    List<BitSet> sets = new ArrayList<>();
+    for (List<Recognizer> run : runs) {
+      for (Recognizer pattern : run) {
+        collect(pattern, sets);
+      }
+    }
+    int[] classOf = new int[CHARS];
+    int classes = partition(sets, classOf);
+
+    Nfa nfa = new Nfa(classOf);
+    List<int[]> fragments = new ArrayList<>();
+    for (List<Recognizer> run : runs) {
+      int[] frag = null;
+      for (Recognizer pattern : run) {
+        int[] next = nfa.build(pattern);
+        frag = frag == null ? next : nfa.concat(frag, next);
+      }
+      if (nfa.size() > MAX_NFA_STATES) {
+        return null;
+      }
+      fragments.add(frag);
+    }
+
+    // Convert each segment by subset construction, appending to the shared table.
+    List<int[]> rows = new ArrayList<>();
+    List<Boolean> accepts = new ArrayList<>();
+    int[] segmentOf = new int[MAX_DFA_STATES];
+    int[] starts = new int[fragments.size()];
+    for (int segment = 0; segment < fragments.size(); segment++) {
+      int[] frag = fragments.get(segment);
+      starts[segment] = rows.size();
+      if (!nfa.determinize(frag[0], frag[1], classes, rows, accepts)) {
+        return null;
+      }
+      for (int state = starts[segment]; state < rows.size(); state++) {
+        segmentOf[state] = segment;
+      }
+    }
+
+    int states = rows.size();
+    int[] transitions = new int[states * classes];
+    boolean[] accept = new boolean[states];
+    int[] follow = new int[states];
+    for (int state = 0; state < states; state++) {
+      System.arraycopy(rows.get(state), 0, transitions, state * classes, classes);
+      accept[state] = accepts.get(state);
+      int segment = segmentOf[state];
+      follow[state] = segment + 1 < starts.length ? starts[segment + 1] : DEAD;
+    }
+
+    prune(transitions, accept, classes, starts);
+    return minimize(classOf, classes, transitions, accept, follow);
+  }
+
+  /**
+   * Adds the character sets a pattern tests against.
+   */
+  private void collect(Recognizer pattern, List<BitSet> sets) {
+    BitSet chars = leaf(pattern);
+    if (chars != null) {
+      sets.add(chars);
+
+    } else if (pattern instanceof Literal) {
+      String literal = ((Literal) pattern).literal;
+      for (int i = 0; i < literal.length(); i++) {
+        sets.add(range(literal.charAt(i), literal.charAt(i)));
+      }
+
+    } else if (pattern instanceof Decimal) {
+      sets.add(DIGITS);
+      sets.add(range('.', '.'));
+
+    } else if (pattern instanceof Sequence) {
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        collect(child, sets);
+      }
+
+    } else if (pattern instanceof Choice) {
+      for (Recognizer child : ((Choice) pattern).patterns) {
+        collect(child, sets);
+      }
+
+    } else if (pattern instanceof Cardinality) {
+      collect(((Cardinality) pattern).pattern, sets);
+    }
+  }
+
+  /**
+   * Refines the character space by each set in turn, numbering the resulting
+   * classes in order of first appearance. Returns the number of classes.
+   */
+  private static int partition(List<BitSet> sets, int[] classOf) {
+    int classes = 1;
+    int[] inside = new int[CHARS];
+    int[] outside = new int[CHARS];
+    for (BitSet set : sets) {
+      Arrays.fill(inside, 0, classes, -1);
+      Arrays.fill(outside, 0, classes, -1);
+      int next = 0;
+      for (int ch = 0; ch < CHARS; ch++) {
+        int[] map = set.get(ch) ? inside : outside;
+        int old = classOf[ch];
+        if (map[old] == -1) {
+          map[old] = next++;
+        }
+        classOf[ch] = map[old];
+      }
+      classes = next;
+    }
+    return classes;
+  }
+
+  /**
+   * Marks states from which no accepting state can be reached as dead, so a
+   * segment stops as soon as a match is no longer possible.
+   */
+  private static void prune(int[] transitions, boolean[] accept, int classes, int[] starts) {
+    int states = accept.length;
+    boolean[] live = accept.clone();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int state = 0; state < states; state++) {
+        if (live[state]) {
+          continue;
+        }
+        for (int cls = 0; cls < classes; cls++) {
+          int next = transitions[state * classes + cls];
+          if (next != DEAD && live[next]) {
+            live[state] = true;
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+    for (int i = 0; i < transitions.length; i++) {
+      int next = transitions[i];
+      if (next != DEAD && !live[next]) {
+        transitions[i] = DEAD;
+      }
+    }
+  }
+
+  /**
+   * Merges equivalent states using Moore's partition refinement, drops
+   * unreachable states and packs the class map into the final form.
+   */
+  private static Dfa minimize(int[] classOf, int classes, int[] transitions, boolean[] accept, int[] follow) {
+    int states = accept.length;
+
+    // Initial blocks: states agreeing on acceptance and on which segment follows.
+    int[] block = new int[states];
+    int blocks = number(states, state -> Arrays.asList(accept[state], follow[state]), block);
+    while (true) {
+      int[] current = block.clone();
+      int[] refined = new int[states];
+      int count = number(states, state -> {
+        List<Object> key = new ArrayList<>(classes + 1);
+        key.add(current[state]);
+        for (int cls = 0; cls < classes; cls++) {
+          int next = transitions[state * classes + cls];
+          key.add(next == DEAD ? DEAD : current[next]);
+        }
+        return key;
+      }, refined);
+      block = refined;
+      if (count == blocks) {
+        break;
+      }
+      blocks = count;
+    }
+
+    // Renumber blocks in breadth-first order from the first state, keeping
+    // each segment start reachable through the follow links.
+    int[] order = new int[blocks];
+    Arrays.fill(order, -1);
+    int[] representative = new int[blocks];
+    Deque<Integer> queue = new ArrayDeque<>();
+    int count = 0;
+    order[block[0]] = count++;
+    representative[block[0]] = 0;
+    queue.add(0);
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      int[] targets = new int[classes + 1];
+      for (int cls = 0; cls < classes; cls++) {
+        targets[cls] = transitions[state * classes + cls];
+      }
+      targets[classes] = follow[state];
+      for (int next : targets) {
+        if (next != DEAD && order[block[next]] == -1) {
+          order[block[next]] = count++;
+          representative[block[next]] = next;
+          queue.add(next);
+        }
+      }
+    }
+
+    int[] table = new int[count * classes];
+    boolean[] accepting = new boolean[count];
+    int[] resume = new int[count];
+    for (int b = 0; b < blocks; b++) {
+      int id = order[b];
+      if (id == -1) {
+        continue;
+      }
+      int state = representative[b];
+      for (int cls = 0; cls < classes; cls++) {
+        int next = transitions[state * classes + cls];
+        table[id * classes + cls] = next == DEAD ? DEAD : order[block[next]];
+      }
+      accepting[id] = accept[state];
+      resume[id] = follow[state] == DEAD ? DEAD : order[block[follow[state]]];
+    }
+
+    int[] ascii = Arrays.copyOf(classOf, ASCII_LIMIT);
+    int runs = 1;
+    for (int ch = ASCII_LIMIT + 1; ch < CHARS; ch++) {
+      if (classOf[ch] != classOf[ch - 1]) {
+        runs++;
+      }
+    }
+    char[] runStarts = new char[runs];
+    int[] runClasses = new int[runs];
+    runStarts[0] = (char) ASCII_LIMIT;
+    runClasses[0] = classOf[ASCII_LIMIT];
+    int run = 1;
+    for (int ch = ASCII_LIMIT + 1; ch < CHARS; ch++) {
+      if (classOf[ch] != classOf[ch - 1]) {
+        runStarts[run] = (char) ch;
+        runClasses[run] = classOf[ch];
+        run++;
+      }
+    }
+    return new Dfa(classes, ascii, runStarts, runClasses, table, accepting, resume);
+  }
+
+  private interface Key {
+    Object of(int state);
+  }
+
+  /**
+   * Assigns each state the number of its key, returning how many distinct keys exist.
+   */
+  private static int number(int states, Key key, int[] result) {
+    Map<Object, Integer> ids = new HashMap<>();
+    for (int state = 0; state < states; state++) {
+      Object k = key.of(state);
+      Integer id = ids.get(k);
+      if (id == null) {
+        id = ids.size();
+        ids.put(k, id);
+      }
+      result[state] = id;
+    }
+    return ids.size();
+  }
+
+  /**
+   * Thompson NFA over character classes. Each state has either a single
+   * character edge or up to two epsilon edges.
+   */
+  private final class Nfa {
+
+    private final int[] classOf;
+
+    private final Map<BitSet, BitSet> labels = new HashMap<>();
+
+    private int size;
+
+    private int[] target = new int[64];
+
+    private BitSet[] label = new BitSet[64];
+
+    private int[] eps1 = new int[64];
+
+    private int[] eps2 = new int[64];
+
+    Nfa(int[] classOf) {
+      this.classOf = classOf;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] build(Recognizer pattern) {
+      if (size > MAX_NFA_STATES) {
+        // Stop expanding, the caller will give up on this table.
+        int s = state();
+        return new int[] { s, s };
+      }
+
+      BitSet chars = leaf(pattern);
+      if (chars != null) {
+        return chars(chars);
+      }
+
+      if (pattern instanceof Literal) {
+        String literal = ((Literal) pattern).literal;
+        int start = state();
+        int end = start;
+        for (int i = 0; i < literal.length(); i++) {
+          int next = state();
+          edge(end, classes(range(literal.charAt(i), literal.charAt(i))), next);
+          end = next;
+        }
+        return new int[] { start, end };
+      }
+
+      if (pattern instanceof Decimal) {
+        // \d+\.?\d*|\.\d+
+        int[] integral = concat(chars(DIGITS), star(chars(DIGITS)));
+        integral = concat(concat(integral, optional(chars(range('.', '.')))), star(chars(DIGITS)));
+        int[] fraction = concat(concat(chars(range('.', '.')), chars(DIGITS)), star(chars(DIGITS)));
+        return alternate(integral, fraction);
+      }
+
+      if (pattern instanceof Sequence) {
+        int[] result = null;
+        for (Recognizer child : ((Sequence) pattern).patterns) {
+          int[] next = build(child);
+          result = result == null ? next : concat(result, next);
+        }
+        return result;
+      }
+
+      if (pattern instanceof Choice) {
+        int[] result = null;
+        for (Recognizer child : ((Choice) pattern).patterns) {
+          int[] next = build(child);
+          result = result == null ? next : alternate(result, next);
+        }
+        return result;
+      }
+
+      Cardinality card = (Cardinality) pattern;
+      int s = state();
+      int[] result = new int[] { s, s };
+      for (int i = 0; i < card.start; i++) {
+        result = concat(result, build(card.pattern));
+      }
+      if (card.limit == 0) {
+        result = concat(result, star(build(card.pattern)));
+      } else {
+        for (int i = card.start; i < card.limit; i++) {
+          result = concat(result, optional(build(card.pattern)));
+        }
+      }
+      return result;
+    }
+
+    int[] concat(int[] left, int[] right) {
+      epsilon(left[1], right[0]);
+      return new int[] { left[0], right[1] };
+    }
+
+    /**
+     * Runs subset construction from the given start state, appending the new
+     * rows to the table. Returns false if the table grows too large.
+     */
+    boolean determinize(int start, int accept, int classes, List<int[]> rows, List<Boolean> accepts) {
+      int base = rows.size();
+      Map<BitSet, Integer> ids = new HashMap<>();
+      List<BitSet> pending = new ArrayList<>();
+      BitSet initial = closure(single(start));
+      ids.put(initial, base);
+      pending.add(initial);
+      rows.add(null);
+      accepts.add(initial.get(accept));
+
+      for (int i = 0; i < pending.size(); i++) {
+        BitSet current = pending.get(i);
+        BitSet[] moves = new BitSet[classes];
+        for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+          if (target[s] == -1) {
+            continue;
+          }
+          BitSet cls = label[s];
+          for (int c = cls.nextSetBit(0); c >= 0; c = cls.nextSetBit(c + 1)) {
+            if (moves[c] == null) {
+              moves[c] = new BitSet(size);
+            }
+            moves[c].set(target[s]);
+          }
+        }
+
+        int[] row = new int[classes];
+        for (int c = 0; c < classes; c++) {
+          if (moves[c] == null) {
+            row[c] = DEAD;
+            continue;
+          }
+          BitSet next = closure(moves[c]);
+          Integer id = ids.get(next);
+          if (id == null) {
+            id = rows.size();
+            if (id >= MAX_DFA_STATES) {
+              return false;
+            }
+            ids.put(next, id);
+            pending.add(next);
+            rows.add(null);
+            accepts.add(next.get(accept));
+          }
+          row[c] = id;
+        }
+        rows.set(base + i, row);
+      }
+      return true;
+    }
+
+    private BitSet closure(BitSet states) {
+      BitSet result = (BitSet) states.clone();
+      Deque<Integer> stack = new ArrayDeque<>();
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        stack.push(s);
+      }
+      while (!stack.isEmpty()) {
+        int s = stack.pop();
+        for (int next : new int[] { eps1[s], eps2[s] }) {
+          if (next != -1 && !result.get(next)) {
+            result.set(next);
+            stack.push(next);
+          }
+        }
+      }
+      return result;
+    }
+
+    private BitSet single(int state) {
+      BitSet result = new BitSet(size);
+      result.set(state);
+      return result;
+    }
+
+    private int[] chars(BitSet chars) {
+      int start = state();
+      int end = state();
+      edge(start, classes(chars), end);
+      return new int[] { start, end };
+    }
+
+    private int[] alternate(int[] left, int[] right) {
+      int start = state();
+      int end = state();
+      epsilon(start, left[0]);
+      epsilon(start, right[0]);
+      epsilon(left[1], end);
+      epsilon(right[1], end);
+      return new int[] { start, end };
+    }
+
+    private int[] optional(int[] frag) {
+      int start = state();
+      int end = state();
+      epsilon(start, frag[0]);
+      epsilon(start, end);
+      epsilon(frag[1], end);
+      return new int[] { start, end };
+    }
+
+    private int[] star(int[] frag) {
+      int start = state();
+      int end = state();
+      epsilon(start, frag[0]);
+      epsilon(start, end);
+      epsilon(frag[1], start);
+      return new int[] { start, end };
+    }
+
+    /**
+     * Converts a character set into the set of classes it covers, sharing
+     * results between equal sets.
+     */
+    private BitSet classes(BitSet chars) {
+      BitSet result = labels.get(chars);
+      if (result == null) {
+        result = new BitSet();
+        for (int ch = chars.nextSetBit(0); ch >= 0; ch = chars.nextSetBit(ch + 1)) {
+          result.set(classOf[ch]);
+        }
+        labels.put(chars, result);
+      }
+      return result;
+    }
+
+    private int state() {
+      if (size == target.length) {
+        int length = size * 2;
+        target = Arrays.copyOf(target, length);
+        label = Arrays.copyOf(label, length);
+        eps1 = Arrays.copyOf(eps1, length);
+        eps2 = Arrays.copyOf(eps2, length);
+      }
+      target[size] = -1;
+      eps1[size] = -1;
+      eps2[size] = -1;
+      return size++;
+    }
+
+    private void edge(int from, BitSet classes, int to) {
+      target[from] = to;
+      label[from] = classes;
+    }
+
+    private void epsilon(int from, int to) {
+      if (eps1[from] == -1) {
+        eps1[from] = to;
+      } else {
+        eps2[from] = to;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.ASCII_LIMIT;
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import java.util.BitSet;
+
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+
+
+/**
+ * Finds successive matches of a recognizer within a region of a sequence,
+ * without allocating.
+ *
+ * Rather than trying the recognizer at every position, candidates are
+ * located first. If every match must start with a literal of two or more
+ * characters, the literal is found with Boyer-Moore-Horspool. Otherwise
+ * positions whose character can't start a match are skipped.
+ *
+ * <pre>
+ *   Finder finder = Recognizers.finder(pattern).reset(source, 0, source.length());
+ *   while (finder.find()) {
+ *     handle(finder.start(), finder.end());
+ *   }
+ * </pre>
+ *
+ * A finder holds the position of the last match, so it must not be shared
+ * between threads.
+ */
+public class Finder {
+
+  private final Recognizer pattern;
+
+  // Literal every match starts with, or null to scan using the first set.
+  private final String prefix;
+
+  // Horspool shifts for ASCII characters. Others are looked up in the prefix.
+  private final int[] shifts;
+
+  // Bitmap of the ASCII characters which can start a match.
+  private final long first0;
+
+  private final long first1;
+
+  private final boolean firstWide;
+
+  private final boolean nullable;
+
+  private CharSequence seq;
+
+  private int to;
+
+  private int next;
+
+  private int start = FAIL;
+
+  private int end = FAIL;
+
+  Finder(Recognizer pattern) {
+    this.pattern = pattern;
+
+    StringBuilder buf = new StringBuilder();
+    prefix(pattern, buf);
+    if (buf.length() > 1) {
+      this.prefix = buf.toString();
+      int last = prefix.length() - 1;
+      this.shifts = new int[ASCII_LIMIT];
+      for (int i = 0; i < ASCII_LIMIT; i++) {
+        shifts[i] = prefix.length();
+      }
+      for (int i = 0; i < last; i++) {
+        char ch = prefix.charAt(i);
+        if (ch < ASCII_LIMIT) {
+          shifts[ch] = last - i;
+        }
+      }
+    } else {
+      this.prefix = null;
+      this.shifts = null;
+    }
+
+    BitSet first = FirstSets.first(pattern);
+    long[] words = first.get(0, ASCII_LIMIT).toLongArray();
+    this.first0 = words.length > 0 ? words[0] : 0;
+    this.first1 = words.length > 1 ? words[1] : 0;
+    this.firstWide = first.get(FirstSets.WIDE);
+    this.nullable = first.get(FirstSets.NULLABLE);
+  }
+
+  /**
+   * Starts searching the region [from, to) of the sequence.
+   */
+  public Finder reset(CharSequence seq, int from, int to) {
+    this.seq = seq;
+    this.to = to;
+    this.next = from;
+    this.start = FAIL;
+    this.end = FAIL;
+    return this;
+  }
+
+  /**
+   * Finds the next match, returning false when there are no more. Searching
+   * resumes at the end of the previous match, or one past it if the match
+   * was empty.
+   */
+  public boolean find() {
+    if (seq == null || next > to) {
+      return false;
+    }
+    int pos = prefix != null ? scanPrefix(next) : scanFirst(next);
+    if (pos == FAIL) {
+      next = to + 1;
+      start = FAIL;
+      end = FAIL;
+      return false;
+    }
+    start = pos;
+    next = end > pos ? end : pos + 1;
+    return true;
+  }
+
+  /**
+   * Start of the last match.
+   */
+  public int start() {
+    return start;
+  }
+
+  /**
+   * End of the last match.
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * Finds the start of the first match at or after 'pos' using the prefix,
+   * setting 'end' to its end.
+   */
+  private int scanPrefix(int pos) {
+    int length = prefix.length();
+    int last = length - 1;
+    char lastChar = prefix.charAt(last);
+    while (pos + length <= to) {
+      char ch = seq.charAt(pos + last);
+      if (ch == lastChar && startsWith(pos, last)) {
+        end = pattern.match(seq, pos, to);
+        if (end != FAIL) {
+          return pos;
+        }
+      }
+      pos += shift(ch);
+    }
+    return FAIL;
+  }
+
+  /**
+   * Finds the start of the first match at or after 'pos', skipping characters
+   * which can't start a match, and setting 'end' to its end.
+   */
+  private int scanFirst(int pos) {
+    for (; pos < to; pos++) {
+      if (nullable || canStart(seq.charAt(pos))) {
+        end = pattern.match(seq, pos, to);
+        if (end != FAIL) {
+          return pos;
+        }
+      }
+    }
+    if (nullable && pos == to) {
+      end = pattern.match(seq, pos, to);
+      if (end != FAIL) {
+        return pos;
+      }
+    }
+    return FAIL;
+  }
+
+  private boolean canStart(char ch) {
+    if (ch < 64) {
+      return (first0 & (1L << ch)) != 0;
+    }
+    if (ch < ASCII_LIMIT) {
+      return (first1 & (1L << ch)) != 0;
+    }
+    return firstWide;
+  }
+
+  private boolean startsWith(int pos, int count) {
+    for (int i = 0; i < count; i++) {
+      if (seq.charAt(pos + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int shift(char ch) {
+    if (ch < ASCII_LIMIT) {
+      return shifts[ch];
+    }
+    int last = prefix.length() - 1;
+    for (int i = last - 1; i >= 0; i--) {
+      if (prefix.charAt(i) == ch) {
+        return last - i;
+      }
+    }
+    return prefix.length();
+  }
+
+  /**
+   * Appends the literal every match of the pattern starts with. Returns true
+   * if the pattern matches exactly that literal, so a following sibling can
+   * extend it.
+   */
+  private static boolean prefix(Recognizer pattern, StringBuilder buf) {
+    if (pattern instanceof Literal) {
+      buf.append(((Literal) pattern).literal);
+      return true;
+    }
+    if (pattern instanceof Sequence && ((Sequence) pattern).patterns.length > 0) {
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        if (!prefix(child, buf)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (pattern instanceof Cardinality && ((Cardinality) pattern).start > 0) {
+      prefix(((Cardinality) pattern).pattern, buf);
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.ASCII_LIMIT;
+import static com.squarespace.compiler.match.Dfa.DEAD;
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.text.DefaultCharClassifier.DIGIT;
+
+import java.util.BitSet;
+
+import com.squarespace.compiler.match.Recognizers.Any;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterClass;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Decimal;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Literals;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Whitespace;
+import com.squarespace.compiler.text.DefaultCharClassifier;
+
+
+/**
+ * Computes the characters a recognizer can start a match with.
+ *
+ * The result is a conservative approximation held in a small bitset. Bits
+ * below {@link #WIDE} are the ASCII characters, {@link #WIDE} stands for
+ * any character outside ASCII, and {@link #NULLABLE} means the pattern may
+ * succeed without consuming anything. A pattern whose set excludes the
+ * current character and is not nullable is certain to fail.
+ */
+final class FirstSets {
+
+  static final int WIDE = ASCII_LIMIT;
+
+  static final int NULLABLE = ASCII_LIMIT + 1;
+
+  static final int SIZE = ASCII_LIMIT + 2;
+
+  private static final DefaultCharClassifier CLASSIFIER = new DefaultCharClassifier();
+
+  private FirstSets() {
+  }
+
+  /**
+   * Returns the first set of the pattern. The result must not be modified.
+   */
+  static BitSet first(Recognizer pattern) {
+    if (pattern instanceof Choice) {
+      return ((Choice) pattern).first;
+    }
+
+    BitSet result = new BitSet(SIZE);
+    if (pattern instanceof Any) {
+      result.set(0, WIDE + 1);
+
+    } else if (pattern instanceof Characters) {
+      Characters chars = (Characters) pattern;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        if (chars.match(String.valueOf(ch), 0, 1) != FAIL) {
+          result.set(ch);
+        }
+      }
+      boolean wide = chars.invert || chars.first >= ASCII_LIMIT;
+      for (char ch : chars.chars) {
+        wide |= ch >= ASCII_LIMIT;
+      }
+      result.set(WIDE, wide);
+
+    } else if (pattern instanceof CharacterClass) {
+      CharacterClass cls = (CharacterClass) pattern;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, cls.classifier.isMember(ch, cls.bitmask) != cls.invert);
+      }
+      // The default classifier has no members outside ASCII.
+      result.set(WIDE, cls.invert || cls.classifier.getClass() != DefaultCharClassifier.class);
+
+    } else if (pattern instanceof CharacterRange) {
+      CharacterRange range = (CharacterRange) pattern;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, (ch >= range.start && ch <= range.end) != range.invert);
+      }
+      boolean wide = range.invert
+          ? range.start > ASCII_LIMIT || range.end < Character.MAX_VALUE
+          : range.end >= ASCII_LIMIT;
+      result.set(WIDE, wide);
+
+    } else if (pattern instanceof CharSet) {
+      CharSet set = (CharSet) pattern;
+      BitSet members = set.toBitSet();
+      result.or(members.get(0, ASCII_LIMIT));
+      result.set(WIDE, members.nextSetBit(ASCII_LIMIT) >= 0);
+
+    } else if (pattern instanceof Whitespace) {
+      boolean invert = ((Whitespace) pattern).invert;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, DefaultCharClassifier.whitespace(ch) != invert);
+      }
+      result.set(WIDE);
+
+    } else if (pattern instanceof Literal) {
+      String literal = ((Literal) pattern).literal;
+      if (literal.isEmpty()) {
+        result.set(NULLABLE);
+      } else {
+        result.set(Math.min(literal.charAt(0), WIDE));
+      }
+
+    } else if (pattern instanceof Literals) {
+      Literals literals = (Literals) pattern;
+      // Any edge out of the root allows a literal to start here.
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, literals.next(0, literals.ignoreCase ? Literals.fold(ch) : ch) != FAIL);
+      }
+      // Case folding can map characters outside ASCII onto ASCII labels.
+      boolean wide = literals.ignoreCase;
+      for (int i = literals.offsets[0]; i < literals.offsets[1]; i++) {
+        wide |= literals.labels[i] >= ASCII_LIMIT;
+      }
+      result.set(WIDE, wide);
+      result.set(NULLABLE, literals.terminal[0]);
+
+    } else if (pattern instanceof Decimal) {
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, ch == '.' || CLASSIFIER.isMember(ch, DIGIT));
+      }
+
+    } else if (pattern instanceof NumberRecognizers.HexNumber) {
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F'));
+      }
+
+    } else if (pattern instanceof NumberRecognizers.IntegerNumber || pattern instanceof NumberRecognizers.DecimalNumber
+        || pattern instanceof NumberRecognizers.Dimension) {
+      boolean integer = pattern instanceof NumberRecognizers.IntegerNumber;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, ch == '-' || ch == '+' || (ch == '.' && !integer) || CLASSIFIER.isMember(ch, DIGIT));
+      }
+
+    } else if (pattern instanceof Sequence && ((Sequence) pattern).patterns.length > 0) {
+      // Union of the children up to and including the first that must consume.
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        BitSet next = first(child);
+        result.or(next);
+        if (!next.get(NULLABLE)) {
+          result.clear(NULLABLE);
+          break;
+        }
+      }
+
+    } else if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      result.or(first(card.pattern));
+      if (card.start == 0) {
+        result.set(NULLABLE);
+      }
+
+    } else if (pattern instanceof LookAhead) {
+      result.set(NULLABLE);
+
+    } else if (pattern instanceof Group) {
+      result.or(first(((Group) pattern).pattern));
+
+    } else if (pattern instanceof Profiled) {
+      result.or(first(((Profiled) pattern).pattern));
+
+    } else if (pattern instanceof Dfa) {
+      Dfa dfa = (Dfa) pattern;
+      for (char ch = 0; ch < ASCII_LIMIT; ch++) {
+        result.set(ch, dfa.transitions[dfa.asciiClasses[ch]] != DEAD);
+      }
+      result.set(WIDE);
+      result.set(NULLABLE, dfa.accept[0]);
+
+    } else {
+      // Anything could happen.
+      result.set(0, SIZE);
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import com.squarespace.compiler.match.Recognizers.Any;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterClass;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Decimal;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Literals;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Whitespace;
+
+
+/**
+ * Computes bounds on the number of characters a recognizer can match.
+ *
+ * Both bounds are conservative: a successful match is never shorter than
+ * {@link #minimum(Recognizer)} or longer than {@link #maximum(Recognizer)},
+ * which is {@link #UNBOUNDED} when no limit is known. Recognizers this class
+ * doesn't know, and sequences with no children, which end at 0 rather than
+ * at the start position, may return a position before the start, so they
+ * and anything containing them have a minimum of 0.
+ */
+final class Lengths {
+
+  static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  private Lengths() {
+  }
+
+  static int minimum(Recognizer pattern) {
+    if (pattern instanceof Sequence) {
+      return ((Sequence) pattern).minimum;
+    }
+    if (pattern instanceof Choice) {
+      return ((Choice) pattern).minimum;
+    }
+    if (single(pattern) || pattern instanceof Decimal || pattern instanceof NumberRecognizers.NumberNode) {
+      return 1;
+    }
+    if (pattern instanceof Literal) {
+      return ((Literal) pattern).literal.length();
+    }
+    if (pattern instanceof Literals) {
+      return literals((Literals) pattern, false);
+    }
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      return multiply(minimum(card.pattern), card.start);
+    }
+    if (pattern instanceof Group) {
+      return minimum(((Group) pattern).pattern);
+    }
+    if (pattern instanceof Profiled) {
+      return minimum(((Profiled) pattern).pattern);
+    }
+    // Look-aheads consume nothing, tables are not analyzed, and anything else is unknown.
+    return 0;
+  }
+
+  static int maximum(Recognizer pattern) {
+    if (single(pattern)) {
+      return 1;
+    }
+    if (pattern instanceof Literal) {
+      return ((Literal) pattern).literal.length();
+    }
+    if (pattern instanceof Literals) {
+      return literals((Literals) pattern, true);
+    }
+    if (pattern instanceof LookAhead) {
+      return 0;
+    }
+    if (pattern instanceof Sequence) {
+      int result = 0;
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        result = add(result, maximum(child));
+      }
+      return result;
+    }
+    if (pattern instanceof Choice) {
+      int result = 0;
+      for (Recognizer child : ((Choice) pattern).patterns) {
+        result = Math.max(result, maximum(child));
+      }
+      return result;
+    }
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      int child = maximum(card.pattern);
+      return card.limit <= 0 ? (child == 0 ? 0 : UNBOUNDED) : multiply(child, card.limit);
+    }
+    if (pattern instanceof Group) {
+      return maximum(((Group) pattern).pattern);
+    }
+    if (pattern instanceof Profiled) {
+      return maximum(((Profiled) pattern).pattern);
+    }
+    return UNBOUNDED;
+  }
+
+  /**
+   * Minimum length of a sequence of the given patterns.
+   */
+  static int sequence(Recognizer[] patterns) {
+    int result = 0;
+    for (Recognizer child : patterns) {
+      if (rewinds(child)) {
+        return 0;
+      }
+      result = add(result, minimum(child));
+    }
+    return result;
+  }
+
+  /**
+   * Minimum length of a choice between the given patterns.
+   */
+  static int choice(Recognizer[] patterns) {
+    if (patterns.length == 0) {
+      return 0;
+    }
+    int result = UNBOUNDED;
+    for (Recognizer child : patterns) {
+      result = Math.min(result, minimum(child));
+    }
+    return result;
+  }
+
+  /**
+   * Indicates whether a match may end before the position it started at.
+   */
+  private static boolean rewinds(Recognizer pattern) {
+    if (pattern instanceof Sequence) {
+      Recognizer[] patterns = ((Sequence) pattern).patterns;
+      if (patterns.length == 0) {
+        return true;
+      }
+      for (Recognizer child : patterns) {
+        if (rewinds(child)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (pattern instanceof Choice) {
+      for (Recognizer child : ((Choice) pattern).patterns) {
+        if (rewinds(child)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (pattern instanceof Cardinality) {
+      return rewinds(((Cardinality) pattern).pattern);
+    }
+    if (pattern instanceof Group) {
+      return rewinds(((Group) pattern).pattern);
+    }
+    if (pattern instanceof Profiled) {
+      return rewinds(((Profiled) pattern).pattern);
+    }
+    return !(single(pattern) || pattern instanceof Decimal || pattern instanceof NumberRecognizers.NumberNode
+        || pattern instanceof Literal
+        || pattern instanceof Literals || pattern instanceof LookAhead || pattern instanceof Dfa);
+  }
+
+  /**
+   * Recognizers which match exactly one character.
+   */
+  private static boolean single(Recognizer pattern) {
+    return pattern instanceof Any || pattern instanceof Characters || pattern instanceof CharacterClass
+        || pattern instanceof CharacterRange || pattern instanceof CharSet || pattern instanceof Whitespace;
+  }
+
+  /**
+   * Length of the shortest or longest literal, from the depths of the
+   * terminal nodes of the breadth-first trie.
+   */
+  private static int literals(Literals literals, boolean longest) {
+    int size = literals.terminal.length;
+    int[] depth = new int[size];
+    int result = longest ? 0 : UNBOUNDED;
+    for (int node = 0; node < size; node++) {
+      if (literals.terminal[node]) {
+        result = longest ? Math.max(result, depth[node]) : Math.min(result, depth[node]);
+      }
+      for (int edge = literals.offsets[node]; edge < literals.offsets[node + 1]; edge++) {
+        depth[literals.targets[edge]] = depth[node] + 1;
+      }
+    }
+    // A trie with no literals never matches.
+    return result == UNBOUNDED ? 0 : result;
+  }
+
+  private static int add(int a, int b) {
+    long sum = (long) a + b;
+    return sum >= UNBOUNDED ? UNBOUNDED : (int) sum;
+  }
+
+  private static int multiply(int a, int b) {
+    long product = (long) a * b;
+    return product >= UNBOUNDED ? UNBOUNDED : (int) product;
+  }
+
+}
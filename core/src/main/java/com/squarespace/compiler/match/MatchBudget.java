@@ -0,0 +1,181 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Caps the work done by matches against untrusted input. Each character a
+ * recognizer reads costs one step, and a match which would go over the
+ * remaining steps stops and returns {@link #EXHAUSTED} instead of a result.
+ *
+ * One budget can be spread over many matches, for example all the matches
+ * made while rendering one template:
+ *
+ * <pre>
+ *   MatchBudget budget = Recognizers.budget(1_000_000);
+ *   int end = budget.match(pattern, source, pos, source.length());
+ *   if (end == MatchBudget.EXHAUSTED) {
+ *     // give up on this input
+ *   }
+ * </pre>
+ *
+ * The input is read through a counting view, so the steps are charged in
+ * the charAt() calls the recognizers already make and no recognizer needs
+ * to know about the budget. This is not free: every read pays a decrement
+ * and a branch, and the recognizers read through the view's CharSequence
+ * methods instead of their String and char[] paths, so a budgeted match
+ * runs slower than a plain one. Once the budget is spent every later match
+ * returns EXHAUSTED. Recognizers which loop without reading a character,
+ * such as a repetition of an empty match at the end of the input, are not
+ * bounded by it.
+ *
+ * Running out of steps unwinds the match with an unchecked exception. A
+ * custom recognizer which catches RuntimeException around the reads of
+ * its input swallows it and carries on, though every further read throws
+ * again. The result of any match which overdrew the budget is discarded
+ * and EXHAUSTED returned in its place, so a swallowed stop costs time but
+ * never gives a wrong answer. Recognizers should still let it propagate.
+ *
+ * A budget holds the count of remaining steps and the input of the match
+ * in progress, so it must not be shared between threads, and it can't be
+ * used from inside one of its own matches: a recognizer which calls
+ * match() on the budget that is running it gets an IllegalStateException.
+ */
+public class MatchBudget {
+
+  /**
+   * Result of a match which ran out of steps. Distinct from
+   * {@link Recognizers#FAIL}.
+   */
+  public static final int EXHAUSTED = -2;
+
+  private static final Exhausted STOP = new Exhausted();
+
+  private final Counting view = new Counting();
+
+  MatchBudget(long steps) {
+    view.remaining = steps;
+  }
+
+  /**
+   * Number of steps left.
+   */
+  public long remaining() {
+    return Math.max(view.remaining, 0);
+  }
+
+  public boolean exhausted() {
+    return view.remaining < 0;
+  }
+
+  /**
+   * Matches the pattern, charging each character read to the budget.
+   * Returns the end of the match, FAIL, or EXHAUSTED. Throws
+   * IllegalStateException if called while this budget is already matching.
+   */
+  public int match(Recognizer pattern, CharSequence seq, int pos, int length) {
+    if (view.seq != null) {
+      throw new IllegalStateException("budget is already running a match");
+    }
+    if (view.remaining < 0) {
+      return EXHAUSTED;
+    }
+    view.seq = seq;
+    try {
+      int end = pattern.match(view, pos, length);
+      return view.remaining < 0 ? EXHAUSTED : end;
+    } catch (Exhausted e) {
+      return EXHAUSTED;
+    } finally {
+      view.seq = null;
+    }
+  }
+
+  /**
+   * Matches like {@link #match(Recognizer, CharSequence, int, int)}, also
+   * recording the span of each group.
+   */
+  public int match(Recognizer pattern, CharSequence seq, int pos, int length, int[] groups) {
+    if (view.seq != null) {
+      throw new IllegalStateException("budget is already running a match");
+    }
+    if (view.remaining < 0) {
+      return EXHAUSTED;
+    }
+    view.seq = seq;
+    try {
+      int end = pattern.match(view, pos, length, groups);
+      return view.remaining < 0 ? EXHAUSTED : end;
+    } catch (Exhausted e) {
+      return EXHAUSTED;
+    } finally {
+      view.seq = null;
+    }
+  }
+
+  /**
+   * View of the input which counts down the budget on each read.
+   */
+  private static final class Counting implements CharSequence {
+
+    CharSequence seq;
+
+    long remaining;
+
+    @Override
+    public char charAt(int index) {
+      if (--remaining < 0) {
+        throw STOP;
+      }
+      return seq.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return seq.length();
+    }
+
+    /**
+     * Returns an uncounted slice of the input.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return seq.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return seq.toString();
+    }
+  }
+
+  /**
+   * Unwinds a match which ran out of steps. Shared and without a stack
+   * trace, so stopping costs no allocation.
+   */
+  private static final class Exhausted extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    Exhausted() {
+      super(null, null, false, false);
+    }
+  }
+
+}
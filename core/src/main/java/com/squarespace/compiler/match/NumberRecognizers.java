@@ -0,0 +1,282 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import com.squarespace.compiler.match.Recognizers.NumberRecognizer;
+
+
+/**
+ * Recognizers which compute the value of the number they match while
+ * scanning it, so the matched text doesn't have to be extracted and parsed
+ * a second time.
+ */
+final class NumberRecognizers {
+
+  // Mantissas are accumulated exactly up to 18 digits.
+  private static final long MANTISSA_LIMIT = 100_000_000_000_000_000L;
+
+  // Larger exponents overflow or underflow anyway.
+  private static final int EXPONENT_LIMIT = 100_000;
+
+  // Powers of ten which are exact as doubles.
+  private static final double[] POWERS = new double[] {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  static final NumberRecognizer INTEGER = new IntegerNumber();
+
+  static final NumberRecognizer NUMBER = new DecimalNumber();
+
+  static final NumberRecognizer HEX = new HexNumber();
+
+  static final NumberRecognizer DIMENSION = new Dimension();
+
+  private NumberRecognizers() {
+  }
+
+  /**
+   * Converts mantissa * 10^exponent when both are exact as doubles, so a
+   * single multiplication or division gives the correctly rounded result.
+   * Returns NaN otherwise, leaving the conversion to Double.parseDouble.
+   */
+  static double toDouble(long mantissa, int exponent) {
+    if (mantissa == 0) {
+      return 0.0;
+    }
+    if (mantissa > (1L << 53) || exponent < -22 || exponent > 22) {
+      return Double.NaN;
+    }
+    return exponent < 0 ? mantissa / POWERS[-exponent] : mantissa * POWERS[exponent];
+  }
+
+  private static int hexValue(char ch) {
+    if (ch >= '0' && ch <= '9') {
+      return ch - '0';
+    }
+    if (ch >= 'a' && ch <= 'f') {
+      return ch - 'a' + 10;
+    }
+    if (ch >= 'A' && ch <= 'F') {
+      return ch - 'A' + 10;
+    }
+    return -1;
+  }
+
+  private static boolean isLetter(char ch) {
+    return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+  }
+
+  /**
+   * Base for the number recognizers, which match without storing a value
+   * when used as a plain recognizer. Each matches at least one character.
+   */
+  abstract static class NumberNode implements NumberRecognizer {
+
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      return match(seq, pos, length, (NumberValue) null);
+    }
+  }
+
+  /**
+   * Optionally signed decimal integer, which must fit in a long.
+   */
+  static final class IntegerNumber extends NumberNode {
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, NumberValue value) {
+      int i = pos;
+      boolean negative = false;
+      if (i < length && (seq.charAt(i) == '-' || seq.charAt(i) == '+')) {
+        negative = seq.charAt(i) == '-';
+        i++;
+      }
+      int start = i;
+      // Accumulate negatively, since Long.MIN_VALUE has no positive counterpart.
+      long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+      long result = 0;
+      while (i < length) {
+        int digit = seq.charAt(i) - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        if (result < limit / 10 || result * 10 < limit + digit) {
+          return FAIL;
+        }
+        result = result * 10 - digit;
+        i++;
+      }
+      if (i == start) {
+        return FAIL;
+      }
+      if (value != null) {
+        value.set(negative ? result : -result, i);
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Optionally signed decimal number with an optional fraction and exponent,
+   * such as "-1.5e3". Like {@link Recognizers#decimal()}, either side of the
+   * point may be empty but not both.
+   */
+  static final class DecimalNumber extends NumberNode {
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, NumberValue value) {
+      int i = pos;
+      boolean negative = false;
+      if (i < length && (seq.charAt(i) == '-' || seq.charAt(i) == '+')) {
+        negative = seq.charAt(i) == '-';
+        i++;
+      }
+      int start = i;
+      long mantissa = 0;
+      int exponent = 0;
+      boolean exact = true;
+      while (i < length) {
+        int digit = seq.charAt(i) - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        if (mantissa < MANTISSA_LIMIT) {
+          mantissa = mantissa * 10 + digit;
+        } else {
+          exponent++;
+          exact &= digit == 0;
+        }
+        i++;
+      }
+      int digits = i - start;
+      if (i < length && seq.charAt(i) == '.') {
+        i++;
+        int fraction = i;
+        while (i < length) {
+          int digit = seq.charAt(i) - '0';
+          if (digit < 0 || digit > 9) {
+            break;
+          }
+          if (mantissa < MANTISSA_LIMIT) {
+            mantissa = mantissa * 10 + digit;
+            exponent--;
+          } else {
+            exact &= digit == 0;
+          }
+          i++;
+        }
+        digits += i - fraction;
+      }
+      if (digits == 0) {
+        return FAIL;
+      }
+
+      // The exponent is only taken if at least one digit follows it.
+      if (i + 1 < length && (seq.charAt(i) == 'e' || seq.charAt(i) == 'E')) {
+        int j = i + 1;
+        boolean minus = seq.charAt(j) == '-';
+        if (minus || seq.charAt(j) == '+') {
+          j++;
+        }
+        int begin = j;
+        int power = 0;
+        while (j < length) {
+          int digit = seq.charAt(j) - '0';
+          if (digit < 0 || digit > 9) {
+            break;
+          }
+          power = Math.min(power * 10 + digit, EXPONENT_LIMIT);
+          j++;
+        }
+        if (j > begin) {
+          exponent += minus ? -power : power;
+          i = j;
+        }
+      }
+
+      if (value != null) {
+        double result = exact ? toDouble(mantissa, exponent) : Double.NaN;
+        if (Double.isNaN(result)) {
+          result = Double.parseDouble(seq.subSequence(start, i).toString());
+        }
+        value.set(negative ? -result : result, i);
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Hexadecimal digits, without a prefix, which must fit in a long.
+   */
+  static final class HexNumber extends NumberNode {
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, NumberValue value) {
+      int i = pos;
+      long result = 0;
+      while (i < length) {
+        int digit = hexValue(seq.charAt(i));
+        if (digit < 0) {
+          break;
+        }
+        if ((result >>> 60) != 0) {
+          return FAIL;
+        }
+        result = (result << 4) | digit;
+        i++;
+      }
+      if (i == pos) {
+        return FAIL;
+      }
+      if (value != null) {
+        value.set(result, i);
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Decimal number followed by an optional '%' or a unit made of ASCII letters,
+   * such as "12.5px". The unit's span is recorded in the value.
+   */
+  static final class Dimension extends NumberNode {
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, NumberValue value) {
+      int start = NUMBER.match(seq, pos, length, value);
+      if (start == FAIL) {
+        return FAIL;
+      }
+      int i = start;
+      if (i < length && seq.charAt(i) == '%') {
+        i++;
+      } else {
+        while (i < length && isLetter(seq.charAt(i))) {
+          i++;
+        }
+      }
+      if (value != null) {
+        value.unit(start, i);
+      }
+      return i;
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+
+/**
+ * Holds the value computed by a {@link Recognizers.NumberRecognizer} during
+ * its last successful match. Reuse one holder across matches to avoid
+ * allocating. The contents are left as they were when a match fails.
+ */
+public class NumberValue {
+
+  private long longValue;
+
+  private double doubleValue;
+
+  private int unitStart;
+
+  private int unitEnd;
+
+  /**
+   * The value as a long. Decimal values are truncated.
+   */
+  public long longValue() {
+    return longValue;
+  }
+
+  /**
+   * The value as a double.
+   */
+  public double doubleValue() {
+    return doubleValue;
+  }
+
+  /**
+   * Start of the unit following a dimension, or the end of the match if
+   * there was no unit.
+   */
+  public int unitStart() {
+    return unitStart;
+  }
+
+  /**
+   * End of the unit following a dimension, which is the end of the match.
+   */
+  public int unitEnd() {
+    return unitEnd;
+  }
+
+  public boolean hasUnit() {
+    return unitEnd > unitStart;
+  }
+
+  void set(long value, int end) {
+    this.longValue = value;
+    this.doubleValue = value;
+    this.unitStart = end;
+    this.unitEnd = end;
+  }
+
+  void set(double value, int end) {
+    this.longValue = (long) value;
+    this.doubleValue = value;
+    this.unitStart = end;
+    this.unitEnd = end;
+  }
+
+  void unit(int start, int end) {
+    this.unitStart = start;
+    this.unitEnd = end;
+  }
+
+}
@@ -0,0 +1,468 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import java.util.Arrays;
+
+import com.squarespace.compiler.match.Recognizers.Any;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterClass;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Decimal;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Literals;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Whitespace;
+
+
+/**
+ * Matches a recognizer tree as a nondeterministic automaton, returning the
+ * end of the longest prefix of the input the pattern can match by any path.
+ *
+ * The tree is translated into a small program of character tests and splits
+ * which is run in lockstep over the input, Pike VM style: every live thread
+ * advances by one character at a time and threads reaching the same
+ * instruction at the same position are merged. With no look-aheads or
+ * opaque recognizers, a match takes O(n * m) time for n characters and m
+ * instructions, with no backtracking.
+ *
+ * Unlike the recognizers themselves, a sequence or repetition can give back
+ * characters so the rest of the pattern matches. Look-aheads are tested by a
+ * nested program at each position they are reached. Recognizers this class
+ * doesn't know are matched atomically: their single result is taken as is,
+ * and they are rerun at each position a thread reaches them. Both cost as
+ * much as the nested match at every such position, so a look-ahead which
+ * scans to the end of the input, such as .*(?=.*!), makes the whole match
+ * quadratic. Groups are not recorded, and profiled recognizers are matched
+ * through without recording statistics.
+ */
+final class PikeVm implements Recognizer {
+
+  // Instructions which consume a character.
+
+  private static final int CHAR = 0;
+
+  private static final int FOLD = 1;
+
+  private static final int SET = 2;
+
+  // Instructions followed during the closure at a position.
+
+  private static final int MATCH = 3;
+
+  private static final int SPLIT = 4;
+
+  private static final int ASSERT = 5;
+
+  private static final int CALL = 6;
+
+  private static final int FAIL_OP = 7;
+
+  static final int MAX_SIZE = 1 << 16;
+
+  // Same language as Decimal, with every shorter match available too.
+  private static final Recognizer DECIMAL = Recognizers.choice(
+      Recognizers.sequence(
+          Recognizers.digits(),
+          Recognizers.zeroOrOne(Recognizers.sequence(Recognizers.characters('.'),
+              Recognizers.zeroOrMore(Recognizers.digit())))),
+      Recognizers.sequence(Recognizers.characters('.'), Recognizers.digits()));
+
+  private final int start;
+
+  private final int[] ops;
+
+  // Next instruction, or first branch of a split.
+  private final int[] xs;
+
+  // Second branch of a split.
+  private final int[] ys;
+
+  private final char[] chars;
+
+  // Character set, look-ahead or opaque recognizer for the instruction.
+  private final Recognizer[] calls;
+
+  PikeVm(Recognizer pattern) {
+    Builder builder = new Builder();
+    int match = builder.emit(MATCH, -1, -1, '\0', null);
+    this.start = builder.build(pattern, match);
+    int size = builder.size;
+    this.ops = Arrays.copyOf(builder.ops, size);
+    this.xs = Arrays.copyOf(builder.xs, size);
+    this.ys = Arrays.copyOf(builder.ys, size);
+    this.chars = Arrays.copyOf(builder.chars, size);
+    this.calls = Arrays.copyOf(builder.calls, size);
+  }
+
+  @Override
+  public int match(CharSequence seq, int pos, int length) {
+    Run run = new Run(seq, length);
+    int[] current = new int[ops.length];
+    int[] next = new int[ops.length];
+    int count = run.add(current, 0, start, pos);
+    while (true) {
+      if (count == 0) {
+        // Only threads inside opaque recognizers are left, so skip ahead.
+        if (run.pending == 0) {
+          break;
+        }
+        pos = run.nextPending();
+        run.generation++;
+        count = run.resume(current, 0, pos);
+        continue;
+      }
+      if (pos >= length) {
+        break;
+      }
+
+      char ch = seq.charAt(pos);
+      run.generation++;
+      int found = 0;
+      for (int i = 0; i < count; i++) {
+        int pc = current[i];
+        boolean consumed;
+        switch (ops[pc]) {
+          case CHAR:
+            consumed = ch == chars[pc];
+            break;
+          case FOLD:
+            consumed = Literals.fold(ch) == chars[pc];
+            break;
+          default:
+            consumed = calls[pc].match(seq, pos, length) != FAIL;
+            break;
+        }
+        if (consumed) {
+          found = run.add(next, found, xs[pc], pos + 1);
+        }
+      }
+      pos++;
+      count = run.resume(next, found, pos);
+
+      int[] swap = current;
+      current = next;
+      next = swap;
+    }
+    return run.last;
+  }
+
+  /**
+   * Number of instructions in the program.
+   */
+  int size() {
+    return ops.length;
+  }
+
+  /**
+   * State of a single match.
+   */
+  private final class Run {
+
+    private final CharSequence seq;
+
+    private final int length;
+
+    // Generation in which each instruction was last added to a list.
+    private final int[] marks = new int[ops.length];
+
+    private final int[] stack = new int[ops.length * 2 + 1];
+
+    int generation = 1;
+
+    int last = FAIL;
+
+    // Threads waiting for the input to reach the end of an opaque match.
+    int pending;
+
+    int[] pendingPos = new int[4];
+
+    int[] pendingPc = new int[4];
+
+    Run(CharSequence seq, int length) {
+      this.seq = seq;
+      this.length = length;
+    }
+
+    /**
+     * Adds the instructions reachable from 'pc' at 'pos' which consume a
+     * character to the list, returning the new count.
+     */
+    int add(int[] list, int count, int pc, int pos) {
+      int top = 0;
+      stack[top++] = pc;
+      while (top > 0) {
+        pc = stack[--top];
+        if (marks[pc] == generation) {
+          continue;
+        }
+        marks[pc] = generation;
+        switch (ops[pc]) {
+          case MATCH:
+            last = pos;
+            break;
+
+          case SPLIT:
+            stack[top++] = ys[pc];
+            stack[top++] = xs[pc];
+            break;
+
+          case ASSERT:
+            if (calls[pc].match(seq, pos, length) != FAIL) {
+              stack[top++] = xs[pc];
+            }
+            break;
+
+          case CALL: {
+            // Opaque recognizers are atomic. Continue now if nothing was
+            // consumed, otherwise once the input reaches the end of the match.
+            int end = calls[pc].match(seq, pos, length);
+            if (end == pos) {
+              stack[top++] = xs[pc];
+            } else if (end != FAIL) {
+              defer(end, xs[pc]);
+            }
+            break;
+          }
+
+          case FAIL_OP:
+            break;
+
+          default:
+            list[count++] = pc;
+            break;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Adds the threads waiting for 'pos' to the list, returning the new count.
+     */
+    int resume(int[] list, int count, int pos) {
+      int i = 0;
+      while (i < pending) {
+        if (pendingPos[i] != pos) {
+          i++;
+          continue;
+        }
+        int pc = pendingPc[i];
+        pending--;
+        pendingPos[i] = pendingPos[pending];
+        pendingPc[i] = pendingPc[pending];
+        count = add(list, count, pc, pos);
+      }
+      return count;
+    }
+
+    int nextPending() {
+      int result = Integer.MAX_VALUE;
+      for (int i = 0; i < pending; i++) {
+        result = Math.min(result, pendingPos[i]);
+      }
+      return result;
+    }
+
+    private void defer(int pos, int pc) {
+      if (pending == pendingPos.length) {
+        pendingPos = Arrays.copyOf(pendingPos, pending * 2);
+        pendingPc = Arrays.copyOf(pendingPc, pending * 2);
+      }
+      pendingPos[pending] = pos;
+      pendingPc[pending] = pc;
+      pending++;
+    }
+  }
+
+  /**
+   * Translates a tree into a program. Each pattern is built given the
+   * instruction that follows it, so the program is emitted back to front.
+   */
+  private static final class Builder {
+
+    int size;
+
+    int[] ops = new int[16];
+
+    int[] xs = new int[16];
+
+    int[] ys = new int[16];
+
+    char[] chars = new char[16];
+
+    Recognizer[] calls = new Recognizer[16];
+
+    /**
+     * Emits the instructions matching the pattern and then continuing at
+     * 'next', returning the first of them.
+     */
+    int build(Recognizer pattern, int next) {
+      if (isCharacter(pattern)) {
+        return emit(SET, next, -1, '\0', pattern);
+      }
+
+      if (pattern instanceof Literal) {
+        String literal = ((Literal) pattern).literal;
+        for (int i = literal.length() - 1; i >= 0; i--) {
+          next = emit(CHAR, next, -1, literal.charAt(i), null);
+        }
+        return next;
+      }
+
+      if (pattern instanceof Literals) {
+        return trie((Literals) pattern, 0, next);
+      }
+
+      if (pattern instanceof Decimal) {
+        return build(DECIMAL, next);
+      }
+
+      if (pattern instanceof Sequence) {
+        Recognizer[] patterns = ((Sequence) pattern).patterns;
+        for (int i = patterns.length - 1; i >= 0; i--) {
+          next = build(patterns[i], next);
+        }
+        return next;
+      }
+
+      if (pattern instanceof Choice) {
+        Recognizer[] patterns = ((Choice) pattern).patterns;
+        int[] entries = new int[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+          entries[i] = build(patterns[i], next);
+        }
+        return alternatives(entries, entries.length);
+      }
+
+      if (pattern instanceof Cardinality) {
+        return cardinality((Cardinality) pattern, next);
+      }
+
+      if (pattern instanceof LookAhead) {
+        return emit(ASSERT, next, -1, '\0', new PikeVm(((LookAhead) pattern).pattern));
+      }
+
+      if (pattern instanceof Group) {
+        return build(((Group) pattern).pattern, next);
+      }
+
+      if (pattern instanceof Profiled) {
+        return build(((Profiled) pattern).pattern, next);
+      }
+
+      return emit(CALL, next, -1, '\0', pattern);
+    }
+
+    private static boolean isCharacter(Recognizer pattern) {
+      return pattern instanceof Any
+          || pattern instanceof Characters
+          || pattern instanceof CharacterClass
+          || pattern instanceof CharacterRange
+          || pattern instanceof CharSet
+          || pattern instanceof Whitespace;
+    }
+
+    private int cardinality(Cardinality card, int next) {
+      if (card.limit > 0 && card.start > card.limit) {
+        return emit(FAIL_OP, -1, -1, '\0', null);
+      }
+
+      int entry;
+      if (card.limit == 0) {
+        // Loop back to a split between another iteration and leaving.
+        int loop = emit(SPLIT, -1, next, '\0', null);
+        // Building the body may grow the arrays, so store the link after.
+        int body = build(card.pattern, loop);
+        xs[loop] = body;
+        entry = loop;
+      } else {
+        // Nest the optional iterations: x{0,2} is (x(x)?)?
+        entry = next;
+        for (int i = card.start; i < card.limit; i++) {
+          entry = emit(SPLIT, build(card.pattern, entry), next, '\0', null);
+        }
+      }
+      for (int i = 0; i < card.start; i++) {
+        entry = build(card.pattern, entry);
+      }
+      return entry;
+    }
+
+    /**
+     * Emits the subtrie rooted at 'node' as a choice between its edges and,
+     * if the node ends a literal, continuing at 'next'.
+     */
+    private int trie(Literals literals, int node, int next) {
+      int lo = literals.offsets[node];
+      int hi = literals.offsets[node + 1];
+      int[] entries = new int[hi - lo + 1];
+      int count = 0;
+      for (int i = lo; i < hi; i++) {
+        int target = trie(literals, literals.targets[i], next);
+        entries[count++] = emit(literals.ignoreCase ? FOLD : CHAR, target, -1, literals.labels[i], null);
+      }
+      if (literals.terminal[node]) {
+        entries[count++] = next;
+      }
+      return alternatives(entries, count);
+    }
+
+    /**
+     * Emits a chain of splits reaching each of the entries.
+     */
+    private int alternatives(int[] entries, int count) {
+      if (count == 0) {
+        return emit(FAIL_OP, -1, -1, '\0', null);
+      }
+      int entry = entries[count - 1];
+      for (int i = count - 2; i >= 0; i--) {
+        entry = emit(SPLIT, entries[i], entry, '\0', null);
+      }
+      return entry;
+    }
+
+    int emit(int op, int x, int y, char ch, Recognizer call) {
+      if (size == MAX_SIZE) {
+        throw new IllegalArgumentException("pattern needs more than " + MAX_SIZE + " instructions");
+      }
+      if (size == ops.length) {
+        int capacity = size * 2;
+        ops = Arrays.copyOf(ops, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        chars = Arrays.copyOf(chars, capacity);
+        calls = Arrays.copyOf(calls, capacity);
+      }
+      ops[size] = op;
+      xs[size] = x;
+      ys[size] = y;
+      chars[size] = ch;
+      calls[size] = call;
+      return size++;
+    }
+  }
+
+}
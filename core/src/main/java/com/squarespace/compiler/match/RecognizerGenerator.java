@@ -0,0 +1,685 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.squarespace.compiler.match.Recognizers.Any;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharacterClass;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Whitespace;
+
+
+/**
+ * Generates a dedicated class for a recognizer tree, with the whole pattern
+ * inlined into a single match method.
+ *
+ * Each generated class is defined by its own throwaway class loader, so it can
+ * be collected along with its instances. The class file targets version 49,
+ * which lets us skip computing stack map frames.
+ *
+ * Nodes which can't be inlined (custom recognizers, compiled DFAs, decimal and
+ * long literals) are stored in a field of the generated class and called
+ * through it. Since every generated class has its own call sites those stay
+ * monomorphic.
+ */
+final class RecognizerGenerator {
+
+  private static final String PACKAGE = "com/squarespace/compiler/match/generated/";
+
+  private static final String RECOGNIZER = "com/squarespace/compiler/match/Recognizers$Recognizer";
+
+  private static final String CLASSIFIER = "com/squarespace/compiler/text/CharClassifier";
+
+  private static final String DEFAULT_CLASSIFIER = "com/squarespace/compiler/text/DefaultCharClassifier";
+
+  private static final String CHARSEQUENCE = "java/lang/CharSequence";
+
+  private static final String MATCH_DESC = "(Ljava/lang/CharSequence;II)I";
+
+  // Longest literal compared inline, longer ones are delegated.
+  private static final int MAX_INLINE_LITERAL = 16;
+
+  // HotSpot will not JIT-compile methods larger than this.
+  private static final int MAX_CODE_SIZE = 8000;
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  // Locals of the generated match method.
+  private static final int THIS = 0;
+  private static final int SEQ = 1;
+  private static final int POS = 2;
+  private static final int LENGTH = 3;
+
+  private final ConstantPool pool = new ConstantPool();
+
+  private final Code code = new Code();
+
+  private final List<Object> constants = new ArrayList<>();
+
+  private final List<String> fieldTypes = new ArrayList<>();
+
+  private final String className = PACKAGE + "Recognizer" + COUNTER.incrementAndGet();
+
+  private int locals = LENGTH + 1;
+
+  private RecognizerGenerator() {
+  }
+
+  /**
+   * Generates a class for the pattern and returns an instance of it, or the
+   * pattern itself if it is too large to generate or captures groups.
+   */
+  static Recognizer generate(Recognizer pattern) {
+    if (Recognizers.captures(pattern)) {
+      return pattern;
+    }
+    RecognizerGenerator generator = new RecognizerGenerator();
+    byte[] bytes = generator.emit(pattern);
+    if (bytes == null) {
+      return pattern;
+    }
+    String name = generator.className.replace('/', '.');
+    try {
+      Class<?> cls = new GeneratedLoader(Recognizers.class.getClassLoader()).define(name, bytes);
+      Object[] args = generator.constants.toArray();
+      return (Recognizer) cls.getConstructor(Object[].class).newInstance((Object) args);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Failed to load generated recognizer " + name, e);
+    }
+  }
+
+  /**
+   * Emits the class file, or returns null if the match method is too large.
+   */
+  private byte[] emit(Recognizer pattern) {
+    Label fail = new Label();
+    generate(pattern, POS, fail);
+    code.load(POS);
+    code.op(Code.IRETURN);
+    code.mark(fail);
+    code.op(Code.ICONST_M1);
+    code.op(Code.IRETURN);
+    if (code.size() > MAX_CODE_SIZE || locals > 255) {
+      return null;
+    }
+    return classFile();
+  }
+
+  // CODE GENERATION
+
+  /**
+   * Emits code matching the pattern at the position held in local 'pos'. On
+   * success 'pos' holds the end of the match and control falls through. On
+   * failure control jumps to 'fail' and 'pos' is undefined.
+   */
+  private void generate(Recognizer pattern, int pos, Label fail) {
+    if (pattern instanceof Any) {
+      checkBounds(pos, fail);
+      code.iinc(pos, 1);
+
+    } else if (pattern instanceof Characters) {
+      Characters chars = (Characters) pattern;
+      int ch = loadChar(pos, fail);
+      Label ok = new Label();
+      Label found = chars.invert ? fail : ok;
+      compareChar(ch, chars.first, found);
+      for (char c : chars.chars) {
+        compareChar(ch, c, found);
+      }
+      if (!chars.invert) {
+        code.jump(Code.GOTO, fail);
+      }
+      code.mark(ok);
+      code.iinc(pos, 1);
+
+    } else if (pattern instanceof CharacterRange) {
+      CharacterRange range = (CharacterRange) pattern;
+      int ch = loadChar(pos, fail);
+      if (range.invert) {
+        Label ok = new Label();
+        code.load(ch);
+        code.push(range.start);
+        code.jump(Code.IF_ICMPLT, ok);
+        code.load(ch);
+        code.push(range.end);
+        code.jump(Code.IF_ICMPLE, fail);
+        code.mark(ok);
+      } else {
+        code.load(ch);
+        code.push(range.start);
+        code.jump(Code.IF_ICMPLT, fail);
+        code.load(ch);
+        code.push(range.end);
+        code.jump(Code.IF_ICMPGT, fail);
+      }
+      code.iinc(pos, 1);
+
+    } else if (pattern instanceof CharacterClass) {
+      CharacterClass cls = (CharacterClass) pattern;
+      int ch = loadChar(pos, fail);
+      code.op(Code.ALOAD_0);
+      code.field(Code.GETFIELD, className, constant(cls.classifier, CLASSIFIER), "L" + CLASSIFIER + ";");
+      code.load(ch);
+      code.push(cls.bitmask);
+      code.invokeInterface(CLASSIFIER, "isMember", "(CI)Z", 3);
+      code.jump(cls.invert ? Code.IFNE : Code.IFEQ, fail);
+      code.iinc(pos, 1);
+
+    } else if (pattern instanceof Whitespace) {
+      int ch = loadChar(pos, fail);
+      code.load(ch);
+      code.invoke(Code.INVOKESTATIC, DEFAULT_CLASSIFIER, "whitespace", "(C)Z");
+      code.jump(((Whitespace) pattern).invert ? Code.IFNE : Code.IFEQ, fail);
+      code.iinc(pos, 1);
+
+    } else if (pattern instanceof Literal && ((Literal) pattern).literalLength <= MAX_INLINE_LITERAL) {
+      String literal = ((Literal) pattern).literal;
+      int len = literal.length();
+      code.load(LENGTH);
+      code.load(pos);
+      code.op(Code.ISUB);
+      code.push(len);
+      code.jump(Code.IF_ICMPLT, fail);
+      for (int i = 0; i < len; i++) {
+        code.aload(SEQ);
+        code.load(pos);
+        if (i > 0) {
+          code.push(i);
+          code.op(Code.IADD);
+        }
+        code.invokeInterface(CHARSEQUENCE, "charAt", "(I)C", 2);
+        code.push(literal.charAt(i));
+        code.jump(Code.IF_ICMPNE, fail);
+      }
+      code.iinc(pos, len);
+
+    } else if (pattern instanceof Sequence && ((Sequence) pattern).patterns.length > 0) {
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        generate(child, pos, fail);
+      }
+
+    } else if (pattern instanceof Choice) {
+      // Try each alternative from the same start, keeping the longest.
+      int start = local();
+      int best = local();
+      int res = local();
+      code.load(pos);
+      code.store(start);
+      code.op(Code.ICONST_M1);
+      code.store(best);
+      for (Recognizer child : ((Choice) pattern).patterns) {
+        Label next = new Label();
+        code.load(start);
+        code.store(res);
+        generate(child, res, next);
+        code.load(res);
+        code.load(best);
+        code.jump(Code.IF_ICMPLE, next);
+        code.load(res);
+        code.store(best);
+        code.mark(next);
+      }
+      code.load(best);
+      code.jump(Code.IFLT, fail);
+      code.load(best);
+      code.store(pos);
+
+    } else if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      int count = local();
+      int res = local();
+      Label loop = new Label();
+      Label done = new Label();
+      code.op(Code.ICONST_0);
+      code.store(count);
+      code.mark(loop);
+      code.load(pos);
+      code.store(res);
+      generate(card.pattern, res, done);
+      code.load(res);
+      code.store(pos);
+      code.iinc(count, 1);
+      if (card.limit > 0) {
+        code.load(count);
+        code.push(card.limit);
+        code.jump(Code.IF_ICMPEQ, done);
+      }
+      code.jump(Code.GOTO, loop);
+      code.mark(done);
+      if (card.start > 0) {
+        code.load(count);
+        code.push(card.start);
+        code.jump(Code.IF_ICMPLT, fail);
+      }
+
+    } else if (pattern instanceof LookAhead) {
+      int res = local();
+      code.load(pos);
+      code.store(res);
+      generate(((LookAhead) pattern).pattern, res, fail);
+
+    } else {
+      // Call through a field holding the recognizer.
+      code.op(Code.ALOAD_0);
+      code.field(Code.GETFIELD, className, constant(pattern, RECOGNIZER), "L" + RECOGNIZER + ";");
+      code.aload(SEQ);
+      code.load(pos);
+      code.load(LENGTH);
+      code.invokeInterface(RECOGNIZER, "match", MATCH_DESC, 4);
+      code.op(Code.DUP);
+      code.store(pos);
+      code.jump(Code.IFLT, fail);
+    }
+  }
+
+  private void checkBounds(int pos, Label fail) {
+    code.load(pos);
+    code.load(LENGTH);
+    code.jump(Code.IF_ICMPGE, fail);
+  }
+
+  /**
+   * Loads the character at 'pos' into a new local, failing at end of input.
+   */
+  private int loadChar(int pos, Label fail) {
+    checkBounds(pos, fail);
+    int ch = local();
+    code.aload(SEQ);
+    code.load(pos);
+    code.invokeInterface(CHARSEQUENCE, "charAt", "(I)C", 2);
+    code.store(ch);
+    return ch;
+  }
+
+  private void compareChar(int ch, char expected, Label target) {
+    code.load(ch);
+    code.push(expected);
+    code.jump(Code.IF_ICMPEQ, target);
+  }
+
+  private int local() {
+    return locals++;
+  }
+
+  /**
+   * Adds a constant passed to the generated constructor, returning the name
+   * of the field holding it.
+   */
+  private String constant(Object value, String type) {
+    for (int i = 0; i < constants.size(); i++) {
+      if (constants.get(i) == value) {
+        return "f" + i;
+      }
+    }
+    constants.add(value);
+    fieldTypes.add(type);
+    return "f" + (constants.size() - 1);
+  }
+
+  // CLASS FILE
+
+  private byte[] classFile() {
+    try {
+      // Constructor copies the constants into typed fields.
+      Code init = new Code();
+      init.op(Code.ALOAD_0);
+      init.invoke(Code.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+      for (int i = 0; i < fieldTypes.size(); i++) {
+        init.op(Code.ALOAD_0);
+        init.aload(1);
+        init.push(i);
+        init.op(Code.AALOAD);
+        init.typeOp(Code.CHECKCAST, fieldTypes.get(i));
+        init.field(Code.PUTFIELD, className, "f" + i, "L" + fieldTypes.get(i) + ";");
+      }
+      init.op(Code.RETURN);
+
+      int thisClass = pool.cls(className);
+      int superClass = pool.cls("java/lang/Object");
+      int iface = pool.cls(RECOGNIZER);
+      int codeAttr = pool.utf8("Code");
+      int[] fieldNames = new int[fieldTypes.size()];
+      int[] fieldDescs = new int[fieldTypes.size()];
+      for (int i = 0; i < fieldTypes.size(); i++) {
+        fieldNames[i] = pool.utf8("f" + i);
+        fieldDescs[i] = pool.utf8("L" + fieldTypes.get(i) + ";");
+      }
+      int initName = pool.utf8("<init>");
+      int initDesc = pool.utf8("([Ljava/lang/Object;)V");
+      int matchName = pool.utf8("match");
+      int matchDesc = pool.utf8(MATCH_DESC);
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      pool.write(out);
+      out.writeShort(0x0001 | 0x0010 | 0x0020);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(1);
+      out.writeShort(iface);
+
+      out.writeShort(fieldTypes.size());
+      for (int i = 0; i < fieldTypes.size(); i++) {
+        out.writeShort(0x0002 | 0x0010);
+        out.writeShort(fieldNames[i]);
+        out.writeShort(fieldDescs[i]);
+        out.writeShort(0);
+      }
+
+      out.writeShort(2);
+      method(out, initName, initDesc, codeAttr, init, 4, 2);
+      method(out, matchName, matchDesc, codeAttr, code, 6, locals);
+      out.writeShort(0);
+      return bytes.toByteArray();
+
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void method(DataOutputStream out, int name, int desc, int codeAttr, Code code,
+      int maxStack, int maxLocals) throws IOException {
+    byte[] body = code.toByteArray();
+    out.writeShort(0x0001);
+    out.writeShort(name);
+    out.writeShort(desc);
+    out.writeShort(1);
+    out.writeShort(codeAttr);
+    out.writeInt(12 + body.length);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeShort(0);
+    out.writeShort(0);
+  }
+
+  /**
+   * Branch target within a method body.
+   */
+  private static class Label {
+
+    int position = -1;
+
+    // Pairs of (instruction offset, operand offset) waiting for this label.
+    final List<int[]> fixups = new ArrayList<>();
+
+  }
+
+  /**
+   * Bytecode buffer for a single method.
+   */
+  private final class Code {
+
+    static final int ICONST_M1 = 0x02;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ALOAD_0 = 0x2a;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+
+    private byte[] buf = new byte[256];
+
+    private int size;
+
+    private final List<Label> labels = new ArrayList<>();
+
+    int size() {
+      return size;
+    }
+
+    void op(int opcode) {
+      u1(opcode);
+    }
+
+    void load(int local) {
+      u1(ILOAD);
+      u1(local);
+    }
+
+    void aload(int local) {
+      u1(ALOAD);
+      u1(local);
+    }
+
+    void store(int local) {
+      u1(ISTORE);
+      u1(local);
+    }
+
+    void iinc(int local, int delta) {
+      u1(IINC);
+      u1(local);
+      u1(delta);
+    }
+
+    void push(int value) {
+      if (value >= -1 && value <= 5) {
+        u1(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        u1(SIPUSH);
+        u2(value);
+      } else {
+        u1(LDC_W);
+        u2(pool.integer(value));
+      }
+    }
+
+    void field(int opcode, String owner, String name, String desc) {
+      u1(opcode);
+      u2(pool.member(9, owner, name, desc));
+    }
+
+    void invoke(int opcode, String owner, String name, String desc) {
+      u1(opcode);
+      u2(pool.member(10, owner, name, desc));
+    }
+
+    void invokeInterface(String owner, String name, String desc, int argSlots) {
+      u1(INVOKEINTERFACE);
+      u2(pool.member(11, owner, name, desc));
+      u1(argSlots);
+      u1(0);
+    }
+
+    void typeOp(int opcode, String type) {
+      u1(opcode);
+      u2(pool.cls(type));
+    }
+
+    void jump(int opcode, Label label) {
+      int at = size;
+      u1(opcode);
+      if (label.position >= 0) {
+        u2(label.position - at);
+      } else {
+        label.fixups.add(new int[] { at, size });
+        labels.add(label);
+        u2(0);
+      }
+    }
+
+    void mark(Label label) {
+      label.position = size;
+    }
+
+    byte[] toByteArray() {
+      for (Label label : labels) {
+        for (int[] fixup : label.fixups) {
+          int offset = label.position - fixup[0];
+          buf[fixup[1]] = (byte) (offset >> 8);
+          buf[fixup[1] + 1] = (byte) offset;
+        }
+        label.fixups.clear();
+      }
+      return Arrays.copyOf(buf, size);
+    }
+
+    private void u1(int value) {
+      if (size == buf.length) {
+        buf = Arrays.copyOf(buf, size * 2);
+      }
+      buf[size++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+  }
+
+  /**
+   * Class file constant pool, sharing identical entries.
+   */
+  private static final class ConstantPool {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    private final Map<String, Integer> entries = new HashMap<>();
+
+    private int count = 1;
+
+    int utf8(String value) {
+      return entry("U" + value, () -> {
+        out.writeByte(1);
+        out.writeUTF(value);
+      });
+    }
+
+    int integer(int value) {
+      return entry("I" + value, () -> {
+        out.writeByte(3);
+        out.writeInt(value);
+      });
+    }
+
+    int cls(String name) {
+      int index = utf8(name);
+      return entry("C" + name, () -> {
+        out.writeByte(7);
+        out.writeShort(index);
+      });
+    }
+
+    /**
+     * Field (9), method (10) or interface method (11) reference.
+     */
+    int member(int tag, String owner, String name, String desc) {
+      int cls = cls(owner);
+      int nameIndex = utf8(name);
+      int descIndex = utf8(desc);
+      int nameAndType = entry("N" + name + ":" + desc, () -> {
+        out.writeByte(12);
+        out.writeShort(nameIndex);
+        out.writeShort(descIndex);
+      });
+      return entry(tag + owner + "." + name + ":" + desc, () -> {
+        out.writeByte(tag);
+        out.writeShort(cls);
+        out.writeShort(nameAndType);
+      });
+    }
+
+    void write(DataOutputStream dest) throws IOException {
+      dest.writeShort(count);
+      bytes.writeTo(dest);
+    }
+
+    private int entry(String key, Writer writer) {
+      Integer index = entries.get(key);
+      if (index == null) {
+        try {
+          writer.write();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        index = count++;
+        entries.put(key, index);
+      }
+      return index;
+    }
+
+    private interface Writer {
+      void write() throws IOException;
+    }
+  }
+
+  /**
+   * Defines a single generated class.
+   */
+  private static final class GeneratedLoader extends ClassLoader {
+
+    GeneratedLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+}
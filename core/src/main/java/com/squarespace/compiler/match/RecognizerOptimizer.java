@@ -0,0 +1,326 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.squarespace.compiler.match.Recognizers.AdaptiveChoice;
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Plus;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.QuestionMark;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Star;
+
+
+/**
+ * Rewrites a recognizer tree into a smaller equivalent one.
+ *
+ *  - nested sequences and choices are flattened, and single-child ones
+ *    replaced by the child
+ *  - runs of literals and single characters in a sequence become one literal
+ *  - single-character alternatives of a choice are merged into one set
+ *  - single-character recognizers are replaced by the cheapest equivalent:
+ *    a range, a short list of characters, or a bitset
+ *  - a cardinality of a cardinality is collapsed where the result is the same
+ *  - identical leaves are shared
+ *
+ * The rewritten tree matches exactly what the original matches. The only
+ * exception is a repetition of a pattern that can match empty, which loops
+ * forever in the original and may terminate after rewriting.
+ */
+final class RecognizerOptimizer {
+
+  // Character sets with more members than this are matched with a bitset.
+  private static final int LINEAR_LIMIT = 4;
+
+  private static final int CHARS = 0x10000;
+
+  private final Map<Object, Recognizer> interned = new HashMap<>();
+
+  private final Map<Recognizer, Recognizer> rewritten = new IdentityHashMap<>();
+
+  private RecognizerOptimizer() {
+  }
+
+  static Recognizer optimize(Recognizer pattern) {
+    return new RecognizerOptimizer().rewrite(pattern);
+  }
+
+  private Recognizer rewrite(Recognizer pattern) {
+    // Subtrees shared in the original stay shared.
+    Recognizer result = rewritten.get(pattern);
+    if (result == null) {
+      result = rewriteNode(pattern);
+      rewritten.put(pattern, result);
+    }
+    return result;
+  }
+
+  private Recognizer rewriteNode(Recognizer pattern) {
+    if (pattern instanceof Sequence && ((Sequence) pattern).patterns.length > 0) {
+      return sequence(((Sequence) pattern).patterns);
+    }
+    if (pattern instanceof Choice) {
+      return choice(((Choice) pattern).patterns, pattern instanceof AdaptiveChoice);
+    }
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      return cardinality(rewrite(card.pattern), card.start, card.limit);
+    }
+    if (pattern instanceof LookAhead) {
+      Recognizer child = rewrite(((LookAhead) pattern).pattern);
+      return child instanceof LookAhead ? child : new LookAhead(child);
+    }
+    if (pattern instanceof Group) {
+      return new Group(((Group) pattern).index, rewrite(((Group) pattern).pattern));
+    }
+    if (pattern instanceof Profiled) {
+      return new Profiled(((Profiled) pattern).name, rewrite(((Profiled) pattern).pattern));
+    }
+    if (pattern instanceof Literal) {
+      return literal(((Literal) pattern).literal);
+    }
+    BitSet members = DfaCompiler.members(pattern);
+    return members != null ? chars(members) : pattern;
+  }
+
+  private Recognizer sequence(Recognizer[] patterns) {
+    List<Recognizer> flat = new ArrayList<>();
+    for (Recognizer child : patterns) {
+      child = rewrite(child);
+      if (child instanceof Sequence && ((Sequence) child).patterns.length > 0) {
+        for (Recognizer grandchild : ((Sequence) child).patterns) {
+          flat.add(grandchild);
+        }
+      } else {
+        flat.add(child);
+      }
+    }
+
+    // Fuse each run of literals into one.
+    List<Recognizer> result = new ArrayList<>();
+    StringBuilder run = new StringBuilder();
+    for (Recognizer child : flat) {
+      String literal = literalOf(child);
+      if (literal != null && !literal.isEmpty()) {
+        run.append(literal);
+        continue;
+      }
+      flushLiteral(run, result);
+      result.add(child);
+    }
+    flushLiteral(run, result);
+
+    return result.size() == 1 ? result.get(0) : new Sequence(result.toArray(new Recognizer[result.size()]));
+  }
+
+  private void flushLiteral(StringBuilder run, List<Recognizer> result) {
+    if (run.length() == 1) {
+      result.add(chars(singleton(run.charAt(0))));
+    } else if (run.length() > 1) {
+      result.add(literal(run.toString()));
+    }
+    run.setLength(0);
+  }
+
+  private Recognizer choice(Recognizer[] patterns, boolean adaptive) {
+    List<Recognizer> flat = new ArrayList<>();
+    for (Recognizer child : patterns) {
+      child = rewrite(child);
+      if (child instanceof Choice) {
+        for (Recognizer grandchild : ((Choice) child).patterns) {
+          flat.add(grandchild);
+        }
+      } else {
+        flat.add(child);
+      }
+    }
+
+    // Merge single-character alternatives into one set, in place of the
+    // first of them, and drop duplicates.
+    List<Recognizer> result = new ArrayList<>();
+    BitSet union = null;
+    int index = -1;
+    for (Recognizer child : flat) {
+      BitSet members = DfaCompiler.members(child);
+      if (members != null) {
+        if (union == null) {
+          union = new BitSet(CHARS);
+          index = result.size();
+          result.add(null);
+        }
+        union.or(members);
+      } else if (!containsIdentical(result, child)) {
+        result.add(child);
+      }
+    }
+    if (union != null) {
+      result.set(index, chars(union));
+    }
+
+    if (result.size() == 1) {
+      return result.get(0);
+    }
+    Recognizer[] alternatives = result.toArray(new Recognizer[result.size()]);
+    return adaptive ? new AdaptiveChoice(alternatives) : new Choice(alternatives);
+  }
+
+  /**
+   * Builds a cardinality, collapsing a directly nested one when that gives
+   * the same result.
+   */
+  private Recognizer cardinality(Recognizer child, int start, int limit) {
+    // An outer range like {3,2} always fails, which no collapse preserves.
+    if (child instanceof Cardinality && (limit == 0 || start <= limit)) {
+      Cardinality inner = (Cardinality) child;
+
+      // (x*){a,b} => x*  Inner can't fail and consumes everything.
+      if (inner.start == 0 && inner.limit == 0) {
+        return inner;
+      }
+      // (x?){a,b} => x{0,b}  Inner can't fail and takes one x at a time.
+      if (inner.start == 0 && inner.limit == 1) {
+        return cardinality(inner.pattern, 0, limit);
+      }
+      // (x{c,}){1,b} => x{c,}  A second inner match always fails.
+      if (inner.limit == 0 && start == 1) {
+        return inner;
+      }
+      // (x+){0,b} => x*
+      if (inner.start == 1 && inner.limit == 0 && start == 0) {
+        return cardinality(inner.pattern, 0, 0);
+      }
+    }
+
+    if (start == 0 && limit == 0) {
+      return new Star(child);
+    }
+    if (start == 1 && limit == 0) {
+      return new Plus(child);
+    }
+    if (start == 0 && limit == 1) {
+      return new QuestionMark(child);
+    }
+    return new Cardinality(child, start, limit);
+  }
+
+  private Recognizer literal(String literal) {
+    String key = "literal:" + literal;
+    Recognizer result = interned.get(key);
+    if (result == null) {
+      result = new Literal(literal);
+      interned.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the cheapest recognizer for a set of characters, shared with any
+   * other use of the same set in the tree.
+   */
+  private Recognizer chars(BitSet members) {
+    Recognizer result = interned.get(members);
+    if (result != null) {
+      return result;
+    }
+
+    BitSet complement = (BitSet) members.clone();
+    complement.flip(0, CHARS);
+    int count = members.cardinality();
+    if (count == CHARS) {
+      result = Recognizers.any();
+    } else if (count == 0) {
+      result = new CharSet(members);
+    } else if (count == 1) {
+      result = characters(false, members);
+    } else if (isRange(members)) {
+      result = new CharacterRange(false, (char) members.nextSetBit(0), (char) (members.length() - 1));
+    } else if (isRange(complement)) {
+      result = new CharacterRange(true, (char) complement.nextSetBit(0), (char) (complement.length() - 1));
+    } else if (count <= LINEAR_LIMIT) {
+      result = characters(false, members);
+    } else if (CHARS - count <= LINEAR_LIMIT) {
+      result = characters(true, complement);
+    } else {
+      result = new CharSet(members);
+    }
+    interned.put(members, result);
+    return result;
+  }
+
+  private static Recognizer characters(boolean invert, BitSet set) {
+    char[] rest = new char[set.cardinality() - 1];
+    int first = set.nextSetBit(0);
+    int i = 0;
+    for (int ch = set.nextSetBit(first + 1); ch >= 0; ch = set.nextSetBit(ch + 1)) {
+      rest[i++] = (char) ch;
+    }
+    return new Characters(invert, (char) first, rest);
+  }
+
+  /**
+   * Returns the string a pattern matches, if it matches exactly one string.
+   */
+  private static String literalOf(Recognizer pattern) {
+    if (pattern instanceof Literal) {
+      return ((Literal) pattern).literal;
+    }
+    if (pattern instanceof Characters) {
+      Characters chars = (Characters) pattern;
+      return !chars.invert && chars.chars.length == 0 ? String.valueOf(chars.first) : null;
+    }
+    if (pattern instanceof CharacterRange) {
+      CharacterRange range = (CharacterRange) pattern;
+      return !range.invert && range.start == range.end ? String.valueOf(range.start) : null;
+    }
+    return null;
+  }
+
+  private static boolean isRange(BitSet set) {
+    return !set.isEmpty() && set.length() - set.nextSetBit(0) == set.cardinality();
+  }
+
+  private static BitSet singleton(char ch) {
+    BitSet result = new BitSet(CHARS);
+    result.set(ch);
+    return result;
+  }
+
+  private static boolean containsIdentical(List<Recognizer> list, Recognizer pattern) {
+    for (Recognizer item : list) {
+      if (item == pattern) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Registry of the statistics recorded by recognizers built with
+ * {@link Recognizers#profiled(String, Recognizers.Recognizer)}.
+ *
+ * Profiling is off unless the system property
+ * "com.squarespace.compiler.match.profile" is "true" or it is turned on with
+ * {@link #setEnabled(boolean)}. The setting is read when a pattern is built,
+ * so it must be on before the grammar's recognizers are created. Patterns
+ * built while it is off contain no wrappers and pay nothing.
+ */
+public final class RecognizerProfiles {
+
+  public static final String PROPERTY = "com.squarespace.compiler.match.profile";
+
+  private static final ConcurrentMap<String, Counters> COUNTERS = new ConcurrentHashMap<>();
+
+  private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+
+  private RecognizerProfiles() {
+  }
+
+  public static boolean enabled() {
+    return enabled;
+  }
+
+  /**
+   * Turns profiling on or off for patterns built from now on.
+   */
+  public static void setEnabled(boolean value) {
+    enabled = value;
+  }
+
+  /**
+   * Returns the statistics for each name, sorted by name. Counters are read
+   * one at a time while matching may continue, so the numbers of a single
+   * entry can be slightly out of step with each other.
+   */
+  public static Map<String, Snapshot> snapshot() {
+    Map<String, Snapshot> result = new TreeMap<>();
+    for (Map.Entry<String, Counters> entry : COUNTERS.entrySet()) {
+      Counters counters = entry.getValue();
+      result.put(entry.getKey(), new Snapshot(entry.getKey(), counters.calls.sum(), counters.matches.sum(),
+          counters.characters.sum(), counters.nanos.sum()));
+    }
+    return result;
+  }
+
+  /**
+   * Zeroes all counters.
+   */
+  public static void reset() {
+    for (Counters counters : COUNTERS.values()) {
+      counters.calls.reset();
+      counters.matches.reset();
+      counters.characters.reset();
+      counters.nanos.reset();
+    }
+  }
+
+  /**
+   * Counters for a name, shared by every recognizer profiled under it.
+   */
+  static Counters counters(String name) {
+    return COUNTERS.computeIfAbsent(name, k -> new Counters());
+  }
+
+  static final class Counters {
+
+    final LongAdder calls = new LongAdder();
+
+    final LongAdder matches = new LongAdder();
+
+    final LongAdder characters = new LongAdder();
+
+    final LongAdder nanos = new LongAdder();
+
+    void record(int pos, int end, long elapsed) {
+      calls.increment();
+      if (end != Recognizers.FAIL) {
+        matches.increment();
+        characters.add(end - pos);
+      }
+      nanos.add(elapsed);
+    }
+  }
+
+  /**
+   * Statistics for one name at the time of the snapshot.
+   */
+  public static final class Snapshot {
+
+    private final String name;
+
+    private final long calls;
+
+    private final long matches;
+
+    private final long characters;
+
+    private final long nanos;
+
+    Snapshot(String name, long calls, long matches, long characters, long nanos) {
+      this.name = name;
+      this.calls = calls;
+      this.matches = matches;
+      this.characters = characters;
+      this.nanos = nanos;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public long calls() {
+      return calls;
+    }
+
+    public long matches() {
+      return matches;
+    }
+
+    public long failures() {
+      return calls - matches;
+    }
+
+    /**
+     * Fraction of calls which matched, or 0 if there were no calls.
+     */
+    public double successRatio() {
+      return calls == 0 ? 0.0 : (double) matches / calls;
+    }
+
+    /**
+     * Total length of all successful matches.
+     */
+    public long characters() {
+      return characters;
+    }
+
+    /**
+     * Total time spent matching, including nested profiled recognizers.
+     */
+    public long nanos() {
+      return nanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: calls=%d matches=%d failures=%d chars=%d nanos=%d",
+          name, calls, matches, failures(), characters, nanos);
+    }
+  }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.ASCII_LIMIT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Reads and writes compiled recognizers in a compact binary form, so a
+ * service can load its tables at startup instead of building and compiling
+ * the recognizer trees on every launch.
+ *
+ * Each named pattern must be a character set or compile to a single DFA
+ * table (see {@link Recognizers#compile(Recognizer)}). The file starts with a magic
+ * number and format version, followed by the entry count and the entries:
+ *
+ * <pre>
+ *   name length (short), name (UTF-8), kind (byte), then
+ *     DFA:  classes, ASCII classes[128], runs, run starts (chars),
+ *           run classes, states, transitions[states * classes],
+ *           accept flags (bytes), follow[states]
+ *     SET:  words, words (longs)
+ * </pre>
+ *
+ * All numbers are big-endian ints unless noted. Tables are read with bulk
+ * buffer copies, so loading a memory-mapped file costs little more than the
+ * allocation of the arrays.
+ *
+ * The {@link #main(String[])} method writes a file from one or more classes
+ * implementing {@code Supplier<Map<String, Recognizer>>}, and is run at build
+ * time by the Gradle task 'recognizerTables'.
+ */
+public final class RecognizerTables {
+
+  static final int MAGIC = 0x53515254;
+
+  static final int VERSION = 1;
+
+  private static final byte KIND_DFA = 1;
+
+  private static final byte KIND_SET = 2;
+
+  private RecognizerTables() {
+  }
+
+  /**
+   * Compiles each pattern and encodes the tables, keeping the map's order.
+   * Throws IllegalArgumentException if a pattern doesn't compile to a single
+   * table or character set.
+   */
+  public static byte[] encode(Map<String, Recognizer> patterns) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(patterns.size());
+      for (Map.Entry<String, Recognizer> entry : patterns.entrySet()) {
+        byte[] name = entry.getKey().getBytes(UTF_8);
+        out.writeShort(name.length);
+        out.write(name);
+
+        // Character sets are kept as they are, since a bit test beats a table lookup.
+        Recognizer pattern = entry.getValue();
+        Recognizer compiled = pattern instanceof CharSet ? pattern : DfaCompiler.compile(pattern);
+        if (compiled instanceof CharSet) {
+          out.writeByte(KIND_SET);
+          long[] words = ((CharSet) compiled).toBitSet().toLongArray();
+          out.writeInt(words.length);
+          for (long word : words) {
+            out.writeLong(word);
+          }
+        } else if (compiled instanceof Dfa) {
+          out.writeByte(KIND_DFA);
+          writeDfa(out, (Dfa) compiled);
+        } else {
+          throw new IllegalArgumentException("pattern '" + entry.getKey() + "' can't be compiled to a single table");
+        }
+      }
+    } catch (IOException e) {
+      // Not reachable writing to memory.
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Encodes the patterns and writes them to the file.
+   */
+  public static void write(Map<String, Recognizer> patterns, Path path) throws IOException {
+    Files.write(path, encode(patterns));
+  }
+
+  /**
+   * Loads the tables from the buffer's position onwards. Throws
+   * IllegalArgumentException if the data is not a table file of this version
+   * or is truncated.
+   */
+  public static Map<String, Recognizer> load(ByteBuffer buffer) {
+    ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IllegalArgumentException("not a recognizer table file");
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("unsupported recognizer table version " + version);
+      }
+      int count = in.getInt();
+      Map<String, Recognizer> result = new LinkedHashMap<>();
+      for (int i = 0; i < count; i++) {
+        byte[] name = new byte[in.getShort() & 0xffff];
+        in.get(name);
+        byte kind = in.get();
+        switch (kind) {
+          case KIND_DFA:
+            result.put(new String(name, UTF_8), readDfa(in));
+            break;
+
+          case KIND_SET:
+            long[] words = new long[in.getInt()];
+            in.asLongBuffer().get(words);
+            in.position(in.position() + words.length * 8);
+            result.put(new String(name, UTF_8), new CharSet(BitSet.valueOf(words)));
+            break;
+
+          default:
+            throw new IllegalArgumentException("unknown table kind " + kind);
+        }
+      }
+      return result;
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("truncated recognizer table file", e);
+    }
+  }
+
+  /**
+   * Memory-maps the file and loads the tables.
+   */
+  public static Map<String, Recognizer> load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Writes a table file. Arguments are the output path followed by the names
+   * of classes implementing {@code Supplier<Map<String, Recognizer>>}, whose
+   * maps are merged in order.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: RecognizerTables <output> <supplier class> [<supplier class> ...]");
+      System.exit(1);
+    }
+    Map<String, Recognizer> patterns = new LinkedHashMap<>();
+    for (int i = 1; i < args.length; i++) {
+      @SuppressWarnings("unchecked")
+      Supplier<Map<String, Recognizer>> supplier =
+          (Supplier<Map<String, Recognizer>>) Class.forName(args[i]).getDeclaredConstructor().newInstance();
+      patterns.putAll(supplier.get());
+    }
+    Path output = Paths.get(args[0]);
+    if (output.getParent() != null) {
+      Files.createDirectories(output.getParent());
+    }
+    write(patterns, output);
+  }
+
+  private static void writeDfa(DataOutputStream out, Dfa dfa) throws IOException {
+    out.writeInt(dfa.classes);
+    writeInts(out, dfa.asciiClasses);
+    out.writeInt(dfa.runStarts.length);
+    for (char ch : dfa.runStarts) {
+      out.writeChar(ch);
+    }
+    writeInts(out, dfa.runClasses);
+    out.writeInt(dfa.states());
+    writeInts(out, dfa.transitions);
+    for (boolean flag : dfa.accept) {
+      out.writeByte(flag ? 1 : 0);
+    }
+    writeInts(out, dfa.follow);
+  }
+
+  private static Dfa readDfa(ByteBuffer in) {
+    int classes = in.getInt();
+    int[] asciiClasses = readInts(in, ASCII_LIMIT);
+    int runs = in.getInt();
+    char[] runStarts = new char[runs];
+    in.asCharBuffer().get(runStarts);
+    in.position(in.position() + runs * 2);
+    int[] runClasses = readInts(in, runs);
+    int states = in.getInt();
+    int[] transitions = readInts(in, states * classes);
+    boolean[] accept = new boolean[states];
+    for (int i = 0; i < states; i++) {
+      accept[i] = in.get() != 0;
+    }
+    int[] follow = readInts(in, states);
+    return new Dfa(classes, asciiClasses, runStarts, runClasses, transitions, accept, follow);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer in, int count) {
+    int[] result = new int[count];
+    in.asIntBuffer().get(result);
+    in.position(in.position() + count * 4);
+    return result;
+  }
+
+}
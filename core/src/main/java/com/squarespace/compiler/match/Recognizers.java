@@ -24,6 +24,22 @@ import static com.squarespace.compiler.text.DefaultCharClassifier.LOWERCASE;
 import static com.squarespace.compiler.text.DefaultCharClassifier.UNDERSCORE;
 import static com.squarespace.compiler.text.DefaultCharClassifier.UPPERCASE;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.squarespace.compiler.common.StringView;
 import com.squarespace.compiler.text.CharClassifier;
 import com.squarespace.compiler.text.DefaultCharClassifier;
 
@@ -57,13 +73,52 @@ public class Recognizers {
 
   private static final CharClassifier CLASSIFIER = new DefaultCharClassifier();
 
+  // Recognizers are immutable, so parameterless factories share one instance.
+
+  private static final Recognizer DIGIT_MATCH = new CharacterClass(DIGIT, CLASSIFIER);
+
+  private static final Recognizer DIGITS_MATCH = new Plus(DIGIT_MATCH);
+
+  private static final Recognizer HEXDIGIT_MATCH = new CharacterClass(HEXDIGIT, CLASSIFIER);
+
+  private static final Recognizer NOT_HEXDIGIT_MATCH = new CharacterClass(HEXDIGIT, true, CLASSIFIER);
+
+  private static final Recognizer NOT_ASCII_MATCH = new CharacterRange(true, '\u0000', '\u009f');
+
+  private static final Recognizer WORD_MATCH =
+      new CharacterClass(LOWERCASE | UPPERCASE | DIGIT | UNDERSCORE, CLASSIFIER);
+
+  private static final Recognizer WORDDASH_MATCH =
+      new CharacterClass(LOWERCASE | UPPERCASE | DIGIT | UNDERSCORE | DASH, CLASSIFIER);
+
   private Recognizers() {
   }
 
+  /**
+   * Matches the longest alternative, like {@link #choice(Recognizer...)}, but
+   * samples which alternatives win and tries the most frequent winners first.
+   * Once the best result so far can't be beaten by any alternative left to
+   * try, the rest are skipped. The result is always the same as choice().
+   *
+   * The order is kept in an immutable table swapped in atomically, so the
+   * recognizer can be shared between threads without locking.
+   */
+  public static Recognizer adaptiveChoice(Recognizer... patterns) {
+    return new AdaptiveChoice(patterns);
+  }
+
   public static Recognizer any() {
     return ANY;
   }
 
+  /**
+   * Returns a budget of the given number of steps, for matching untrusted
+   * input. Each character read during a match costs one step.
+   */
+  public static MatchBudget budget(long steps) {
+    return new MatchBudget(steps);
+  }
+
   public static Recognizer cardinality(Recognizer pattern, int minimum, int maximum) {
     return new Cardinality(pattern, minimum, maximum);
   }
@@ -80,30 +135,153 @@ public class Recognizers {
     return new CharacterRange(start, end);
   }
 
+  /**
+   * Starts building a set of characters, matched with a constant-time
+   * membership test however many characters and ranges it contains.
+   */
+  public static CharSetBuilder charSet() {
+    return new CharSetBuilder();
+  }
+
   public static Recognizer choice(Recognizer... patterns) {
     return new Recognizers.Choice(patterns);
   }
 
+  /**
+   * Compiles the given recognizer tree into a table-driven DFA. The result
+   * matches exactly what the original tree matches, so it can be used as a
+   * drop-in replacement.
+   *
+   * Subtrees whose greedy, non-backtracking match always agrees with the
+   * longest-match semantics of a DFA are folded into a single transition
+   * table. Anything else (look-aheads, custom recognizers, ambiguous
+   * repetitions) is kept as-is, with its compilable children compiled.
+   */
+  public static Recognizer compile(Recognizer pattern) {
+    return DfaCompiler.compile(pattern);
+  }
+
+  /**
+   * Returns a finder which locates successive matches of the pattern, skipping
+   * positions where the pattern can't start. The finder can be reset and
+   * reused to avoid allocating.
+   */
+  public static Finder finder(Recognizer pattern) {
+    return new Finder(pattern);
+  }
+
+  /**
+   * Parses a java.util.regex pattern into the equivalent recognizer tree.
+   * Supports literals, escapes, '.', character classes and ranges,
+   * \d \w \s and their negations, the quantifiers ? * + {n} {n,} {n,m},
+   * alternation, non-capturing groups and look-aheads.
+   *
+   * The result matches like the regex anchored at the start position, except
+   * that a choice takes its longest alternative. Patterns which need a
+   * repetition or choice to give back characters, such as a*a, are matched
+   * with {@link #nfa(Recognizer)}, which finds the longest match any path
+   * allows.
+   *
+   * Throws PatternSyntaxException for invalid or unsupported syntax,
+   * including capturing groups, lazy quantifiers, anchors and back references,
+   * and possessive quantifiers in patterns which need backtracking.
+   */
+  public static Recognizer fromRegex(String regex) {
+    return RegexParser.parse(regex);
+  }
+
+  /**
+   * Rewrites a recognizer tree into a smaller equivalent one, flattening
+   * nested sequences and choices, fusing literals, merging character sets
+   * and sharing identical leaves. Best applied once to a fully assembled
+   * pattern, before {@link #compile(Recognizer)} or
+   * {@link #generate(Recognizer)}.
+   */
+  public static Recognizer optimize(Recognizer pattern) {
+    return RecognizerOptimizer.optimize(pattern);
+  }
+
+  /**
+   * Generates a class dedicated to the given recognizer tree, with the whole
+   * pattern inlined into a single match method. This avoids the megamorphic
+   * interface calls the interpreted tree makes at each node. The result
+   * matches exactly what the original tree matches.
+   *
+   * Each call defines a new class, so generate once and reuse the result.
+   * Patterns too large to generate, or which capture groups, are returned
+   * unchanged.
+   */
+  public static Recognizer generate(Recognizer pattern) {
+    return RecognizerGenerator.generate(pattern);
+  }
+
   public static Recognizer decimal() {
     return new Recognizers.Decimal();
   }
 
   public static Recognizer digit() {
-    return charClass(DIGIT, CLASSIFIER);
+    return DIGIT_MATCH;
   }
 
   public static Recognizer digits() {
-    return oneOrMore(digit());
+    return DIGITS_MATCH;
+  }
+
+  /**
+   * Matches a {@link #number()} followed by an optional '%' or unit of ASCII
+   * letters, such as "12.5px", recording the unit's span in the value.
+   */
+  public static NumberRecognizer dimension() {
+    return NumberRecognizers.DIMENSION;
+  }
+
+  /**
+   * Captures the span matched by the pattern as group 'index', when matched
+   * with {@link Recognizer#match(CharSequence, int, int, int[])}.
+   */
+  public static Recognizer group(int index, Recognizer pattern) {
+    return new Group(index, pattern);
   }
 
   public static Recognizer hexdigit() {
-    return charClass(HEXDIGIT, CLASSIFIER);
+    return HEXDIGIT_MATCH;
+  }
+
+  /**
+   * Matches one or more hex digits, converting them to a long. Fails if the
+   * value doesn't fit in 64 bits.
+   */
+  public static NumberRecognizer hexNumber() {
+    return NumberRecognizers.HEX;
+  }
+
+  /**
+   * Matches an optionally signed decimal integer, converting it to a long.
+   * Fails if the value is out of range.
+   */
+  public static NumberRecognizer integer() {
+    return NumberRecognizers.INTEGER;
   }
 
   public static Recognizer literal(String str) {
     return new Literal(str);
   }
 
+  /**
+   * Matches the longest of the given literal strings, in a single pass over
+   * the input regardless of how many literals there are.
+   */
+  public static Recognizer literals(String... values) {
+    return new Literals(false, values);
+  }
+
+  /**
+   * Matches the longest of the given literal strings, ignoring case.
+   */
+  public static Recognizer literalsIgnoreCase(String... values) {
+    return new Literals(true, values);
+  }
+
   public static Recognizer lookAhead(Recognizer pattern) {
     return new LookAhead(pattern);
   }
@@ -112,8 +290,25 @@ public class Recognizers {
     return new Plus(pattern);
   }
 
+  /**
+   * Matches the pattern by running all paths through it in parallel,
+   * returning the end of the longest match any path allows. Unlike the
+   * pattern itself, a repetition or choice can settle for a shorter match
+   * so the rest of the pattern succeeds, the way a backtracking regular
+   * expression would, but in time linear in the input for a given pattern.
+   * Look-aheads and recognizers other than the ones built here are the
+   * exception: they are rerun at each position they are reached, so the
+   * linear bound only holds if each of those runs takes constant time.
+   *
+   * Throws IllegalArgumentException if the pattern is too large, for
+   * example a repetition with a very large bound.
+   */
+  public static Recognizer nfa(Recognizer pattern) {
+    return new PikeVm(pattern);
+  }
+
   public static Recognizer notAscii() {
-    return notCharRange('\u0000', '\u009f');
+    return NOT_ASCII_MATCH;
   }
 
   public static Recognizer notCharacters(char first, char... characters) {
@@ -129,27 +324,148 @@ public class Recognizers {
   }
 
   public static Recognizer notHexdigit() {
-    return notCharClass(HEXDIGIT, CLASSIFIER);
+    return NOT_HEXDIGIT_MATCH;
+  }
+
+  /**
+   * Matches the pattern against the sequence, using the String or char[]
+   * entry point when the sequence is a String, a {@link StringView} or a
+   * CharBuffer backed by an array.
+   */
+  public static int match(Recognizer pattern, CharSequence seq, int pos, int length) {
+    if (seq instanceof String) {
+      return pattern.match((String) seq, pos, length);
+    }
+    int offset;
+    int end;
+    if (seq instanceof StringView) {
+      StringView view = (StringView) seq;
+      offset = view.start();
+      end = pattern.match(view.data(), offset + pos, offset + length);
+    } else if (seq instanceof CharBuffer && ((CharBuffer) seq).hasArray()) {
+      CharBuffer buf = (CharBuffer) seq;
+      offset = buf.arrayOffset() + buf.position();
+      end = pattern.match(buf.array(), offset + pos, offset + length);
+    } else {
+      return pattern.match(seq, pos, length);
+    }
+    return end == FAIL ? FAIL : end - offset;
+  }
+
+  /**
+   * Returns a lower bound on the length of any match of the pattern.
+   * Sequences and choices use it to fail without descending at positions
+   * too close to the end of the input.
+   */
+  public static int minLength(Recognizer pattern) {
+    return Lengths.minimum(pattern);
+  }
+
+  /**
+   * Returns an upper bound on the length of any match of the pattern, or
+   * Integer.MAX_VALUE if the length is unbounded or can't be determined.
+   */
+  public static int maxLength(Recognizer pattern) {
+    return Lengths.maximum(pattern);
+  }
+
+  /**
+   * Matches the pattern at the start of each input, storing the end of the
+   * match, or FAIL, at the same index in 'ends'. The match need not reach the
+   * end of the input. Large batches are split across the common fork/join
+   * pool.
+   */
+  public static void matchAll(Recognizer pattern, CharSequence[] inputs, int[] ends) {
+    BatchMatch.match(pattern, Arrays.asList(inputs), ends, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Matches the pattern at the start of each input, as for
+   * {@link #matchAll(Recognizer, CharSequence[], int[])}.
+   */
+  public static void matchAll(Recognizer pattern, List<? extends CharSequence> inputs, int[] ends) {
+    matchAll(pattern, inputs, ends, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Matches the pattern at the start of each input, splitting large batches
+   * across the given pool.
+   */
+  public static void matchAll(Recognizer pattern, List<? extends CharSequence> inputs, int[] ends,
+      ForkJoinPool pool) {
+    if (!(inputs instanceof RandomAccess)) {
+      inputs = new ArrayList<>(inputs);
+    }
+    BatchMatch.match(pattern, inputs, ends, pool);
+  }
+
+  /**
+   * Returns the start of the first match of the pattern in the region
+   * [from, to) of the sequence, or FAIL if there is none. When searching
+   * repeatedly with the same pattern use a {@link #finder(Recognizer)}.
+   */
+  public static int search(Recognizer pattern, CharSequence seq, int from, int to) {
+    Finder finder = new Finder(pattern).reset(seq, from, to);
+    return finder.find() ? finder.start() : FAIL;
+  }
+
+  /**
+   * Records how often the pattern is tried, how often it matches, how many
+   * characters it matches and how long it takes, under the given name in
+   * {@link RecognizerProfiles}. If profiling is off the pattern is returned
+   * as is, so the wrapper can be left in place at no cost.
+   */
+  public static Recognizer profiled(String name, Recognizer pattern) {
+    return RecognizerProfiles.enabled() ? new Profiled(name, pattern) : pattern;
   }
 
   public static Recognizer sequence(Recognizer... patterns) {
     return new Recognizers.Sequence(patterns);
   }
 
+  /**
+   * Returns a matcher which takes its input in chunks, for matching text
+   * which isn't held in memory. The pattern must compile to a single table
+   * (see {@link #compile(Recognizer)}), or an IllegalArgumentException is
+   * thrown.
+   */
+  public static StreamMatcher streamMatcher(Recognizer pattern) {
+    return new StreamMatcher(pattern);
+  }
+
+  /**
+   * Builds a recognizer which matches the pattern against UTF-8 bytes
+   * directly, without decoding them to characters first. Capture groups
+   * are ignored. Throws IllegalArgumentException if the pattern contains a
+   * recognizer which can't be mirrored over bytes.
+   */
+  public static Utf8Recognizer utf8(Recognizer pattern) {
+    return Utf8Recognizers.build(pattern);
+  }
+
   public static Recognizer whitespace() {
     return WHITESPACE;
   }
 
+  /**
+   * Matches an optionally signed decimal number with an optional fraction
+   * and exponent, following the rules of {@link #decimal()}, converting it
+   * to a double.
+   */
+  public static NumberRecognizer number() {
+    return NumberRecognizers.NUMBER;
+  }
+
   public static Recognizer notWhitespace() {
     return NOT_WHITESPACE;
   }
 
   public static Recognizer word() {
-    return charClass(LOWERCASE | UPPERCASE | DIGIT | UNDERSCORE, CLASSIFIER);
+    return WORD_MATCH;
   }
 
   public static Recognizer worddash() {
-    return charClass(LOWERCASE | UPPERCASE | DIGIT | UNDERSCORE | DASH, CLASSIFIER);
+    return WORDDASH_MATCH;
   }
 
   public static Recognizer zeroOrOne(Recognizer pattern) {
@@ -164,6 +480,28 @@ public class Recognizers {
     return new Cardinality(pattern, limit);
   }
 
+  /**
+   * Indicates whether the pattern contains a group.
+   */
+  static boolean captures(Recognizer pattern) {
+    if (pattern instanceof Group) {
+      return true;
+    }
+    if (pattern instanceof Sequence) {
+      return ((Sequence) pattern).capturing;
+    }
+    if (pattern instanceof Choice) {
+      return ((Choice) pattern).capturing;
+    }
+    if (pattern instanceof Cardinality) {
+      return ((Cardinality) pattern).capturing;
+    }
+    if (pattern instanceof Profiled) {
+      return captures(((Profiled) pattern).pattern);
+    }
+    return pattern instanceof LookAhead && captures(((LookAhead) pattern).pattern);
+  }
+
   /**
    * Matches any character.
    */
@@ -172,6 +510,16 @@ public class Recognizers {
     public int match(CharSequence seq, int pos, int length) {
       return (pos < length) ? pos + 1 : FAIL;
     }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      return (pos < length) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      return (pos < length) ? pos + 1 : FAIL;
+    }
   }
 
   /**
@@ -179,11 +527,13 @@ public class Recognizers {
    */
   static class Cardinality implements Recognizer {
 
-    private final Recognizer pattern;
+    final Recognizer pattern;
+
+    final int start;
 
-    private final int start;
+    final int limit;
 
-    private final int limit;
+    final boolean capturing;
 
     Cardinality(Recognizer pattern, int limit) {
       this(pattern, 0, limit);
@@ -193,6 +543,7 @@ public class Recognizers {
       this.pattern = pattern;
       this.start = start;
       this.limit = limit;
+      this.capturing = captures(pattern);
     }
 
     @Override
@@ -212,6 +563,38 @@ public class Recognizers {
       }
       return start > 0 ? (count < start ? FAIL : result) : result;
     }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      if (!capturing) {
+        return match(seq, pos, length);
+      }
+
+      // Find the start of the last iteration, then replay only that one, so
+      // an iteration which fails partway can't leave its groups behind.
+      int result = pos;
+      int last = FAIL;
+      int count = 0;
+      while (true) {
+        pos = pattern.match(seq, result, length);
+        if (pos == FAIL) {
+          break;
+        }
+        count++;
+        last = result;
+        result = pos;
+        if (count == limit) {
+          break;
+        }
+      }
+      if (start > 0 && count < start) {
+        return FAIL;
+      }
+      if (last != FAIL) {
+        pattern.match(seq, last, length, groups);
+      }
+      return result;
+    }
   }
 
   /**
@@ -219,11 +602,11 @@ public class Recognizers {
    */
   static class Characters implements Recognizer {
 
-    private final boolean invert;
+    final boolean invert;
 
-    private final char first;
+    final char first;
 
-    private final char[] chars;
+    final char[] chars;
 
     Characters(boolean invert, char first, char... chars) {
       this.invert = invert;
@@ -233,20 +616,30 @@ public class Recognizers {
 
     @Override
     public int match(CharSequence seq, int pos, int len) {
-      if (pos < len) {
-        char actual = seq.charAt(pos);
-        if (actual == first) {
-          return invert ? FAIL : pos + 1;
-        }
-        for (char expected : chars) {
-          if (actual == expected) {
-            return invert ? FAIL : pos + 1;
-          }
+      return pos < len && test(seq.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(String str, int pos, int len) {
+      return pos < len && test(str.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int len) {
+      return pos < len && test(buf[pos]) ? pos + 1 : FAIL;
+    }
+
+    private boolean test(char actual) {
+      if (actual == first) {
+        return !invert;
+      }
+      for (char expected : chars) {
+        if (actual == expected) {
+          return !invert;
         }
-        // Nothing matched, so inverse succeeds.
-        return invert ? pos + 1 : FAIL;
       }
-      return FAIL;
+      // Nothing matched, so inverse succeeds.
+      return invert;
     }
   }
 
@@ -255,11 +648,11 @@ public class Recognizers {
    */
   static class CharacterClass implements Recognizer {
 
-    private final int bitmask;
+    final int bitmask;
 
-    private final boolean invert;
+    final boolean invert;
 
-    private final CharClassifier classifier;
+    final CharClassifier classifier;
 
     CharacterClass(int charClass, CharClassifier classifier) {
       this(charClass, false, classifier);
@@ -273,11 +666,21 @@ public class Recognizers {
 
     @Override
     public int match(CharSequence seq, int pos, int length) {
-      if (pos < length) {
-        boolean result = this.classifier.isMember(seq.charAt(pos), bitmask);
-        return invert ? (result ? FAIL : pos + 1) : (result ? pos + 1 : FAIL);
-      }
-      return FAIL;
+      return pos < length && test(seq.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      return pos < length && test(str.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      return pos < length && test(buf[pos]) ? pos + 1 : FAIL;
+    }
+
+    private boolean test(char ch) {
+      return this.classifier.isMember(ch, bitmask) != invert;
     }
 
   }
@@ -289,11 +692,11 @@ public class Recognizers {
    */
   static class CharacterRange implements Recognizer {
 
-    private final boolean invert;
+    final boolean invert;
 
-    private final char start;
+    final char start;
 
-    private final char end;
+    final char end;
 
     CharacterRange(char start, char end) {
       this(false, start, end);
@@ -307,31 +710,189 @@ public class Recognizers {
 
     @Override
     public int match(CharSequence seq, int pos, int len) {
-      if (pos < len) {
-        char ch = seq.charAt(pos);
-        boolean result = invert ? (ch < start || ch > end) : (ch >= start && ch <= end);
-        return result ? pos + 1 : FAIL;
+      return pos < len && test(seq.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(String str, int pos, int len) {
+      return pos < len && test(str.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int len) {
+      return pos < len && test(buf[pos]) ? pos + 1 : FAIL;
+    }
+
+    private boolean test(char ch) {
+      return invert ? (ch < start || ch > end) : (ch >= start && ch <= end);
+    }
+
+  }
+
+  /**
+   * Matches a character from a set, using a bitset.
+   *
+   * ASCII is tested against two words held in fields. The rest of the BMP is
+   * split into pages of 256 characters, each a bitset of 4 words. Pages with
+   * no members are null and pages where every character is a member share a
+   * single array, so sets made of a few wide ranges stay small.
+   */
+  static class CharSet implements Recognizer {
+
+    private static final int PAGE_SHIFT = 8;
+
+    private static final int PAGE_WORDS = (1 << PAGE_SHIFT) / 64;
+
+    private static final long[] FULL_PAGE = new long[] { -1L, -1L, -1L, -1L };
+
+    private static final long[] EMPTY_PAGE = new long[PAGE_WORDS];
+
+    final long ascii0;
+
+    final long ascii1;
+
+    final long[][] pages;
+
+    CharSet(BitSet set) {
+      long[] words = Arrays.copyOf(set.toLongArray(), 0x10000 / 64);
+      this.ascii0 = words[0];
+      this.ascii1 = words[1];
+      this.pages = new long[0x10000 >> PAGE_SHIFT][];
+      for (int i = 0; i < pages.length; i++) {
+        long[] page = Arrays.copyOfRange(words, i * PAGE_WORDS, (i + 1) * PAGE_WORDS);
+        if (Arrays.equals(page, FULL_PAGE)) {
+          pages[i] = FULL_PAGE;
+        } else if (!Arrays.equals(page, EMPTY_PAGE)) {
+          pages[i] = page;
+        }
       }
-      return FAIL;
     }
 
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      return pos < length && contains(seq.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      return pos < length && contains(str.charAt(pos)) ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      return pos < length && contains(buf[pos]) ? pos + 1 : FAIL;
+    }
+
+    boolean contains(char ch) {
+      // Shifts only use the low 6 bits of the character.
+      if (ch < 64) {
+        return (ascii0 & (1L << ch)) != 0;
+      }
+      if (ch < 128) {
+        return (ascii1 & (1L << ch)) != 0;
+      }
+      long[] page = pages[ch >>> PAGE_SHIFT];
+      return page != null && (page[(ch >>> 6) & (PAGE_WORDS - 1)] & (1L << ch)) != 0;
+    }
+
+    BitSet toBitSet() {
+      BitSet result = new BitSet(0x10000);
+      for (int i = 0; i < pages.length; i++) {
+        if (pages[i] != null) {
+          BitSet page = BitSet.valueOf(pages[i]);
+          for (int j = page.nextSetBit(0); j >= 0; j = page.nextSetBit(j + 1)) {
+            result.set((i << PAGE_SHIFT) + j);
+          }
+        }
+      }
+      return result;
+    }
   }
 
   /**
-   * Return result from first matcher that matches.
+   * Return the longest result of all alternatives.
+   *
+   * The set of characters each alternative can start with is computed up
+   * front, and only the alternatives which could match the next character
+   * are tried.
    */
   static class Choice implements Recognizer {
 
-    private final Recognizer[] patterns;
+    // Index into the dispatch table for a character outside ASCII.
+    private static final int WIDE = FirstSets.WIDE;
+
+    // Index into the dispatch table at the end of the input.
+    private static final int END = FirstSets.WIDE + 1;
+
+    final Recognizer[] patterns;
+
+    final BitSet first;
+
+    final boolean capturing;
+
+    // Positions with fewer characters left than this fail without descending.
+    final int minimum;
+
+    // Alternatives which may match, indexed by the next character.
+    private final Recognizer[][] dispatch;
 
     Choice(Recognizer[] patterns) {
+      this(patterns, true);
+    }
+
+    /**
+     * Builds the choice, leaving out the dispatch table when a subclass
+     * selects the candidates itself.
+     */
+    Choice(Recognizer[] patterns, boolean table) {
       this.patterns = patterns;
+      this.minimum = Lengths.choice(patterns);
+
+      boolean capturing = false;
+      for (Recognizer pattern : patterns) {
+        capturing |= captures(pattern);
+      }
+      this.capturing = capturing;
+
+      BitSet[] firsts = new BitSet[patterns.length];
+      this.first = new BitSet(FirstSets.SIZE);
+      for (int i = 0; i < patterns.length; i++) {
+        firsts[i] = FirstSets.first(patterns[i]);
+        first.or(firsts[i]);
+      }
+
+      if (!table) {
+        this.dispatch = null;
+        return;
+      }
+
+      // Build the table, sharing identical rows. Alternatives which may
+      // match without consuming a character are tried everywhere.
+      this.dispatch = new Recognizer[END + 1][];
+      Map<List<Recognizer>, Recognizer[]> rows = new HashMap<>();
+      for (int index = 0; index <= END; index++) {
+        List<Recognizer> row = new ArrayList<>();
+        for (int i = 0; i < patterns.length; i++) {
+          if (firsts[i].get(FirstSets.NULLABLE) || (index != END && firsts[i].get(index))) {
+            row.add(patterns[i]);
+          }
+        }
+        Recognizer[] shared = rows.get(row);
+        if (shared == null) {
+          shared = row.toArray(new Recognizer[row.size()]);
+          rows.put(row, shared);
+        }
+        dispatch[index] = shared;
+      }
     }
 
     @Override
     public int match(CharSequence seq, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
       int save = FAIL;
-      for (Recognizer pattern : patterns) {
+      for (Recognizer pattern : candidates(seq, pos, length)) {
         // Try choices until we see one that advances past current position.
         int res = pattern.match(seq, pos, length);
         if (res > save) {
@@ -340,6 +901,219 @@ public class Recognizers {
       }
       return save;
     }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      if (!capturing) {
+        return match(seq, pos, length);
+      }
+
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+
+      // Find the longest alternative, then replay it to record its groups.
+      int save = FAIL;
+      Recognizer longest = null;
+      for (Recognizer pattern : candidates(seq, pos, length)) {
+        int res = pattern.match(seq, pos, length);
+        if (res > save) {
+          save = res;
+          longest = pattern;
+        }
+      }
+      return longest == null ? FAIL : longest.match(seq, pos, length, groups);
+    }
+
+    /**
+     * Alternatives which may match at 'pos'.
+     */
+    Recognizer[] candidates(CharSequence seq, int pos, int length) {
+      return dispatch[pos < length ? Math.min(seq.charAt(pos), WIDE) : END];
+    }
+  }
+
+  /**
+   * Choice whose alternatives are tried in order of how often they gave the
+   * longest match. Bounds on the alternatives' lengths let the search stop
+   * as soon as none of the remaining ones could produce a longer match.
+   *
+   * One call in SAMPLE_RATE, chosen at random, records its winner. Picking
+   * calls with a thread-local random rather than a shared counter means
+   * unsampled calls write no shared state, so threads matching the same
+   * choice don't contend for it. Every REORDER_INTERVAL samples the
+   * alternatives are re-ranked, the counts are halved so the order follows
+   * changes in the input, and a new immutable order is published through a
+   * volatile field. The order replaces the plain choice's dispatch table.
+   */
+  static class AdaptiveChoice extends Choice {
+
+    static final int SAMPLE_RATE = 16;
+
+    static final int REORDER_INTERVAL = 256;
+
+    private static final int END = FirstSets.WIDE + 1;
+
+    private final BitSet[] firsts;
+
+    private final int[] maximum;
+
+    private final AtomicIntegerArray hits;
+
+    private final AtomicInteger samples = new AtomicInteger();
+
+    private volatile Order order;
+
+    AdaptiveChoice(Recognizer[] patterns) {
+      super(patterns, false);
+      this.firsts = new BitSet[patterns.length];
+      this.maximum = new int[patterns.length];
+      int[] ranking = new int[patterns.length];
+      for (int i = 0; i < patterns.length; i++) {
+        firsts[i] = FirstSets.first(patterns[i]);
+        maximum[i] = Lengths.maximum(patterns[i]);
+        ranking[i] = i;
+      }
+      this.hits = new AtomicIntegerArray(patterns.length);
+      this.order = new Order(ranking);
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      Order order = this.order;
+      int index = pos < length ? Math.min(seq.charAt(pos), FirstSets.WIDE) : END;
+      Recognizer[] row = order.rows[index];
+      int[] rest = order.rest[index];
+      int save = FAIL;
+      int winner = -1;
+      for (int i = 0; i < row.length; i++) {
+        int res = row[i].match(seq, pos, length);
+        if (res > save) {
+          save = res;
+          winner = i;
+        }
+        if (save != FAIL && (save == length || save - pos >= rest[i])) {
+          break;
+        }
+      }
+      sample(order, index, winner);
+      return save;
+    }
+
+    @Override
+    Recognizer[] candidates(CharSequence seq, int pos, int length) {
+      return order.rows[pos < length ? Math.min(seq.charAt(pos), FirstSets.WIDE) : END];
+    }
+
+    /**
+     * Current order of the alternatives, as indexes into 'patterns'.
+     */
+    int[] ranking() {
+      return order.ranking.clone();
+    }
+
+    private void sample(Order order, int index, int winner) {
+      if (winner == -1 || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) {
+        return;
+      }
+      hits.incrementAndGet(order.ids[index][winner]);
+      if (samples.incrementAndGet() % REORDER_INTERVAL == 0) {
+        reorder(order);
+      }
+    }
+
+    private void reorder(Order current) {
+      int size = patterns.length;
+      int[] counts = new int[size];
+      Integer[] ranking = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        counts[i] = hits.get(i);
+        hits.set(i, counts[i] / 2);
+        ranking[i] = current.ranking[i];
+      }
+      // Stable, so alternatives with equal counts keep their relative order.
+      Arrays.sort(ranking, (a, b) -> Integer.compare(counts[b], counts[a]));
+      int[] result = new int[size];
+      boolean changed = false;
+      for (int i = 0; i < size; i++) {
+        result[i] = ranking[i];
+        changed |= result[i] != current.ranking[i];
+      }
+      if (changed) {
+        this.order = new Order(result);
+      }
+    }
+
+    /**
+     * Dispatch table with each row in ranked order. For each row, 'ids' maps
+     * back to the alternative's index, and rest[i] is the longest match any
+     * alternative after i could produce.
+     */
+    private final class Order {
+
+      final int[] ranking;
+
+      final Recognizer[][] rows = new Recognizer[END + 1][];
+
+      final int[][] ids = new int[END + 1][];
+
+      final int[][] rest = new int[END + 1][];
+
+      Order(int[] ranking) {
+        this.ranking = ranking;
+        int[] row = new int[ranking.length];
+        for (int index = 0; index <= END; index++) {
+          int count = 0;
+          for (int id : ranking) {
+            if (firsts[id].get(FirstSets.NULLABLE) || (index != END && firsts[id].get(index))) {
+              row[count++] = id;
+            }
+          }
+          ids[index] = Arrays.copyOf(row, count);
+          rows[index] = new Recognizer[count];
+          rest[index] = new int[count];
+          int longest = 0;
+          for (int i = count - 1; i >= 0; i--) {
+            rows[index][i] = patterns[row[i]];
+            rest[index][i] = longest;
+            longest = Math.max(longest, maximum[row[i]]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the span matched by the child matcher.
+   */
+  static class Group implements Recognizer {
+
+    final int index;
+
+    final Recognizer pattern;
+
+    Group(int index, Recognizer pattern) {
+      this.index = index;
+      this.pattern = pattern;
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      return pattern.match(seq, pos, length);
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      int end = pattern.match(seq, pos, length, groups);
+      if (end != FAIL) {
+        groups[index * 2] = pos;
+        groups[index * 2 + 1] = end;
+      }
+      return end;
+    }
   }
 
   /**
@@ -371,6 +1145,50 @@ public class Recognizers {
       return (dot && (save == pos - 1)) ? FAIL : res;
     }
 
+    @Override
+    public int match(String str, int pos, int length) {
+      int save = pos;
+      int res = FAIL;
+      boolean dot = false;
+      while (pos < length) {
+        char ch = str.charAt(pos);
+        if (ch == '.') {
+          if (dot) {
+            break;
+          }
+          dot = true;
+
+        } else if (!CLASSIFIER.isMember(ch, DIGIT)) {
+          break;
+        }
+        pos++;
+        res = pos;
+      }
+      return (dot && (save == pos - 1)) ? FAIL : res;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      int save = pos;
+      int res = FAIL;
+      boolean dot = false;
+      while (pos < length) {
+        char ch = buf[pos];
+        if (ch == '.') {
+          if (dot) {
+            break;
+          }
+          dot = true;
+
+        } else if (!CLASSIFIER.isMember(ch, DIGIT)) {
+          break;
+        }
+        pos++;
+        res = pos;
+      }
+      return (dot && (save == pos - 1)) ? FAIL : res;
+    }
+
   }
 
   /**
@@ -378,9 +1196,9 @@ public class Recognizers {
    */
   static class Literal implements Recognizer {
 
-    private final String literal;
+    final String literal;
 
-    private final int literalLength;
+    final int literalLength;
 
     Literal(String value) {
       this.literal = value;
@@ -399,6 +1217,192 @@ public class Recognizers {
       }
       return FAIL;
     }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      return literalLength <= (length - pos) && str.startsWith(literal, pos) ? pos + literalLength : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      if (literalLength <= (length - pos)) {
+        for (int i = 0; i < literalLength; i++, pos++) {
+          if (literal.charAt(i) != buf[pos]) {
+            return FAIL;
+          }
+        }
+        return pos;
+      }
+      return FAIL;
+    }
+  }
+
+  /**
+   * Match the longest of a set of literal strings, using a trie.
+   *
+   * The trie is flattened into arrays: the edges leaving each node are stored
+   * contiguously, sorted by character, starting at offsets[node]. Walking the
+   * trie never backtracks, so the cost depends on the length of the match and
+   * not on the number of literals.
+   */
+  static class Literals implements Recognizer {
+
+    // Nodes with more edges than this are searched with a binary search.
+    private static final int LINEAR_LIMIT = 8;
+
+    final boolean ignoreCase;
+
+    final int[] offsets;
+
+    final char[] labels;
+
+    final int[] targets;
+
+    final boolean[] terminal;
+
+    Literals(boolean ignoreCase, String... values) {
+      this.ignoreCase = ignoreCase;
+
+      // Build a tree of sorted maps, then flatten it breadth-first.
+      List<TreeMap<Character, Integer>> nodes = new ArrayList<>();
+      List<Boolean> accepts = new ArrayList<>();
+      nodes.add(new TreeMap<>());
+      accepts.add(false);
+      for (String value : values) {
+        int node = 0;
+        for (int i = 0; i < value.length(); i++) {
+          char ch = ignoreCase ? fold(value.charAt(i)) : value.charAt(i);
+          Integer next = nodes.get(node).get(ch);
+          if (next == null) {
+            next = nodes.size();
+            nodes.get(node).put(ch, next);
+            nodes.add(new TreeMap<>());
+            accepts.add(false);
+          }
+          node = next;
+        }
+        accepts.set(node, true);
+      }
+
+      int size = nodes.size();
+      int[] order = new int[size];
+      int[] index = new int[size];
+      int count = 1;
+      for (int i = 0; i < count; i++) {
+        for (int child : nodes.get(order[i]).values()) {
+          index[child] = count;
+          order[count++] = child;
+        }
+      }
+
+      this.offsets = new int[size + 1];
+      this.labels = new char[size - 1];
+      this.targets = new int[size - 1];
+      this.terminal = new boolean[size];
+      int edge = 0;
+      for (int i = 0; i < size; i++) {
+        offsets[i] = edge;
+        terminal[i] = accepts.get(order[i]);
+        for (Map.Entry<Character, Integer> entry : nodes.get(order[i]).entrySet()) {
+          labels[edge] = entry.getKey();
+          targets[edge] = index[entry.getValue()];
+          edge++;
+        }
+      }
+      offsets[size] = edge;
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      int node = 0;
+      int result = terminal[0] ? pos : FAIL;
+      while (pos < length) {
+        char ch = seq.charAt(pos);
+        node = next(node, ignoreCase ? fold(ch) : ch);
+        if (node == FAIL) {
+          break;
+        }
+        pos++;
+        if (terminal[node]) {
+          result = pos;
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      int node = 0;
+      int result = terminal[0] ? pos : FAIL;
+      while (pos < length) {
+        char ch = str.charAt(pos);
+        node = next(node, ignoreCase ? fold(ch) : ch);
+        if (node == FAIL) {
+          break;
+        }
+        pos++;
+        if (terminal[node]) {
+          result = pos;
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      int node = 0;
+      int result = terminal[0] ? pos : FAIL;
+      while (pos < length) {
+        char ch = buf[pos];
+        node = next(node, ignoreCase ? fold(ch) : ch);
+        if (node == FAIL) {
+          break;
+        }
+        pos++;
+        if (terminal[node]) {
+          result = pos;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Follows the edge labeled with the given character, or returns FAIL.
+     */
+    int next(int node, char ch) {
+      int lo = offsets[node];
+      int hi = offsets[node + 1] - 1;
+      if (hi - lo < LINEAR_LIMIT) {
+        for (int i = lo; i <= hi; i++) {
+          if (labels[i] == ch) {
+            return targets[i];
+          }
+        }
+        return FAIL;
+      }
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        char label = labels[mid];
+        if (label < ch) {
+          lo = mid + 1;
+        } else if (label > ch) {
+          hi = mid - 1;
+        } else {
+          return targets[mid];
+        }
+      }
+      return FAIL;
+    }
+
+    /**
+     * Folds case the same way as {@link String#equalsIgnoreCase(String)}.
+     */
+    static char fold(char ch) {
+      if (ch < 0x80) {
+        return (ch >= 'A' && ch <= 'Z') ? (char)(ch + ('a' - 'A')) : ch;
+      }
+      return Character.toLowerCase(Character.toUpperCase(ch));
+    }
   }
 
   /**
@@ -407,7 +1411,7 @@ public class Recognizers {
    */
   static class LookAhead implements Recognizer {
 
-    private final Recognizer pattern;
+    final Recognizer pattern;
 
     LookAhead(Recognizer pattern) {
       this.pattern = pattern;
@@ -418,6 +1422,11 @@ public class Recognizers {
       return (pattern.match(seq, pos, length) != FAIL) ? pos : FAIL;
     }
 
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      return (pattern.match(seq, pos, length, groups) != FAIL) ? pos : FAIL;
+    }
+
   }
 
   /**
@@ -429,6 +1438,40 @@ public class Recognizers {
     }
   }
 
+  /**
+   * Records statistics for the child matcher.
+   */
+  static class Profiled implements Recognizer {
+
+    final String name;
+
+    final Recognizer pattern;
+
+    private final RecognizerProfiles.Counters counters;
+
+    Profiled(String name, Recognizer pattern) {
+      this.name = name;
+      this.pattern = pattern;
+      this.counters = RecognizerProfiles.counters(name);
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length) {
+      long start = System.nanoTime();
+      int end = pattern.match(seq, pos, length);
+      counters.record(pos, end, System.nanoTime() - start);
+      return end;
+    }
+
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      long start = System.nanoTime();
+      int end = pattern.match(seq, pos, length, groups);
+      counters.record(pos, end, System.nanoTime() - start);
+      return end;
+    }
+  }
+
   /**
    * Zero or one.
    */
@@ -443,14 +1486,28 @@ public class Recognizers {
    */
   static class Sequence implements Recognizer {
 
-    private final Recognizer[] patterns;
+    final Recognizer[] patterns;
+
+    final boolean capturing;
+
+    // Positions with fewer characters left than this fail without descending.
+    final int minimum;
 
     Sequence(Recognizer[] patterns) {
       this.patterns = patterns;
+      boolean capturing = false;
+      for (Recognizer pattern : patterns) {
+        capturing |= captures(pattern);
+      }
+      this.capturing = capturing;
+      this.minimum = Lengths.sequence(patterns);
     }
 
     @Override
     public int match(CharSequence seq, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
       int result = 0;
       for (Recognizer pattern : patterns) {
         pos = pattern.match(seq, pos, length);
@@ -462,6 +1519,23 @@ public class Recognizers {
       return result;
     }
 
+    @Override
+    public int match(CharSequence seq, int pos, int length, int[] groups) {
+      if (!capturing) {
+        return match(seq, pos, length);
+      }
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      for (Recognizer pattern : patterns) {
+        pos = pattern.match(seq, pos, length, groups);
+        if (pos == FAIL) {
+          return FAIL;
+        }
+      }
+      return pos;
+    }
+
   }
 
   /**
@@ -479,7 +1553,7 @@ public class Recognizers {
    */
   static class Whitespace implements Recognizer {
 
-    private final boolean invert;
+    final boolean invert;
 
     Whitespace(boolean invert) {
       this.invert = invert;
@@ -487,14 +1561,17 @@ public class Recognizers {
 
     @Override
     public int match(CharSequence seq, int pos, int length) {
-      if (pos < length) {
-        if (DefaultCharClassifier.whitespace(seq.charAt(pos))) {
-          return invert ? FAIL : pos + 1;
-        } else {
-          return invert ? pos + 1 : FAIL;
-        }
-      }
-      return FAIL;
+      return pos < length && DefaultCharClassifier.whitespace(seq.charAt(pos)) != invert ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(String str, int pos, int length) {
+      return pos < length && DefaultCharClassifier.whitespace(str.charAt(pos)) != invert ? pos + 1 : FAIL;
+    }
+
+    @Override
+    public int match(char[] buf, int pos, int length) {
+      return pos < length && DefaultCharClassifier.whitespace(buf[pos]) != invert ? pos + 1 : FAIL;
     }
 
   }
@@ -503,6 +1580,64 @@ public class Recognizers {
 
     int match(CharSequence seq, int pos, int length);
 
+    /**
+     * Matches against a String. The built-in single character, literal and
+     * decimal recognizers and compiled DFAs read the characters directly,
+     * avoiding an interface call per character. Sequences, choices and other
+     * nodes with children match through the CharSequence method.
+     */
+    default int match(String str, int pos, int length) {
+      return match((CharSequence) str, pos, length);
+    }
+
+    /**
+     * Matches against a char array, where 'pos' and 'length' index into the
+     * array. The recognizers which read Strings directly read the array
+     * directly too. Others see it through a wrapping CharBuffer.
+     */
+    default int match(char[] buf, int pos, int length) {
+      return match(CharBuffer.wrap(buf), pos, length);
+    }
+
+    /**
+     * Matches like {@link #match(CharSequence, int, int)}, also recording
+     * the span of each {@link Recognizers#group(int, Recognizer)} in the
+     * pattern. Group i starts at groups[2 * i] and ends at groups[2 * i + 1].
+     *
+     * Entries for groups which did not take part in the match are left as
+     * they were, so reset the array first if it is being reused. If the match
+     * fails the contents of the array are unspecified. A group inside a
+     * repetition holds the span from the last iteration.
+     */
+    default int match(CharSequence seq, int pos, int length, int[] groups) {
+      return match(seq, pos, length);
+    }
+
+  }
+
+  /**
+   * Recognizer which also computes the value of the number it matches, so
+   * the text doesn't need to be parsed again. Matching with a null value
+   * only finds the end. Numbers are short, so the value is always computed
+   * through the CharSequence method; Strings are read as they are.
+   */
+  public interface NumberRecognizer extends Recognizer {
+
+    int match(CharSequence seq, int pos, int length, NumberValue value);
+
+  }
+
+  /**
+   * Recognizer over UTF-8 encoded bytes. Positions are byte offsets, and
+   * 'pos' and 'length' index into the array, or into the buffer ignoring
+   * its position and limit.
+   */
+  public interface Utf8Recognizer {
+
+    int match(byte[] buf, int pos, int length);
+
+    int match(ByteBuffer buf, int pos, int length);
+
   }
 
 }
@@ -0,0 +1,455 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Parses a subset of java.util.regex syntax into a recognizer tree.
+ *
+ * Supported: literal characters and escapes, '.', character classes with
+ * ranges and negation, the predefined classes \d \D \w \W \s \S, the
+ * quantifiers ? * + {n} {n,} {n,m} (greedy or possessive), alternation,
+ * non-capturing groups (?:...) and look-aheads (?=...). Character classes
+ * follow the default java.util.regex definitions, so \w and \s are ASCII
+ * only and '.' excludes line terminators.
+ *
+ * Anything else, including capturing groups, lazy quantifiers, anchors,
+ * back references and flags, is rejected with a PatternSyntaxException
+ * pointing at the offending character. So is an unbounded quantifier over a
+ * pattern which can match empty, such as (?:a?b?)*, which a recognizer would
+ * repeat forever.
+ *
+ * Recognizers never give back characters. A pattern which needs to, such as
+ * a*a, is run through {@link Recognizers#nfa(Recognizer)} instead, which
+ * finds the longest match any path allows. Possessive quantifiers are
+ * rejected in those patterns.
+ */
+final class RegexParser {
+
+  private static final char[] DIGIT = new char[] { '0', '9' };
+
+  private static final char[] WORD = new char[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+
+  private static final char[] SPACE = new char[] { '\t', '\r', ' ', ' ' };
+
+  private final String regex;
+
+  private int pos;
+
+  // Index of the first possessive suffix, or -1.
+  private int possessive = -1;
+
+  private RegexParser(String regex) {
+    this.regex = regex;
+  }
+
+  static Recognizer parse(String regex) {
+    RegexParser parser = new RegexParser(regex);
+    Recognizer result = parser.alternation();
+    if (parser.pos < regex.length()) {
+      // Only an unbalanced ')' stops the top-level alternation early.
+      throw parser.error("Unmatched closing ')'");
+    }
+    if (DfaCompiler.exact(result)) {
+      return Recognizers.optimize(result);
+    }
+
+    // The recognizers would miss matches which need backtracking, such as
+    // a*a, so run the pattern as an automaton. Possessive quantifiers can't
+    // be kept from giving back characters there.
+    if (parser.possessive != -1) {
+      throw parser.error("Possessive quantifiers are not supported in patterns which need backtracking",
+          parser.possessive);
+    }
+    try {
+      return Recognizers.nfa(Recognizers.optimize(result));
+    } catch (IllegalArgumentException e) {
+      throw parser.error("Pattern is too large", 0);
+    }
+  }
+
+  private Recognizer alternation() {
+    List<Recognizer> alternatives = new ArrayList<>();
+    alternatives.add(sequence());
+    while (peek() == '|') {
+      pos++;
+      alternatives.add(sequence());
+    }
+    return alternatives.size() == 1
+        ? alternatives.get(0)
+        : Recognizers.choice(alternatives.toArray(new Recognizer[alternatives.size()]));
+  }
+
+  private Recognizer sequence() {
+    List<Recognizer> items = new ArrayList<>();
+    while (pos < regex.length() && peek() != '|' && peek() != ')') {
+      items.add(quantified(atom()));
+    }
+    if (items.isEmpty()) {
+      return Recognizers.literal("");
+    }
+    return items.size() == 1 ? items.get(0) : Recognizers.sequence(items.toArray(new Recognizer[items.size()]));
+  }
+
+  private Recognizer quantified(Recognizer atom) {
+    Recognizer result;
+    switch (peek()) {
+      case '?':
+        result = Recognizers.zeroOrOne(atom);
+        break;
+
+      case '*':
+        result = unbounded(Recognizers.zeroOrMore(atom), pos);
+        break;
+
+      case '+':
+        result = unbounded(Recognizers.oneOrMore(atom), pos);
+        break;
+
+      case '{':
+        return repetition(atom);
+
+      default:
+        return atom;
+    }
+    pos++;
+    suffix();
+    return result;
+  }
+
+  /**
+   * Parses {n}, {n,} or {n,m}.
+   */
+  private Recognizer repetition(Recognizer atom) {
+    int open = pos++;
+    int start = number();
+    if (start < 0) {
+      throw error("Illegal repetition", open);
+    }
+    int limit = start;
+    if (peek() == ',') {
+      pos++;
+      limit = peek() == '}' ? -1 : number();
+      if (limit == -1 && peek() != '}') {
+        throw error("Illegal repetition", open);
+      }
+    }
+    if (peek() != '}') {
+      throw error("Unclosed counted closure");
+    }
+    pos++;
+    if (limit != -1 && limit < start) {
+      throw error("Illegal repetition range");
+    }
+    suffix();
+    if (limit == 0) {
+      return Recognizers.literal("");
+    }
+    // Cardinality takes a limit of zero to mean unbounded.
+    if (limit == -1) {
+      return unbounded(Recognizers.cardinality(atom, start, 0), open);
+    }
+    return Recognizers.cardinality(atom, start, limit);
+  }
+
+  /**
+   * Rejects an unbounded repetition of a pattern which can match empty, as
+   * the recognizer would repeat the empty match forever. The optimizer
+   * rewrites the simple cases such as (x?)* and (x*)+ to x*, so those are
+   * accepted.
+   */
+  private Recognizer unbounded(Recognizer repetition, int index) {
+    Cardinality card = (Cardinality) repetition;
+    if (Lengths.minimum(card.pattern) > 0) {
+      return repetition;
+    }
+    Recognizer optimized = Recognizers.optimize(repetition);
+    if (optimized instanceof Cardinality) {
+      Cardinality result = (Cardinality) optimized;
+      if (result.limit == 0 && Lengths.minimum(result.pattern) == 0) {
+        throw error("Unbounded repetition of a pattern which can match empty", index);
+      }
+    }
+    return repetition;
+  }
+
+  /**
+   * Accepts the possessive suffix, which is how recognizers behave anyway,
+   * and rejects the lazy one. The suffix is rejected later if the pattern
+   * turns out to need backtracking.
+   */
+  private void suffix() {
+    if (peek() == '+') {
+      if (possessive == -1) {
+        possessive = pos;
+      }
+      pos++;
+    } else if (peek() == '?') {
+      throw error("Lazy quantifiers are not supported");
+    }
+  }
+
+  private int number() {
+    int begin = pos;
+    long value = 0;
+    while (pos < regex.length() && Character.isDigit(regex.charAt(pos)) && regex.charAt(pos) < 0x80) {
+      value = value * 10 + (regex.charAt(pos) - '0');
+      if (value > Integer.MAX_VALUE) {
+        throw error("Repetition count too large", begin);
+      }
+      pos++;
+    }
+    return pos == begin ? -1 : (int) value;
+  }
+
+  private Recognizer atom() {
+    char ch = regex.charAt(pos);
+    switch (ch) {
+      case '(':
+        return group();
+
+      case '[':
+        return characterClass();
+
+      case '.':
+        pos++;
+        return Recognizers.notCharacters('\n', '\r', '\u0085', '\u2028', '\u2029');
+
+      case '\\': {
+        CharSetBuilder set = Recognizers.charSet();
+        int single = escape(set);
+        return single == -1 ? set.build() : Recognizers.characters((char) single);
+      }
+
+      case '^':
+      case '$':
+        throw error("Anchors are not supported");
+
+      case '?':
+      case '*':
+      case '+':
+        throw error("Dangling meta character '" + ch + "'");
+
+      case '{':
+        throw error("Illegal repetition");
+
+      default:
+        pos++;
+        return Recognizers.characters(ch);
+    }
+  }
+
+  private Recognizer group() {
+    int open = pos++;
+    boolean lookAhead = false;
+    if (regex.startsWith("?:", pos)) {
+      pos += 2;
+    } else if (regex.startsWith("?=", pos)) {
+      pos += 2;
+      lookAhead = true;
+    } else if (peek() == '?') {
+      throw error("Unsupported group construct");
+    } else {
+      throw error("Capturing groups are not supported, use (?:...)", open);
+    }
+    Recognizer result = alternation();
+    if (peek() != ')') {
+      throw error("Unclosed group", open);
+    }
+    pos++;
+    return lookAhead ? Recognizers.lookAhead(result) : result;
+  }
+
+  private Recognizer characterClass() {
+    int open = pos++;
+    CharSetBuilder set = Recognizers.charSet();
+    boolean negate = false;
+    if (peek() == '^') {
+      negate = true;
+      pos++;
+    }
+
+    // A ']' straight after the opening bracket is a member.
+    boolean first = true;
+    while (true) {
+      if (pos >= regex.length()) {
+        throw error("Unclosed character class", open);
+      }
+      char ch = regex.charAt(pos);
+      if (ch == ']' && !first) {
+        pos++;
+        break;
+      }
+      first = false;
+      if (ch == '[' || regex.startsWith("&&", pos)) {
+        throw error("Nested classes and intersections are not supported");
+      }
+
+      int begin = pos;
+      int low;
+      if (ch == '\\') {
+        low = escape(set);
+        if (low == -1) {
+          // A predefined class can't start a range, and a '-' after it is a member.
+          continue;
+        }
+      } else {
+        low = ch;
+        pos++;
+      }
+
+      if (peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+        pos++;
+        int high;
+        if (peek() == '\\') {
+          high = escape(null);
+          if (high == -1) {
+            throw error("Illegal character range", begin);
+          }
+        } else {
+          high = regex.charAt(pos++);
+        }
+        if (high < low) {
+          throw error("Illegal character range", begin);
+        }
+        set.addRange((char) low, (char) high);
+      } else {
+        set.add((char) low);
+      }
+    }
+    if (negate) {
+      set.invert();
+    }
+    return set.build();
+  }
+
+  /**
+   * Parses an escape. Returns the character it stands for, or -1 after adding
+   * the members of a predefined class to the set.
+   */
+  private int escape(CharSetBuilder set) {
+    int backslash = pos++;
+    if (pos >= regex.length()) {
+      throw error("Unexpected internal error", backslash);
+    }
+    char ch = regex.charAt(pos++);
+    switch (ch) {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\u0007';
+      case 'e':
+        return '\u001b';
+      case 'x':
+        return hex(2, backslash);
+      case 'u':
+        return hex(4, backslash);
+
+      case 'd':
+      case 'D':
+      case 'w':
+      case 'W':
+      case 's':
+      case 'S':
+        if (set == null) {
+          return -1;
+        }
+        predefined(Character.toLowerCase(ch), Character.isUpperCase(ch), set);
+        return -1;
+
+      default:
+        if (ch < 0x80 && Character.isLetterOrDigit(ch)) {
+          throw error("Unsupported escape sequence", backslash);
+        }
+        return ch;
+    }
+  }
+
+  private int hex(int digits, int backslash) {
+    if (pos + digits > regex.length()) {
+      throw error("Illegal hexadecimal escape sequence", backslash);
+    }
+    int value = 0;
+    for (int i = 0; i < digits; i++) {
+      int digit = Character.digit(regex.charAt(pos++), 16);
+      if (digit < 0) {
+        throw error("Illegal hexadecimal escape sequence", backslash);
+      }
+      value = value * 16 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Adds a predefined class, or its complement, to the set. The ranges are
+   * sorted pairs of first and last members.
+   */
+  private static void predefined(char name, boolean negate, CharSetBuilder set) {
+    char[] ranges;
+    switch (name) {
+      case 'd':
+        ranges = DIGIT;
+        break;
+      case 'w':
+        ranges = WORD;
+        break;
+      default:
+        ranges = SPACE;
+        break;
+    }
+    if (!negate) {
+      for (int i = 0; i < ranges.length; i += 2) {
+        set.addRange(ranges[i], ranges[i + 1]);
+      }
+      return;
+    }
+    int next = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (ranges[i] > next) {
+        set.addRange((char) next, (char) (ranges[i] - 1));
+      }
+      next = ranges[i + 1] + 1;
+    }
+    set.addRange((char) next, Character.MAX_VALUE);
+  }
+
+  private char peek() {
+    return pos < regex.length() ? regex.charAt(pos) : '\0';
+  }
+
+  private PatternSyntaxException error(String message) {
+    return error(message, pos);
+  }
+
+  private PatternSyntaxException error(String message, int index) {
+    return new PatternSyntaxException(message, regex, index);
+  }
+
+}
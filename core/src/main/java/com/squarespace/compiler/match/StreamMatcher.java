@@ -0,0 +1,216 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.ASCII_LIMIT;
+import static com.squarespace.compiler.match.Dfa.DEAD;
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Matches a pattern against input which arrives in chunks, without holding
+ * the input in memory.
+ *
+ * The pattern is compiled to a DFA table, and the only state carried from
+ * one chunk to the next is the current table state and the length of the
+ * longest match so far, so a match split across chunks is found the same as
+ * one inside a single chunk.
+ *
+ * <pre>
+ *   matcher.reset();
+ *   while (!matcher.feed(nextChunk())) {
+ *     if (noMoreInput) {
+ *       matcher.finish();
+ *       break;
+ *     }
+ *   }
+ *   int length = matcher.end();
+ * </pre>
+ *
+ * Matching stops at the first character which can't extend the match. That
+ * character is not consumed, but characters before it and after the end of
+ * the longest match may have been. {@link #match(Reader, int)} takes care of
+ * this by rewinding the reader.
+ *
+ * A matcher holds the state of the current match, so it must not be shared
+ * between threads.
+ */
+public class StreamMatcher {
+
+  private static final int CHUNK_SIZE = 1024;
+
+  private final Dfa dfa;
+
+  // States with no way out, where the match is decided without looking further.
+  private final boolean[] stuck;
+
+  private int state;
+
+  private int consumed;
+
+  private int last;
+
+  private boolean done;
+
+  private CharBuffer chunk;
+
+  StreamMatcher(Recognizer pattern) {
+    Recognizer compiled = DfaCompiler.compile(pattern);
+    if (!(compiled instanceof Dfa)) {
+      throw new IllegalArgumentException("pattern can't be compiled to a single DFA table");
+    }
+    this.dfa = (Dfa) compiled;
+    int classes = dfa.classes;
+    this.stuck = new boolean[dfa.states()];
+    for (int state = 0; state < stuck.length; state++) {
+      if (dfa.follow[state] != DEAD) {
+        throw new IllegalArgumentException("pattern can't be matched in a single pass");
+      }
+      stuck[state] = true;
+      for (int cls = 0; cls < classes; cls++) {
+        if (dfa.transitions[state * classes + cls] != DEAD) {
+          stuck[state] = false;
+          break;
+        }
+      }
+    }
+    reset();
+  }
+
+  /**
+   * Starts a new match.
+   */
+  public StreamMatcher reset() {
+    this.state = 0;
+    this.consumed = 0;
+    this.last = dfa.accept[0] ? 0 : FAIL;
+    this.done = stuck[0];
+    return this;
+  }
+
+  /**
+   * Consumes characters from the chunk, advancing its position, until the
+   * match is decided or the chunk runs out. Returns true once the match is
+   * decided.
+   */
+  public boolean feed(CharBuffer chunk) {
+    if (done) {
+      return true;
+    }
+    int classes = dfa.classes;
+    int[] transitions = dfa.transitions;
+    boolean[] accept = dfa.accept;
+    int pos = chunk.position();
+    int limit = chunk.limit();
+    while (pos < limit) {
+      char ch = chunk.get(pos);
+      int next = transitions[state * classes + (ch < ASCII_LIMIT ? dfa.asciiClasses[ch] : dfa.classOf(ch))];
+      if (next == DEAD) {
+        done = true;
+        break;
+      }
+      pos++;
+      consumed++;
+      state = next;
+      if (accept[state]) {
+        last = consumed;
+      }
+      if (stuck[state]) {
+        done = true;
+        break;
+      }
+    }
+    chunk.position(pos);
+    return done;
+  }
+
+  /**
+   * Signals the end of the input, deciding the match. Returns true if the
+   * pattern matched.
+   */
+  public boolean finish() {
+    done = true;
+    return last != FAIL;
+  }
+
+  /**
+   * Returns true if the match is decided.
+   */
+  public boolean done() {
+    return done;
+  }
+
+  /**
+   * Length of the match, or FAIL if the pattern did not match or the match
+   * is not decided yet.
+   */
+  public int end() {
+    return done ? last : FAIL;
+  }
+
+  /**
+   * Number of characters consumed since the last reset.
+   */
+  public int consumed() {
+    return consumed;
+  }
+
+  /**
+   * Matches the pattern against the characters waiting in the reader,
+   * reading no more than 'limit' of them. Returns the length of the match,
+   * or FAIL, and leaves the reader positioned just past the match. The
+   * reader must support mark().
+   */
+  public int match(Reader reader, int limit) throws IOException {
+    if (!reader.markSupported()) {
+      throw new IllegalArgumentException("reader must support mark()");
+    }
+    if (chunk == null) {
+      chunk = CharBuffer.allocate(CHUNK_SIZE);
+    }
+    reset();
+    reader.mark(limit);
+    int remaining = limit;
+    while (!done && remaining > 0) {
+      chunk.clear();
+      chunk.limit(Math.min(CHUNK_SIZE, remaining));
+      int count = reader.read(chunk);
+      if (count < 0) {
+        break;
+      }
+      chunk.flip();
+      remaining -= count;
+      feed(chunk);
+    }
+    finish();
+
+    // Give back whatever was read past the end of the match.
+    reader.reset();
+    long skip = Math.max(last, 0);
+    while (skip > 0) {
+      skip -= reader.skip(skip);
+    }
+    return last;
+  }
+
+}
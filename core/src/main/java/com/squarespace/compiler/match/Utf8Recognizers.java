@@ -0,0 +1,603 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Dfa.DEAD;
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Group;
+import com.squarespace.compiler.match.Recognizers.Literals;
+import com.squarespace.compiler.match.Recognizers.LookAhead;
+import com.squarespace.compiler.match.Recognizers.Profiled;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Utf8Recognizer;
+
+
+/**
+ * Matches recognizers against UTF-8 bytes without decoding them first.
+ *
+ * The pattern is compiled with {@link DfaCompiler} and the result is
+ * mirrored node for node. DFA tables and literal tries read ASCII bytes
+ * with a single lookup and decode multi-byte sequences inline, feeding
+ * characters outside the BMP to the table as a surrogate pair. Positions
+ * are byte offsets, and a match only ends on a character boundary.
+ *
+ * Malformed bytes, such as a stray continuation byte, an overlong form or
+ * an encoded surrogate, read as one U+FFFD character per byte.
+ *
+ * Leaves without a byte form, such as the number recognizers, are rejected
+ * with an IllegalArgumentException.
+ */
+final class Utf8Recognizers {
+
+  // Decoded characters are packed with the number of bytes they took.
+  private static final int SIZE_SHIFT = 21;
+
+  private static final int CODE_MASK = (1 << SIZE_SHIFT) - 1;
+
+  private static final int MALFORMED = (1 << SIZE_SHIFT) | 0xfffd;
+
+  private Utf8Recognizers() {
+  }
+
+  static Utf8Recognizer build(Recognizer pattern) {
+    return convert(DfaCompiler.compile(pattern));
+  }
+
+  private static Node convert(Recognizer pattern) {
+    if (pattern instanceof Dfa) {
+      return new Utf8Dfa((Dfa) pattern);
+    }
+    if (pattern instanceof Literals) {
+      return new Utf8Literals((Literals) pattern);
+    }
+    if (pattern instanceof Sequence) {
+      Sequence sequence = (Sequence) pattern;
+      return new Utf8Sequence(convert(sequence.patterns), sequence.minimum);
+    }
+    if (pattern instanceof Choice) {
+      Choice choice = (Choice) pattern;
+      return new Utf8Choice(choice.patterns, convert(choice.patterns), choice.minimum);
+    }
+    if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      return new Utf8Cardinality(convert(card.pattern), card.start, card.limit);
+    }
+    if (pattern instanceof LookAhead) {
+      return new Utf8LookAhead(convert(((LookAhead) pattern).pattern));
+    }
+    // Groups can't be reported and profiles are not recorded over bytes.
+    if (pattern instanceof Group) {
+      return convert(((Group) pattern).pattern);
+    }
+    if (pattern instanceof Profiled) {
+      return convert(((Profiled) pattern).pattern);
+    }
+    // Character sets the compiler left alone, such as an empty one.
+    BitSet members = DfaCompiler.members(pattern);
+    if (members != null) {
+      return new Utf8Char(members);
+    }
+    throw new IllegalArgumentException("Unable to match " + pattern.getClass().getSimpleName() + " against UTF-8");
+  }
+
+  private static Node[] convert(Recognizer[] patterns) {
+    Node[] result = new Node[patterns.length];
+    for (int i = 0; i < patterns.length; i++) {
+      result[i] = convert(patterns[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Decodes the multi-byte sequence at 'pos', returning the code point
+   * packed with its size in bytes.
+   */
+  static int decode(byte[] buf, int pos, int length) {
+    int b0 = buf[pos] & 0xff;
+    if (b0 < 0x80) {
+      return (1 << SIZE_SHIFT) | b0;
+    }
+    if (b0 >= 0xc2 && b0 <= 0xdf) {
+      if (pos + 1 < length && continuation(buf[pos + 1])) {
+        return (2 << SIZE_SHIFT) | ((b0 & 0x1f) << 6) | (buf[pos + 1] & 0x3f);
+      }
+    } else if (b0 >= 0xe0 && b0 <= 0xef) {
+      if (pos + 2 < length && continuation(buf[pos + 1]) && continuation(buf[pos + 2])) {
+        int code = ((b0 & 0x0f) << 12) | ((buf[pos + 1] & 0x3f) << 6) | (buf[pos + 2] & 0x3f);
+        if (code >= 0x800 && !Character.isSurrogate((char) code)) {
+          return (3 << SIZE_SHIFT) | code;
+        }
+      }
+    } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+      if (pos + 3 < length && continuation(buf[pos + 1]) && continuation(buf[pos + 2])
+          && continuation(buf[pos + 3])) {
+        int code = ((b0 & 0x07) << 18) | ((buf[pos + 1] & 0x3f) << 12) | ((buf[pos + 2] & 0x3f) << 6)
+            | (buf[pos + 3] & 0x3f);
+        if (code >= Character.MIN_SUPPLEMENTARY_CODE_POINT && code <= Character.MAX_CODE_POINT) {
+          return (4 << SIZE_SHIFT) | code;
+        }
+      }
+    }
+    return MALFORMED;
+  }
+
+  /**
+   * Decodes like {@link #decode(byte[], int, int)}, reading the buffer by
+   * absolute index.
+   */
+  static int decode(ByteBuffer buf, int pos, int length) {
+    int b0 = buf.get(pos) & 0xff;
+    if (b0 < 0x80) {
+      return (1 << SIZE_SHIFT) | b0;
+    }
+    if (b0 >= 0xc2 && b0 <= 0xdf) {
+      if (pos + 1 < length && continuation(buf.get(pos + 1))) {
+        return (2 << SIZE_SHIFT) | ((b0 & 0x1f) << 6) | (buf.get(pos + 1) & 0x3f);
+      }
+    } else if (b0 >= 0xe0 && b0 <= 0xef) {
+      if (pos + 2 < length && continuation(buf.get(pos + 1)) && continuation(buf.get(pos + 2))) {
+        int code = ((b0 & 0x0f) << 12) | ((buf.get(pos + 1) & 0x3f) << 6) | (buf.get(pos + 2) & 0x3f);
+        if (code >= 0x800 && !Character.isSurrogate((char) code)) {
+          return (3 << SIZE_SHIFT) | code;
+        }
+      }
+    } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+      if (pos + 3 < length && continuation(buf.get(pos + 1)) && continuation(buf.get(pos + 2))
+          && continuation(buf.get(pos + 3))) {
+        int code = ((b0 & 0x07) << 18) | ((buf.get(pos + 1) & 0x3f) << 12) | ((buf.get(pos + 2) & 0x3f) << 6)
+            | (buf.get(pos + 3) & 0x3f);
+        if (code >= Character.MIN_SUPPLEMENTARY_CODE_POINT && code <= Character.MAX_CODE_POINT) {
+          return (4 << SIZE_SHIFT) | code;
+        }
+      }
+    }
+    return MALFORMED;
+  }
+
+  private static boolean continuation(byte b) {
+    return (b & 0xc0) == 0x80;
+  }
+
+  /**
+   * Base for the nodes. Heap buffers are matched through their arrays,
+   * direct buffers by absolute index.
+   */
+  abstract static class Node implements Utf8Recognizer {
+
+    @Override
+    public int match(ByteBuffer buf, int pos, int length) {
+      if (!buf.hasArray()) {
+        return matchDirect(buf, pos, length);
+      }
+      int offset = buf.arrayOffset();
+      int end = match(buf.array(), offset + pos, offset + length);
+      return end == FAIL ? FAIL : end - offset;
+    }
+
+    abstract int matchDirect(ByteBuffer buf, int pos, int length);
+  }
+
+  /**
+   * Runs a {@link Dfa} table over the bytes.
+   */
+  static final class Utf8Dfa extends Node {
+
+    private final Dfa dfa;
+
+    private final int classes;
+
+    private final int[] asciiClasses;
+
+    private final int[] transitions;
+
+    private final boolean[] accept;
+
+    private final int[] follow;
+
+    Utf8Dfa(Dfa dfa) {
+      this.dfa = dfa;
+      this.classes = dfa.classes;
+      this.asciiClasses = dfa.asciiClasses;
+      this.transitions = dfa.transitions;
+      this.accept = dfa.accept;
+      this.follow = dfa.follow;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      int state = 0;
+      int last = accept[0] ? pos : FAIL;
+      while (true) {
+        int next = DEAD;
+        int size = 1;
+        if (pos < length) {
+          byte b = buf[pos];
+          if (b >= 0) {
+            next = transitions[state * classes + asciiClasses[b]];
+          } else {
+            int code = decode(buf, pos, length);
+            size = code >>> SIZE_SHIFT;
+            next = step(state, code & CODE_MASK);
+          }
+        }
+        if (next != DEAD) {
+          state = next;
+          pos += size;
+          if (accept[state]) {
+            last = pos;
+          }
+          continue;
+        }
+
+        // Same segment handling as the Dfa itself.
+        int resume = follow[state];
+        if (last == FAIL || resume == DEAD) {
+          return last;
+        }
+        pos = last;
+        state = resume;
+        last = accept[state] ? pos : FAIL;
+      }
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      int state = 0;
+      int last = accept[0] ? pos : FAIL;
+      while (true) {
+        int next = DEAD;
+        int size = 1;
+        if (pos < length) {
+          byte b = buf.get(pos);
+          if (b >= 0) {
+            next = transitions[state * classes + asciiClasses[b]];
+          } else {
+            int code = decode(buf, pos, length);
+            size = code >>> SIZE_SHIFT;
+            next = step(state, code & CODE_MASK);
+          }
+        }
+        if (next != DEAD) {
+          state = next;
+          pos += size;
+          if (accept[state]) {
+            last = pos;
+          }
+          continue;
+        }
+
+        int resume = follow[state];
+        if (last == FAIL || resume == DEAD) {
+          return last;
+        }
+        pos = last;
+        state = resume;
+        last = accept[state] ? pos : FAIL;
+      }
+    }
+
+    /**
+     * Moves over one non-ASCII character. Characters outside the BMP take
+     * two steps, one per surrogate.
+     */
+    private int step(int state, int code) {
+      if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        return transitions[state * classes + dfa.classOf((char) code)];
+      }
+      int high = transitions[state * classes + dfa.classOf(Character.highSurrogate(code))];
+      return high == DEAD ? DEAD : transitions[high * classes + dfa.classOf(Character.lowSurrogate(code))];
+    }
+  }
+
+  /**
+   * Walks a {@link Literals} trie over the bytes.
+   */
+  static final class Utf8Literals extends Node {
+
+    private final Literals literals;
+
+    Utf8Literals(Literals literals) {
+      this.literals = literals;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      int node = 0;
+      int result = literals.terminal[0] ? pos : FAIL;
+      while (pos < length) {
+        int code = decode(buf, pos, length);
+        node = step(node, code & CODE_MASK);
+        if (node == FAIL) {
+          break;
+        }
+        pos += code >>> SIZE_SHIFT;
+        if (literals.terminal[node]) {
+          result = pos;
+        }
+      }
+      return result;
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      int node = 0;
+      int result = literals.terminal[0] ? pos : FAIL;
+      while (pos < length) {
+        int code = decode(buf, pos, length);
+        node = step(node, code & CODE_MASK);
+        if (node == FAIL) {
+          break;
+        }
+        pos += code >>> SIZE_SHIFT;
+        if (literals.terminal[node]) {
+          result = pos;
+        }
+      }
+      return result;
+    }
+
+    private int step(int node, int code) {
+      if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        return next(node, (char) code);
+      }
+      int high = next(node, Character.highSurrogate(code));
+      return high == FAIL ? FAIL : next(high, Character.lowSurrogate(code));
+    }
+
+    private int next(int node, char ch) {
+      return literals.next(node, literals.ignoreCase ? Literals.fold(ch) : ch);
+    }
+  }
+
+  /**
+   * Matches one character of a set. Characters outside the BMP are two
+   * chars long, so a single character recognizer never matches them.
+   */
+  static final class Utf8Char extends Node {
+
+    private final BitSet members;
+
+    Utf8Char(BitSet members) {
+      this.members = members;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      if (pos >= length) {
+        return FAIL;
+      }
+      byte b = buf[pos];
+      if (b >= 0) {
+        return members.get(b) ? pos + 1 : FAIL;
+      }
+      return test(decode(buf, pos, length), pos);
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      if (pos >= length) {
+        return FAIL;
+      }
+      byte b = buf.get(pos);
+      if (b >= 0) {
+        return members.get(b) ? pos + 1 : FAIL;
+      }
+      return test(decode(buf, pos, length), pos);
+    }
+
+    private int test(int code, int pos) {
+      int ch = code & CODE_MASK;
+      return ch < Character.MIN_SUPPLEMENTARY_CODE_POINT && members.get(ch) ? pos + (code >>> SIZE_SHIFT) : FAIL;
+    }
+  }
+
+  static final class Utf8Sequence extends Node {
+
+    private final Node[] patterns;
+
+    // Every character takes at least one byte, so the character minimum holds.
+    private final int minimum;
+
+    Utf8Sequence(Node[] patterns, int minimum) {
+      this.patterns = patterns;
+      this.minimum = minimum;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      int result = 0;
+      for (Node pattern : patterns) {
+        pos = pattern.match(buf, pos, length);
+        if (pos == FAIL) {
+          return FAIL;
+        }
+        result = pos;
+      }
+      return result;
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      int result = 0;
+      for (Node pattern : patterns) {
+        pos = pattern.matchDirect(buf, pos, length);
+        if (pos == FAIL) {
+          return FAIL;
+        }
+        result = pos;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Longest of the alternatives, dispatching on the first byte like
+   * {@link Choice} dispatches on the first character.
+   */
+  static final class Utf8Choice extends Node {
+
+    private static final int WIDE = FirstSets.WIDE;
+
+    private static final int END = FirstSets.WIDE + 1;
+
+    private final int minimum;
+
+    private final Node[][] dispatch;
+
+    Utf8Choice(Recognizer[] originals, Node[] patterns, int minimum) {
+      this.minimum = minimum;
+      BitSet[] firsts = new BitSet[originals.length];
+      for (int i = 0; i < originals.length; i++) {
+        firsts[i] = FirstSets.first(originals[i]);
+      }
+      this.dispatch = new Node[END + 1][];
+      Map<List<Node>, Node[]> rows = new HashMap<>();
+      for (int index = 0; index <= END; index++) {
+        List<Node> row = new ArrayList<>();
+        for (int i = 0; i < patterns.length; i++) {
+          if (firsts[i].get(FirstSets.NULLABLE) || (index != END && firsts[i].get(index))) {
+            row.add(patterns[i]);
+          }
+        }
+        Node[] shared = rows.get(row);
+        if (shared == null) {
+          shared = row.toArray(new Node[row.size()]);
+          rows.put(row, shared);
+        }
+        dispatch[index] = shared;
+      }
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      int save = FAIL;
+      Node[] candidates = dispatch[pos < length ? (buf[pos] >= 0 ? buf[pos] : WIDE) : END];
+      for (Node pattern : candidates) {
+        save = Math.max(save, pattern.match(buf, pos, length));
+      }
+      return save;
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      if (length - pos < minimum) {
+        return FAIL;
+      }
+      int save = FAIL;
+      int index = END;
+      if (pos < length) {
+        byte b = buf.get(pos);
+        index = b >= 0 ? b : WIDE;
+      }
+      for (Node pattern : dispatch[index]) {
+        save = Math.max(save, pattern.matchDirect(buf, pos, length));
+      }
+      return save;
+    }
+  }
+
+  static final class Utf8Cardinality extends Node {
+
+    private final Node pattern;
+
+    private final int start;
+
+    private final int limit;
+
+    Utf8Cardinality(Node pattern, int start, int limit) {
+      this.pattern = pattern;
+      this.start = start;
+      this.limit = limit;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      int result = pos;
+      int count = 0;
+      while (true) {
+        pos = pattern.match(buf, pos, length);
+        if (pos == FAIL) {
+          break;
+        }
+        count++;
+        result = pos;
+        if (count == limit) {
+          break;
+        }
+      }
+      return count < start ? FAIL : result;
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      int result = pos;
+      int count = 0;
+      while (true) {
+        pos = pattern.matchDirect(buf, pos, length);
+        if (pos == FAIL) {
+          break;
+        }
+        count++;
+        result = pos;
+        if (count == limit) {
+          break;
+        }
+      }
+      return count < start ? FAIL : result;
+    }
+  }
+
+  static final class Utf8LookAhead extends Node {
+
+    private final Node pattern;
+
+    Utf8LookAhead(Node pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public int match(byte[] buf, int pos, int length) {
+      return pattern.match(buf, pos, length) != FAIL ? pos : FAIL;
+    }
+
+    @Override
+    int matchDirect(ByteBuffer buf, int pos, int length) {
+      return pattern.matchDirect(buf, pos, length) != FAIL ? pos : FAIL;
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Results of memoized parsers, keyed by parser id and input position.
+ *
+ * Open addressing with linear probing over parallel primitive arrays, so
+ * recording a result allocates nothing once the table has grown to fit
+ * the parse. Each slot is stamped with the generation it was written in,
+ * and {@link #clear()} starts a new generation rather than wiping the keys,
+ * so one table can be reused across parses. The slots written in the
+ * current generation are listed as they are filled, and clearing releases
+ * only their values, so the nodes of an earlier parse aren't kept
+ * reachable and the cost of a clear follows the parse, not the capacity.
+ */
+final class MemoTable {
+
+  static final int FAIL = -1;
+
+  private static final AtomicInteger IDS = new AtomicInteger();
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] keys;
+
+  private int[] ends;
+
+  private Object[] values;
+
+  private int[] stamps;
+
+  private int[] used;
+
+  private int generation = 1;
+
+  private int size;
+
+  private int mask;
+
+  MemoTable() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Returns a new parser id.
+   */
+  static int nextId() {
+    return IDS.getAndIncrement();
+  }
+
+  /**
+   * Forgets every result.
+   */
+  void clear() {
+    generation++;
+    if (generation == 0) {
+      Arrays.fill(stamps, 0);
+      generation = 1;
+    }
+    for (int i = 0; i < size; i++) {
+      values[used[i]] = null;
+    }
+    size = 0;
+  }
+
+  /**
+   * Returns the slot holding the result of parser 'id' at 'pos', or -1 if
+   * there is none.
+   */
+  int find(int id, int pos) {
+    long key = key(id, pos);
+    int i = hash(key) & mask;
+    while (stamps[i] == generation) {
+      if (keys[i] == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * End position of the result in the slot, or FAIL.
+   */
+  int end(int slot) {
+    return ends[slot];
+  }
+
+  Object value(int slot) {
+    return values[slot];
+  }
+
+  /**
+   * Records the result of parser 'id' at 'pos'.
+   */
+  void put(int id, int pos, int end, Object value) {
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+    }
+    long key = key(id, pos);
+    int i = hash(key) & mask;
+    while (stamps[i] == generation) {
+      if (keys[i] == key) {
+        ends[i] = end;
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    ends[i] = end;
+    values[i] = value;
+    stamps[i] = generation;
+    used[size++] = i;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldEnds = ends;
+    Object[] oldValues = values;
+    int[] oldStamps = stamps;
+    int current = generation;
+    int count = 0;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldStamps[i] == current) {
+        int j = hash(oldKeys[i]) & mask;
+        while (stamps[j] == generation) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = oldKeys[i];
+        ends[j] = oldEnds[i];
+        values[j] = oldValues[i];
+        stamps[j] = generation;
+        used[count++] = j;
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    ends = new int[capacity];
+    values = new Object[capacity];
+    stamps = new int[capacity];
+    // The table grows before it is half full.
+    used = new int[capacity / 2];
+    mask = capacity - 1;
+    generation = 1;
+  }
+
+  private static long key(int id, int pos) {
+    return ((long) id << 32) | (pos & 0xffffffffL);
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h >>> 32);
+  }
+
+}
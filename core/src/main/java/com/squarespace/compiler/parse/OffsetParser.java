@@ -0,0 +1,297 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+import static com.squarespace.compiler.common.Maybe.just;
+import static com.squarespace.compiler.common.Maybe.nothing;
+import static com.squarespace.compiler.parse.Pair.pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.squarespace.compiler.common.Maybe;
+import com.squarespace.compiler.common.StringView;
+import com.squarespace.compiler.match.Recognizers;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+/**
+ * Monadic parser which threads an offset through one shared input.
+ *
+ * Works like {@link Parser}, but where a Parser returns the rest of the
+ * input as a new subsequence at each step, this moves the position of a
+ * mutable {@link ParseState}. Nothing is sliced or copied, and the built-in
+ * combinators allocate nothing while parsing, so the only allocation is the
+ * values the grammar itself builds. Functions passed to flatMap usually
+ * build a new parser on each call; prefer {@link #then(OffsetParser, BiFunction)}
+ * where the next parser doesn't depend on the value.
+ *
+ * A parser which fails leaves the position where it started.
+ */
+public interface OffsetParser<T> {
+
+  /**
+   * Parses at the state's position. On success the state holds the value
+   * and the position just after it.
+   */
+  boolean parse(ParseState state);
+
+  /**
+   * Parses the input starting at 'pos', returning the value and the
+   * position just after it.
+   */
+  default Maybe<Pair<T, Integer>> parse(CharSequence input, int pos) {
+    ParseState state = new ParseState(input);
+    state.position(pos);
+    return parse(state) ? just(pair(state.value(), state.position())) : nothing();
+  }
+
+  default Maybe<Pair<T, Integer>> parse(CharSequence input) {
+    return parse(input, 0);
+  }
+
+  /**
+   * Matches the pattern at the current position. The value is a view of the
+   * matched characters, which only copies when the input is neither a
+   * String nor a {@link StringView}.
+   */
+  static OffsetParser<CharSequence> matcher(Recognizer pattern) {
+    return matcher(pattern, OffsetParser::slice);
+  }
+
+  /**
+   * Matches the pattern, computing the value from the span matched without
+   * slicing the input.
+   */
+  static <R> OffsetParser<R> matcher(Recognizer pattern, SpanFunction<R> f) {
+    return state -> {
+      CharSequence input = state.input();
+      int start = state.position();
+      int end = Recognizers.match(pattern, input, start, state.length());
+      return end == -1 ? state.fail() : state.succeed(f.apply(input, start, end), end);
+    };
+  }
+
+  /**
+   * Matches the pattern, producing no value.
+   */
+  static OffsetParser<Void> skip(Recognizer pattern) {
+    return state -> {
+      int end = Recognizers.match(pattern, state.input(), state.position(), state.length());
+      return end == -1 ? state.fail() : state.succeed(null, end);
+    };
+  }
+
+  /**
+   * Adapts a {@link Parser}, which parses a slice of the rest of the input.
+   */
+  static <T> OffsetParser<T> from(Parser<T> parser) {
+    return state -> {
+      CharSequence input = state.input();
+      Maybe<Pair<T, CharSequence>> result = parser.parse(input.subSequence(state.position(), state.length()));
+      if (result.isNothing()) {
+        return state.fail();
+      }
+      Pair<T, CharSequence> pair = result.get();
+      return state.succeed(pair._1, state.length() - pair._2.length());
+    };
+  }
+
+  default <R> OffsetParser<T> prefix(OffsetParser<R> parser) {
+    return state -> {
+      int start = state.position();
+      if (parser.parse(state) && parse(state)) {
+        return true;
+      }
+      state.position(start);
+      return state.fail();
+    };
+  }
+
+  default OffsetParser<T> suffix(OffsetParser<?> parser) {
+    return state -> {
+      int start = state.position();
+      if (parse(state)) {
+        Object value = state.value();
+        if (parser.parse(state)) {
+          return state.succeed(value);
+        }
+      }
+      state.position(start);
+      return state.fail();
+    };
+  }
+
+  /**
+   * Parses this and then 'next', combining their values.
+   */
+  default <R, V> OffsetParser<V> then(OffsetParser<R> next, BiFunction<T, R, V> f) {
+    return state -> {
+      int start = state.position();
+      if (parse(state)) {
+        T value = state.value();
+        if (next.parse(state)) {
+          return state.succeed(f.apply(value, state.value()));
+        }
+      }
+      state.position(start);
+      return state.fail();
+    };
+  }
+
+  default <R> OffsetParser<R> map(Function<T, R> f) {
+    return state -> parse(state) && state.succeed(f.apply(state.value()));
+  }
+
+  default <R> OffsetParser<R> flatMap(Function<T, OffsetParser<R>> f) {
+    return state -> {
+      int start = state.position();
+      if (parse(state) && f.apply(state.value()).parse(state)) {
+        return true;
+      }
+      state.position(start);
+      return state.fail();
+    };
+  }
+
+  /**
+   * Remembers the result of this parser at each position, so alternatives
+   * which retry it at the same position reuse the first result. With every
+   * rule that is retried memoized, a parse takes time linear in the input.
+   * Results are kept in the {@link ParseState} until it is reset. Left
+   * recursive rules are not supported.
+   */
+  default OffsetParser<T> memo() {
+    int id = MemoTable.nextId();
+    return state -> {
+      MemoTable table = state.memo();
+      int start = state.position();
+      int slot = table.find(id, start);
+      if (slot != -1) {
+        int end = table.end(slot);
+        return end == MemoTable.FAIL ? state.fail() : state.succeed(table.value(slot), end);
+      }
+      if (parse(state)) {
+        table.put(id, start, state.position(), state.value());
+        return true;
+      }
+      table.put(id, start, MemoTable.FAIL, null);
+      return false;
+    };
+  }
+
+  default OffsetParser<List<T>> zeroOrMore() {
+    return repeat(0, 0);
+  }
+
+  default OffsetParser<List<T>> oneOrMore() {
+    return repeat(1, 0);
+  }
+
+  /**
+   * Parses at least 'min' and at most 'max' repetitions, or any number
+   * above 'min' when 'max' is 0. Repetition stops early at a match which
+   * consumes nothing, since it would repeat forever. The result list is
+   * presized to 'max' when it is 16 or less, otherwise to 'min'.
+   */
+  default OffsetParser<List<T>> repeat(int min, int max) {
+    int capacity = max > 0 && max <= 16 ? max : min;
+    return state -> {
+      int start = state.position();
+      List<T> result = capacity > 0 ? new ArrayList<>(capacity) : new ArrayList<>();
+      int pos = start;
+      while ((max <= 0 || result.size() < max) && parse(state)) {
+        result.add(state.value());
+        if (state.position() == pos) {
+          break;
+        }
+        pos = state.position();
+      }
+      if (result.size() < min) {
+        state.position(start);
+        return state.fail();
+      }
+      return state.succeed(result);
+    };
+  }
+
+  default OffsetParser<T> or(OffsetParser<T> alt) {
+    return state -> parse(state) || alt.parse(state);
+  }
+
+  default OffsetParser<T> orDefault(T v) {
+    return state -> parse(state) || state.succeed(v);
+  }
+
+  /**
+   * Parses one or more values separated by the delimiter.
+   */
+  default <R> OffsetParser<List<T>> separated(OffsetParser<R> delimiter) {
+    OffsetParser<T> skipped = prefix(delimiter);
+    return state -> {
+      if (!parse(state)) {
+        return false;
+      }
+      List<T> result = new ArrayList<>();
+      result.add(state.value());
+      int pos = state.position();
+      while (skipped.parse(state)) {
+        result.add(state.value());
+        if (state.position() == pos) {
+          break;
+        }
+        pos = state.position();
+      }
+      return state.succeed(result);
+    };
+  }
+
+  /**
+   * Parses zero or more values separated by the delimiter.
+   */
+  default <R> OffsetParser<List<T>> sepBy(OffsetParser<R> delimiter) {
+    OffsetParser<List<T>> separated = separated(delimiter);
+    return state -> separated.parse(state) || state.succeed(new ArrayList<>());
+  }
+
+  /**
+   * Adapts this to a {@link Parser}, slicing the rest of the input once at
+   * the end of the parse rather than at every step.
+   */
+  default Parser<T> toParser() {
+    return s -> parse(s, 0).map(p -> pair(p._1, s.subSequence(p._2, s.length())));
+  }
+
+  static CharSequence slice(CharSequence s, int start, int end) {
+    if (s instanceof String) {
+      return new StringView((String) s, start, end);
+    }
+    return s.subSequence(start, end);
+  }
+
+  /**
+   * Computes a value from the span of the input between 'start' and 'end'.
+   */
+  interface SpanFunction<R> {
+
+    R apply(CharSequence input, int start, int end);
+
+  }
+
+}
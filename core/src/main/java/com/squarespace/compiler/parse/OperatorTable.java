@@ -0,0 +1,316 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+import static com.squarespace.compiler.common.Maybe.just;
+import static com.squarespace.compiler.common.Maybe.nothing;
+import static com.squarespace.compiler.parse.Pair.pair;
+import static com.squarespace.compiler.parse.Struct.struct;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.squarespace.compiler.common.Maybe;
+
+
+/**
+ * Table of prefix and infix operators, from which an expression parser is
+ * built around an operand parser.
+ *
+ * <pre>
+ *   Parser&lt;Node&lt;T&gt;&gt; expr = new OperatorTable&lt;T&gt;()
+ *       .infix(op("+"), ADD, 10, LEFT)
+ *       .infix(op("*"), MUL, 20, LEFT)
+ *       .infix(op("^"), POW, 30, RIGHT)
+ *       .prefix(op("-"), NEG, 25)
+ *       .parser(operand);
+ * </pre>
+ *
+ * Higher precedence binds tighter. An infix operator produces a
+ * {@link Struct} of its type holding the left and right operands, and a
+ * prefix operator a Struct holding its one operand. Prefix operators apply
+ * to everything to their right which binds at least as tightly.
+ *
+ * The parser works in one pass over the input with explicit stacks of
+ * operands and operators, so neither the number of precedence levels nor
+ * the length of the expression adds to the call depth. An infix operator
+ * which is not followed by an operand is left unparsed, ending the
+ * expression before it.
+ *
+ * Operators can be given as either kind of parser, and the table builds
+ * either kind of expression parser. A {@link Parser} slices the rest of
+ * the input at each step, which copies it when the input is a String, so
+ * for long expressions prefer {@link #offsetParser(OffsetParser)} with
+ * OffsetParser operators, or pass the Parser a {@link
+ * com.squarespace.compiler.common.StringView}.
+ */
+public class OperatorTable<T extends Enum<T>> {
+
+  public enum Associativity {
+    LEFT,
+    RIGHT
+  }
+
+  private final List<Operator<T>> prefixes = new ArrayList<>();
+
+  private final List<Operator<T>> infixes = new ArrayList<>();
+
+  public OperatorTable<T> prefix(Parser<?> operator, T type, int precedence) {
+    return prefix(OffsetParser.from(operator), operator, type, precedence);
+  }
+
+  public OperatorTable<T> prefix(OffsetParser<?> operator, T type, int precedence) {
+    return prefix(operator, operator.toParser(), type, precedence);
+  }
+
+  public OperatorTable<T> infix(Parser<?> operator, T type, int precedence, Associativity associativity) {
+    return infix(OffsetParser.from(operator), operator, type, precedence, associativity);
+  }
+
+  public OperatorTable<T> infix(OffsetParser<?> operator, T type, int precedence, Associativity associativity) {
+    return infix(operator, operator.toParser(), type, precedence, associativity);
+  }
+
+  private OperatorTable<T> prefix(OffsetParser<?> offset, Parser<?> operator, T type, int precedence) {
+    prefixes.add(new Operator<>(offset, operator, type, precedence, true, false));
+    return this;
+  }
+
+  private OperatorTable<T> infix(OffsetParser<?> offset, Parser<?> operator, T type, int precedence,
+      Associativity associativity) {
+    infixes.add(new Operator<>(offset, operator, type, precedence, false, associativity == Associativity.RIGHT));
+    return this;
+  }
+
+  /**
+   * Builds a parser for expressions of the operand joined by the operators
+   * added so far. When several operators match at the same position the
+   * one which consumes the most is used.
+   */
+  public Parser<Node<T>> parser(Parser<Node<T>> operand) {
+    List<Operator<T>> prefixList = new ArrayList<>(prefixes);
+    List<Operator<T>> infixList = new ArrayList<>(infixes);
+    return s -> parse(operand, prefixList, infixList, s);
+  }
+
+  /**
+   * Builds an {@link OffsetParser} for expressions, which matches like
+   * {@link #parser(Parser)} but moves through the input by position, so
+   * nothing is sliced and the parse is linear in the length of the input.
+   */
+  public OffsetParser<Node<T>> offsetParser(OffsetParser<Node<T>> operand) {
+    List<Operator<T>> prefixList = new ArrayList<>(prefixes);
+    List<Operator<T>> infixList = new ArrayList<>(infixes);
+    return state -> parse(operand, prefixList, infixList, state);
+  }
+
+  private static <T extends Enum<T>> boolean parse(OffsetParser<Node<T>> operand, List<Operator<T>> prefixes,
+      List<Operator<T>> infixes, ParseState state) {
+
+    int start = state.position();
+    List<Node<T>> operands = new ArrayList<>();
+    List<Operator<T>> operators = new ArrayList<>();
+    if (!term(operand, prefixes, state, operands, operators)) {
+      state.position(start);
+      return state.fail();
+    }
+    while (true) {
+      int rest = state.position();
+      Operator<T> next = longest(infixes, state);
+      if (next == null) {
+        break;
+      }
+      while (!operators.isEmpty() && binds(operators.get(operators.size() - 1), next)) {
+        reduce(operands, operators);
+      }
+      int mark = operators.size();
+      operators.add(next);
+      if (!term(operand, prefixes, state, operands, operators)) {
+        while (operators.size() > mark) {
+          operators.remove(operators.size() - 1);
+        }
+        state.position(rest);
+        break;
+      }
+    }
+
+    while (!operators.isEmpty()) {
+      reduce(operands, operators);
+    }
+    return state.succeed(operands.get(0));
+  }
+
+  /**
+   * Parses any prefix operators followed by an operand, pushing them onto
+   * the stacks. Returns false if no operand follows, leaving the position
+   * after the prefixes.
+   */
+  private static <T extends Enum<T>> boolean term(OffsetParser<Node<T>> operand, List<Operator<T>> prefixes,
+      ParseState state, List<Node<T>> operands, List<Operator<T>> operators) {
+    Operator<T> prefix = longest(prefixes, state);
+    while (prefix != null) {
+      operators.add(prefix);
+      prefix = longest(prefixes, state);
+    }
+    if (!operand.parse(state)) {
+      return false;
+    }
+    operands.add(state.value());
+    return true;
+  }
+
+  /**
+   * Returns the operator which consumes the most at the state's position,
+   * leaving the position after it, or null if none matches.
+   */
+  private static <T extends Enum<T>> Operator<T> longest(List<Operator<T>> operators, ParseState state) {
+    int start = state.position();
+    Operator<T> result = null;
+    int end = start;
+    for (Operator<T> op : operators) {
+      if (op.offset.parse(state)) {
+        if (result == null || state.position() > end) {
+          result = op;
+          end = state.position();
+        }
+        state.position(start);
+      }
+    }
+    state.position(end);
+    return result;
+  }
+
+  private static <T extends Enum<T>> Maybe<Pair<Node<T>, CharSequence>> parse(Parser<Node<T>> operand,
+      List<Operator<T>> prefixes, List<Operator<T>> infixes, CharSequence s) {
+
+    List<Node<T>> operands = new ArrayList<>();
+    List<Operator<T>> operators = new ArrayList<>();
+    CharSequence rest = term(operand, prefixes, s, operands, operators);
+    if (rest == null) {
+      return nothing();
+    }
+    while (true) {
+      Pair<Operator<T>, CharSequence> infix = longest(infixes, rest);
+      if (infix == null) {
+        break;
+      }
+      // Operators which bind tighter than the new one are complete.
+      Operator<T> next = infix._1;
+      while (!operators.isEmpty() && binds(operators.get(operators.size() - 1), next)) {
+        reduce(operands, operators);
+      }
+      int mark = operators.size();
+      operators.add(next);
+      CharSequence after = term(operand, prefixes, infix._2, operands, operators);
+      if (after == null) {
+        // Leave the dangling operator, and any prefixes after it, unparsed.
+        while (operators.size() > mark) {
+          operators.remove(operators.size() - 1);
+        }
+        break;
+      }
+      rest = after;
+    }
+
+    while (!operators.isEmpty()) {
+      reduce(operands, operators);
+    }
+    return just(pair(operands.get(0), rest));
+  }
+
+  /**
+   * Parses any prefix operators followed by an operand, pushing them onto
+   * the stacks. Returns the rest of the input, or null if no operand follows.
+   */
+  private static <T extends Enum<T>> CharSequence term(Parser<Node<T>> operand, List<Operator<T>> prefixes,
+      CharSequence s, List<Node<T>> operands, List<Operator<T>> operators) {
+    CharSequence rest = s;
+    Pair<Operator<T>, CharSequence> prefix = longest(prefixes, rest);
+    while (prefix != null) {
+      operators.add(prefix._1);
+      rest = prefix._2;
+      prefix = longest(prefixes, rest);
+    }
+    Maybe<Pair<Node<T>, CharSequence>> result = operand.parse(rest);
+    if (result.isNothing()) {
+      return null;
+    }
+    operands.add(result.get()._1);
+    return result.get()._2;
+  }
+
+  /**
+   * Indicates whether the operator on the stack takes its right operand
+   * before the incoming infix operator gets its left one.
+   */
+  private static <T extends Enum<T>> boolean binds(Operator<T> top, Operator<T> next) {
+    if (top.precedence != next.precedence) {
+      return top.precedence > next.precedence;
+    }
+    return top.prefix || !next.right;
+  }
+
+  private static <T extends Enum<T>> void reduce(List<Node<T>> operands, List<Operator<T>> operators) {
+    Operator<T> op = operators.remove(operators.size() - 1);
+    Node<T> right = operands.remove(operands.size() - 1);
+    if (op.prefix) {
+      operands.add(struct(op.type, right));
+    } else {
+      Node<T> left = operands.remove(operands.size() - 1);
+      operands.add(struct(op.type, left, right));
+    }
+  }
+
+  private static <T extends Enum<T>> Pair<Operator<T>, CharSequence> longest(List<Operator<T>> operators,
+      CharSequence s) {
+    Operator<T> result = null;
+    CharSequence rest = null;
+    for (Operator<T> op : operators) {
+      Maybe<? extends Pair<?, CharSequence>> r = op.parser.parse(s);
+      if (r.isJust() && (rest == null || r.get()._2.length() < rest.length())) {
+        result = op;
+        rest = r.get()._2;
+      }
+    }
+    return result == null ? null : pair(result, rest);
+  }
+
+  private static final class Operator<T extends Enum<T>> {
+
+    final OffsetParser<?> offset;
+
+    final Parser<?> parser;
+
+    final T type;
+
+    final int precedence;
+
+    final boolean prefix;
+
+    final boolean right;
+
+    Operator(OffsetParser<?> offset, Parser<?> parser, T type, int precedence, boolean prefix, boolean right) {
+      this.offset = offset;
+      this.parser = parser;
+      this.type = type;
+      this.precedence = precedence;
+      this.prefix = prefix;
+      this.right = right;
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+
+/**
+ * Mutable result of an {@link OffsetParser}, holding the input, the
+ * current position, the value of the last successful step and whether the
+ * last step succeeded.
+ *
+ * Parsers write into the state rather than returning a new result, so a
+ * parse allocates nothing beyond the values the grammar builds. Reset and
+ * reuse one state for many parses. A state must not be shared between
+ * threads.
+ */
+public class ParseState {
+
+  private CharSequence input;
+
+  private int length;
+
+  private int position;
+
+  private Object value;
+
+  private boolean ok;
+
+  private MemoTable memo;
+
+  public ParseState() {
+    this("");
+  }
+
+  public ParseState(CharSequence input) {
+    reset(input, 0);
+  }
+
+  /**
+   * Prepares the state to parse the input from 'pos'.
+   */
+  public ParseState reset(CharSequence input, int pos) {
+    this.input = input;
+    this.length = input.length();
+    this.position = pos;
+    this.value = null;
+    this.ok = false;
+    if (memo != null) {
+      memo.clear();
+    }
+    return this;
+  }
+
+  public CharSequence input() {
+    return input;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public int position() {
+    return position;
+  }
+
+  /**
+   * Moves the position, for example to rewind after a failed alternative.
+   */
+  public void position(int pos) {
+    this.position = pos;
+  }
+
+  /**
+   * Indicates whether the last parse succeeded.
+   */
+  public boolean ok() {
+    return ok;
+  }
+
+  /**
+   * Value produced by the last successful step.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T value() {
+    return (T) value;
+  }
+
+  /**
+   * Table of memoized results for this parse, created on first use and
+   * cleared by {@link #reset(CharSequence, int)}.
+   */
+  MemoTable memo() {
+    if (memo == null) {
+      memo = new MemoTable();
+    }
+    return memo;
+  }
+
+  /**
+   * Records a successful step which produced 'value' and ended at 'end'.
+   */
+  public boolean succeed(Object value, int end) {
+    this.value = value;
+    this.position = end;
+    this.ok = true;
+    return true;
+  }
+
+  /**
+   * Replaces the value, leaving the position alone.
+   */
+  public boolean succeed(Object value) {
+    return succeed(value, position);
+  }
+
+  /**
+   * Records a failed step. The position is left where the step started.
+   */
+  public boolean fail() {
+    this.ok = false;
+    return false;
+  }
+
+}
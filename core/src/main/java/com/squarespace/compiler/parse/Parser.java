@@ -19,13 +19,13 @@ package com.squarespace.compiler.parse;
 import static com.squarespace.compiler.common.Maybe.just;
 import static com.squarespace.compiler.common.Maybe.nothing;
 import static com.squarespace.compiler.parse.Pair.pair;
-import static java.util.Collections.emptyList;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 
 import com.squarespace.compiler.common.Maybe;
+import com.squarespace.compiler.match.Recognizers;
 import com.squarespace.compiler.match.Recognizers.Recognizer;
 
 
@@ -39,7 +39,7 @@ public interface Parser<T> {
   static Parser<CharSequence> matcher(Recognizer pattern) {
     return s -> {
       int length = s.length();
-      int end = pattern.match(s, 0, length);
+      int end = Recognizers.match(pattern, s, 0, length);
       return end == -1 ? nothing() : just(pair(s.subSequence(0, end), s.subSequence(end, length)));
     };
   }
@@ -61,11 +61,39 @@ public interface Parser<T> {
   }
 
   default Parser<List<T>> zeroOrMore() {
-    return oneOrMore().orDefault(emptyList());
+    return repeat(0, 0);
   }
 
   default Parser<List<T>> oneOrMore() {
-    return flatMap(x -> zeroOrMore().map(xs -> cons(x, xs)));
+    return repeat(1, 0);
+  }
+
+  /**
+   * Parses at least 'min' and at most 'max' repetitions, or any number
+   * above 'min' when 'max' is 0. Repetition stops early at a match which
+   * consumes nothing, since it would repeat forever. The result list is
+   * presized to 'max' when it is 16 or less, otherwise to 'min'.
+   */
+  default Parser<List<T>> repeat(int min, int max) {
+    int capacity = max > 0 && max <= 16 ? max : min;
+    return s -> {
+      List<T> result = capacity > 0 ? new ArrayList<>(capacity) : new ArrayList<>();
+      CharSequence rest = s;
+      while (max <= 0 || result.size() < max) {
+        Maybe<Pair<T, CharSequence>> r = parse(rest);
+        if (r.isNothing()) {
+          break;
+        }
+        Pair<T, CharSequence> p = r.get();
+        result.add(p._1);
+        boolean advanced = p._2.length() < rest.length();
+        rest = p._2;
+        if (!advanced) {
+          break;
+        }
+      }
+      return result.size() < min ? nothing() : just(pair(result, rest));
+    };
   }
 
   default Parser<T> or(Parser<T> alt) {
@@ -76,9 +104,45 @@ public interface Parser<T> {
     return s -> parse(s).orElse(() -> just(pair(v, s)));
   }
 
+  /**
+   * Parses one or more values separated by the delimiter.
+   */
   default <R> Parser<List<T>> separated(Parser<R> delimiter) {
     Parser<T> skipped = prefix(delimiter);
-    return flatMap(t -> skipped.zeroOrMore().map(ts -> cons(t, ts)));
+    return s -> {
+      Maybe<Pair<T, CharSequence>> r = parse(s);
+      if (r.isNothing()) {
+        return nothing();
+      }
+      List<T> result = new ArrayList<>();
+      result.add(r.get()._1);
+      CharSequence rest = r.get()._2;
+      while (true) {
+        r = skipped.parse(rest);
+        if (r.isNothing()) {
+          break;
+        }
+        Pair<T, CharSequence> p = r.get();
+        result.add(p._1);
+        boolean advanced = p._2.length() < rest.length();
+        rest = p._2;
+        if (!advanced) {
+          break;
+        }
+      }
+      return just(pair(result, rest));
+    };
+  }
+
+  /**
+   * Parses zero or more values separated by the delimiter.
+   */
+  default <R> Parser<List<T>> sepBy(Parser<R> delimiter) {
+    Parser<List<T>> separated = separated(delimiter);
+    return s -> {
+      Maybe<Pair<List<T>, CharSequence>> r = separated.parse(s);
+      return r.isJust() ? r : just(pair(new ArrayList<>(), s));
+    };
   }
 
   static <T> List<T> cons(T x, List<T> xs) {
@@ -16,6 +16,9 @@
 
 package com.squarespace.compiler.text;
 
+import java.nio.CharBuffer;
+
+import com.squarespace.compiler.match.Recognizers;
 import com.squarespace.compiler.match.Recognizers.Recognizer;
 
 
@@ -30,6 +33,13 @@ public class Scanner {
     this.raw = raw;
   }
 
+  /**
+   * Scans a char array. Recognizers read the array directly.
+   */
+  public Scanner(char[] raw) {
+    this(CharBuffer.wrap(raw));
+  }
+
   public Stream stream() {
     return new Stream();
   }
@@ -134,7 +144,7 @@ public class Scanner {
      * indicating whether the recognizer matched.
      */
     public boolean seek(Recognizer matcher, Stream other) {
-      int r = matcher.match(raw, pos, end);
+      int r = Recognizers.match(matcher, raw, pos, end);
       if (r != -1) {
         other.set(pos, r);
         return true;
@@ -158,7 +168,7 @@ public class Scanner {
      * Skip over characters matched by the given pattern.
      */
     public boolean skip(Recognizer pattern) {
-      int e = pattern.match(raw, pos, end);
+      int e = Recognizers.match(pattern, raw, pos, end);
       if (e == -1) {
         return false;
       }
@@ -0,0 +1,153 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.any;
+import static com.squarespace.compiler.match.Recognizers.cardinality;
+import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.charSet;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.group;
+import static com.squarespace.compiler.match.Recognizers.hexdigit;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.notAscii;
+import static com.squarespace.compiler.match.Recognizers.notCharacters;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class DfaCompilerTest {
+
+  private static final Recognizer SPACES = zeroOrMore(whitespace());
+
+  private static final Recognizer EXPR = sequence(
+      SPACES,
+      characters('n', 'i', 'v', 'w', 'f', 't'),
+      SPACES,
+      zeroOrMore(sequence(characters('%'), SPACES, digits())),
+      SPACES,
+      choice(characters('='), literal("!=")),
+      SPACES,
+      digits());
+
+  private static final String[] INPUTS = new String[] {
+    "", " ", "n", "n % 1000 != 350", "  i%10=3", "n%10%3 = 2", "n % 1000 !== 350", "w  %  7 != 1x",
+    ".", "..", "1.", ".1", "123.45.", "12a", "0x1f", "foobarfoo", "foofoobar", "abc123", "ab",
+    "::..::", "xy.", "xyxy:", "\u2018\u2019abc", "a\u00a0b", "%%", "==", "!=", "=!", "aaaa", "abab",
+  };
+
+  @Test
+  public void testSingleTable() {
+    assertTrue(compile(EXPR) instanceof Dfa);
+    assertTrue(compile(oneOrMore(literal("foobar"))) instanceof Dfa);
+    assertTrue(compile(sequence(digits(), zeroOrOne(sequence(characters('.'), digits())), characters('%')))
+        instanceof Dfa);
+    assertTrue(compile(oneOrMore(charSet().addRange('a', 'z').add('_').build())) instanceof Dfa);
+  }
+
+  @Test
+  public void testExpression() {
+    Recognizer dfa = compile(EXPR);
+    assertEquals(dfa.match("n % 1000 != 350", 0, 15), 15);
+    assertEquals(dfa.match("___n%3=1", 3, 8), 8);
+    assertEquals(dfa.match("n % 1000 !== 350", 0, 16), FAIL);
+    assertEquals(dfa.match("n % = 350", 0, 9), FAIL);
+  }
+
+  @Test
+  public void testAmbiguous() {
+    // Greedy repetition swallows the character the sequence needs next, so the
+    // match fails. The compiled form must fail too.
+    Recognizer pattern = sequence(zeroOrMore(characters('.')), characters('.'));
+    assertEquals(pattern.match("...", 0, 3), FAIL);
+    assertEquals(compile(pattern).match("...", 0, 3), FAIL);
+
+    // Longest alternative wins and the sequence does not backtrack into the shorter one.
+    pattern = sequence(choice(literal("ab"), literal("abcd")), literal("cde"));
+    assertEquals(compile(pattern).match("abcde", 0, 5), FAIL);
+  }
+
+  @Test
+  public void testGroups() {
+    // Groups are kept, with the subtrees around them compiled.
+    Recognizer pattern = sequence(
+        group(0, digits()), zeroOrOne(sequence(characters('.'), group(1, digits()))), characters('%'));
+    int[] groups = new int[4];
+    assertEquals(compile(pattern).match("12.50%", 0, 6, groups), 6);
+    assertEquals(groups, new int[] { 0, 2, 3, 5 });
+  }
+
+  @Test
+  public void testEquivalence() {
+    Recognizer[] patterns = new Recognizer[] {
+      EXPR,
+      decimal(),
+      sequence(decimal(), characters('%')),
+      oneOrMore(literal("foo")),
+      sequence(oneOrMore(literal("foo")), literal("bar")),
+      sequence(zeroOrMore(characters('.')), characters(':')),
+      sequence(zeroOrMore(characters('.', ':')), characters(':')),
+      cardinality(characters('.', ':'), 2, 5),
+      cardinality(characters('a', 'b'), 3, 0),
+      cardinality(literal("ab"), 1, 2),
+      choice(zeroOrOne(characters('.')), zeroOrMore(characters(':'))),
+      choice(literal("a"), literal("ab"), literal("abc")),
+      sequence(choice(literal("a"), literal("ab")), characters('b')),
+      sequence(choice(literal("ab"), literal("abcd")), literal("cde")),
+      sequence(literal("xy"), any(), characters('z')),
+      sequence(oneOrMore(literal("xy")), lookAhead(characters('.', ':'))),
+      oneOrMore(choice(charRange('a', 'z'), charRange('A', 'Z'))),
+      oneOrMore(notCharacters('.', 'a', 'b', 'c')),
+      oneOrMore(notAscii()),
+      sequence(oneOrMore(word()), zeroOrMore(whitespace()), oneOrMore(hexdigit())),
+      zeroOrMore(sequence(characters('a'), zeroOrOne(characters('b')))),
+      zeroOrMore(choice(literal("ab"), literal("abcd"), literal("cde"))),
+      sequence(literal(""), characters('a')),
+      sequence(oneOrMore(charSet().addRange('a', 'z').add('.').build()), characters(':')),
+      oneOrMore(charSet().invert().remove('a', 'b').removeWhitespace().build()),
+    };
+
+    for (Recognizer pattern : patterns) {
+      Recognizer compiled = compile(pattern);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          int expected = pattern.match(input, pos, input.length());
+          assertEquals(compiled.match(input, pos, input.length()), expected, "'" + input + "' at " + pos);
+          assertEquals(compiled.match((CharSequence) input, pos, input.length()), expected);
+          assertEquals(compiled.match(input.toCharArray(), pos, input.length()), expected);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.finder;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.notCharacters;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.search;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class FinderTest {
+
+  private static final Recognizer INSTRUCTION = sequence(
+      literal("{."), oneOrMore(word()), zeroOrMore(notCharacters('}')), characters('}'));
+
+  @Test
+  public void testSearch() {
+    String source = "<p>{title}</p>{.section item}{.end}";
+    assertEquals(search(INSTRUCTION, source, 0, source.length()), 14);
+    assertEquals(search(INSTRUCTION, source, 15, source.length()), 29);
+    assertEquals(search(INSTRUCTION, source, 30, source.length()), FAIL);
+    assertEquals(search(INSTRUCTION, source, 0, 20), FAIL);
+
+    assertEquals(search(digits(), "abc123", 0, 6), 3);
+    assertEquals(search(digits(), "abc", 0, 3), FAIL);
+    assertEquals(search(literal("\u00e9t\u00e9"), "l'\u00e9t\u00e9", 0, 5), 2);
+  }
+
+  @Test
+  public void testFindAll() {
+    String source = "{.section a}{.repeated section b}x{b}{.end}{.end}";
+    Finder finder = finder(INSTRUCTION).reset(source, 0, source.length());
+    List<String> matches = new ArrayList<>();
+    while (finder.find()) {
+      matches.add(source.substring(finder.start(), finder.end()));
+    }
+    assertEquals(matches.toString(), "[{.section a}, {.repeated section b}, {.end}, {.end}]");
+    assertFalse(finder.find());
+
+    // Empty matches advance by one character.
+    finder = finder(zeroOrMore(characters('a'))).reset("ab", 0, 2);
+    assertTrue(finder.find());
+    assertEquals(finder.start(), 0);
+    assertEquals(finder.end(), 1);
+    assertTrue(finder.find());
+    assertEquals(finder.start(), 1);
+    assertEquals(finder.end(), 1);
+    assertTrue(finder.find());
+    assertEquals(finder.start(), 2);
+    assertFalse(finder.find());
+  }
+
+  @Test
+  public void testEquivalence() {
+    Recognizer custom = (seq, pos, len) -> pos < len && seq.charAt(pos) == 'b' ? pos + 1 : FAIL;
+    Recognizer[] patterns = new Recognizer[] {
+      INSTRUCTION,
+      compile(INSTRUCTION),
+      literal("abab"),
+      literal("a\u00e9a"),
+      literal(""),
+      sequence(literal("ab"), literal("c")),
+      sequence(literal("a"), oneOrMore(literal("ba")), characters('c')),
+      oneOrMore(literal("ab")),
+      choice(literal("aa"), literal("bc")),
+      literals("ab", "ca", "\u00e9"),
+      digits(),
+      oneOrMore(whitespace()),
+      zeroOrOne(characters('c')),
+      sequence(lookAhead(characters('a')), literal("ab")),
+      custom,
+    };
+
+    Random random = new Random(1);
+    String alphabet = "abc{.}1 \u00e9\u3000";
+    for (int i = 0; i < 200; i++) {
+      StringBuilder buf = new StringBuilder();
+      int length = random.nextInt(40);
+      for (int j = 0; j < length; j++) {
+        buf.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      String input = buf.toString();
+      int from = input.isEmpty() ? 0 : random.nextInt(input.length());
+      for (Recognizer pattern : patterns) {
+        assertEquals(findAll(pattern, input, from), naive(pattern, input, from), input);
+      }
+    }
+  }
+
+  private static List<Integer> findAll(Recognizer pattern, String input, int from) {
+    List<Integer> result = new ArrayList<>();
+    Finder finder = finder(pattern).reset(input, from, input.length());
+    while (finder.find()) {
+      result.add(finder.start());
+      result.add(finder.end());
+    }
+    return result;
+  }
+
+  private static List<Integer> naive(Recognizer pattern, String input, int from) {
+    List<Integer> result = new ArrayList<>();
+    int pos = from;
+    while (pos <= input.length()) {
+      int end = pattern.match(input, pos, input.length());
+      if (end == FAIL) {
+        pos++;
+        continue;
+      }
+      result.add(pos);
+      result.add(end);
+      pos = end > pos ? end : pos + 1;
+    }
+    return result;
+  }
+
+}
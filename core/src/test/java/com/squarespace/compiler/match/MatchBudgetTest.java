@@ -0,0 +1,129 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.MatchBudget.EXHAUSTED;
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.budget;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.group;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class MatchBudgetTest {
+
+  @Test
+  public void testSteps() {
+    Recognizer pattern = sequence(literal("abc"), digits());
+    MatchBudget budget = budget(100);
+    assertEquals(budget.match(pattern, "abc123", 0, 6), 6);
+    // Three literal characters, three digits, and no read at the end of input.
+    assertEquals(budget.remaining(), 94);
+    assertEquals(budget.match(pattern, "abx1", 0, 4), FAIL);
+    assertEquals(budget.remaining(), 91);
+
+    // Too short to match, so nothing is read.
+    assertEquals(budget.match(pattern, "abc", 0, 3), FAIL);
+    assertEquals(budget.remaining(), 91);
+
+    // The compiled form reads each character once.
+    budget = budget(6);
+    assertEquals(budget.match(compile(pattern), "abc123", 0, 6), 6);
+    assertEquals(budget.remaining(), 0);
+    assertFalse(budget.exhausted());
+    assertEquals(budget.match(pattern, "abc1", 0, 4), EXHAUSTED);
+    assertTrue(budget.exhausted());
+  }
+
+  @Test
+  public void testExhausted() {
+    // Each iteration succeeds without consuming, so only the budget stops it.
+    Recognizer pattern = zeroOrMore(lookAhead(characters('a')));
+    MatchBudget budget = budget(10000);
+    assertEquals(budget.match(pattern, "abc", 0, 3), EXHAUSTED);
+    assertEquals(budget.remaining(), 0);
+
+    // Everything after is refused, even matches which read nothing.
+    assertEquals(budget.match(literal(""), "", 0, 0), EXHAUSTED);
+
+    // Nested repetitions re-read the same characters.
+    Recognizer nested = oneOrMore(choice(
+        sequence(oneOrMore(word()), characters('!')),
+        sequence(oneOrMore(word()), characters('?')),
+        characters(' ')));
+    String input = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa? aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa?";
+    assertEquals(budget(1000).match(nested, input, 0, input.length()), input.length());
+    assertEquals(budget(100).match(nested, input, 0, input.length()), EXHAUSTED);
+  }
+
+  @Test
+  public void testGroups() {
+    Recognizer pattern = sequence(group(0, digits()), characters('%'));
+    int[] groups = new int[2];
+    assertEquals(budget(10).match(pattern, "12%", 0, 3, groups), 3);
+    assertEquals(groups, new int[] { 0, 2 });
+    assertEquals(budget(2).match(pattern, "12%", 0, 3, groups), EXHAUSTED);
+  }
+
+  @Test
+  public void testSwallowed() {
+    // Catching the stop doesn't let a wrong result through.
+    Recognizer careless = (seq, pos, length) -> {
+      try {
+        return seq.charAt(pos) == 'a' ? pos + 1 : FAIL;
+      } catch (RuntimeException e) {
+        return FAIL;
+      }
+    };
+    MatchBudget budget = budget(0);
+    assertEquals(budget.match(careless, "a", 0, 1), EXHAUSTED);
+    assertTrue(budget.exhausted());
+  }
+
+  @Test
+  public void testNested() {
+    MatchBudget budget = budget(100);
+    Recognizer nested = (seq, pos, length) -> budget.match(literal("a"), seq, pos, length);
+    try {
+      budget.match(nested, "a", 0, 1);
+      fail("expected a nested match to be refused");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    // The outer match cleaned up, so the budget is still usable.
+    assertEquals(budget.match(literal("a"), "a", 0, 1), 1);
+    assertEquals(budget.remaining(), 99);
+  }
+
+}
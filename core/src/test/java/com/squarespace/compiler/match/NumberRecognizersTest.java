@@ -0,0 +1,192 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.dimension;
+import static com.squarespace.compiler.match.Recognizers.hexNumber;
+import static com.squarespace.compiler.match.Recognizers.integer;
+import static com.squarespace.compiler.match.Recognizers.number;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.CharBuffer;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.common.StringView;
+import com.squarespace.compiler.match.Recognizers.NumberRecognizer;
+
+
+public class NumberRecognizersTest {
+
+  @Test
+  public void testInteger() {
+    NumberRecognizer pattern = integer();
+    assertLong(pattern, "0", 0);
+    assertLong(pattern, "123abc", 123);
+    assertLong(pattern, "-42", -42);
+    assertLong(pattern, "+7", 7);
+    assertLong(pattern, "9223372036854775807", Long.MAX_VALUE);
+    assertLong(pattern, "-9223372036854775808", Long.MIN_VALUE);
+    assertLong(pattern, "000000000000000000000001", 1);
+
+    assertFails(pattern, "");
+    assertFails(pattern, "-");
+    assertFails(pattern, "+x");
+    assertFails(pattern, "\uff11");
+    assertFails(pattern, "9223372036854775808");
+    assertFails(pattern, "-9223372036854775809");
+    assertFails(pattern, "99999999999999999999");
+  }
+
+  @Test
+  public void testNumber() {
+    NumberRecognizer pattern = number();
+    String[] inputs = new String[] {
+      "0", "1", "-1", "+1", "1.", ".5", "-.5", "3.14159", "1e3", "1E+3", "2.5e-3", "-0", "-0.0",
+      "123456789012345678901234567890", "0.1", "0.3", "1.7976931348623157e308", "4.9e-324", "1e400", "1e-400",
+      "9007199254740993", "0.000000000000000000000000000001", "123.456e-7", "1e22", "1e23", "12345678901234567.5",
+      "00000000000000000000000000001.5", "1e0000000000000000000005", "2.2250738585072014E-308",
+    };
+    NumberValue value = new NumberValue();
+    for (String input : inputs) {
+      assertEquals(pattern.match(input, 0, input.length(), value), input.length(), input);
+      assertEquals(value.doubleValue(), Double.parseDouble(input), input);
+      assertEquals(Double.doubleToRawLongBits(value.doubleValue()),
+          Double.doubleToRawLongBits(Double.parseDouble(input)), input);
+    }
+
+    // The exponent is only taken when digits follow.
+    assertDouble(pattern, "1e", 1, 1.0);
+    assertDouble(pattern, "1e+", 1, 1.0);
+    assertDouble(pattern, "2.5em", 3, 2.5);
+    assertDouble(pattern, "1.5.5", 3, 1.5);
+
+    assertFails(pattern, "");
+    assertFails(pattern, ".");
+    assertFails(pattern, "-.");
+    assertFails(pattern, "e5");
+    assertFails(pattern, "+e5");
+  }
+
+  @Test
+  public void testHex() {
+    NumberRecognizer pattern = hexNumber();
+    assertLong(pattern, "ff", 255);
+    assertLong(pattern, "DeadBeefg", 0xdeadbeefL);
+    assertLong(pattern, "ffffffffffffffff", -1);
+    assertLong(pattern, "00000000000000000001", 1);
+    assertFails(pattern, "");
+    assertFails(pattern, "g");
+    assertFails(pattern, "-1");
+    assertFails(pattern, "10000000000000000");
+  }
+
+  @Test
+  public void testDimension() {
+    NumberRecognizer pattern = dimension();
+    NumberValue value = new NumberValue();
+    assertEquals(pattern.match("12.5px;", 0, 7, value), 6);
+    assertEquals(value.doubleValue(), 12.5);
+    assertEquals("12.5px;".substring(value.unitStart(), value.unitEnd()), "px");
+
+    assertEquals(pattern.match("1e5em", 0, 5, value), 5);
+    assertEquals(value.doubleValue(), 1e5);
+    assertEquals(value.unitStart(), 3);
+
+    assertEquals(pattern.match("1em", 0, 3, value), 3);
+    assertEquals(value.doubleValue(), 1.0);
+    assertEquals(value.unitStart(), 1);
+
+    assertEquals(pattern.match("-50%%", 0, 5, value), 4);
+    assertEquals(value.longValue(), -50);
+    assertEquals(value.unitStart(), 3);
+    assertTrue(value.hasUnit());
+
+    assertEquals(pattern.match("3 px", 0, 4, value), 1);
+    assertFalse(value.hasUnit());
+    assertEquals(value.unitStart(), 1);
+
+    assertFails(pattern, "px");
+  }
+
+  @Test
+  public void testEntryPoints() {
+    String text = "  width: -12.75em;";
+    NumberValue value = new NumberValue();
+    CharSequence[] inputs = new CharSequence[] {
+      text,
+      new StringBuilder(text),
+      new StringView("xxx" + text + "yyy", 3, 3 + text.length()),
+      CharBuffer.wrap(("xx" + text).toCharArray(), 2, text.length()).slice(),
+    };
+    for (CharSequence input : inputs) {
+      assertEquals(dimension().match(input, 9, text.length(), value), 17, input.getClass().getName());
+      assertEquals(value.doubleValue(), -12.75);
+      assertEquals(value.unitStart(), 15, input.getClass().getName());
+      assertEquals(value.unitEnd(), 17);
+    }
+  }
+
+  @Test
+  public void testPlainMatch() {
+    // Used as a plain recognizer the ends are the same as with a value.
+    String[] inputs = new String[] { "", "1", "-1.5e3x", "ff", "12px", ".", "1e", "abc", "99999999999999999999" };
+    NumberRecognizer[] patterns = new NumberRecognizer[] { integer(), number(), hexNumber(), dimension() };
+    for (NumberRecognizer pattern : patterns) {
+      for (String input : inputs) {
+        int expected = pattern.match(input, 0, input.length(), new NumberValue());
+        assertEquals(pattern.match(input, 0, input.length()), expected);
+        assertEquals(pattern.match((CharSequence) input, 0, input.length()), expected);
+        assertEquals(pattern.match(input.toCharArray(), 0, input.length()), expected);
+        assertEquals(Recognizers.match(pattern, input, 0, input.length()), expected);
+      }
+    }
+
+    // Unsigned numbers match the same text as decimal().
+    for (String input : new String[] { "1", "1.", ".5", "12.34x", ".", "x" }) {
+      assertEquals(number().match(input, 0, input.length()), decimal().match(input, 0, input.length()), input);
+    }
+    assertEquals(Recognizers.minLength(number()), 1);
+  }
+
+  private static void assertLong(NumberRecognizer pattern, String input, long expected) {
+    NumberValue value = new NumberValue();
+    int end = pattern.match(input, 0, input.length(), value);
+    assertTrue(end > 0, input);
+    assertEquals(value.longValue(), expected, input);
+    assertEquals(pattern.match(CharBuffer.wrap(input.toCharArray()), 0, input.length(), value), end);
+    assertEquals(value.longValue(), expected, input);
+    assertEquals(pattern.match(new StringBuilder(input), 0, input.length(), value), end);
+    assertEquals(value.longValue(), expected, input);
+  }
+
+  private static void assertDouble(NumberRecognizer pattern, String input, int end, double expected) {
+    NumberValue value = new NumberValue();
+    assertEquals(pattern.match(input, 0, input.length(), value), end, input);
+    assertEquals(value.doubleValue(), expected, input);
+  }
+
+  private static void assertFails(NumberRecognizer pattern, String input) {
+    assertEquals(pattern.match(input, 0, input.length(), new NumberValue()), FAIL, input);
+    assertEquals(pattern.match(new StringBuilder(input), 0, input.length(), new NumberValue()), FAIL, input);
+  }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.any;
+import static com.squarespace.compiler.match.Recognizers.cardinality;
+import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.literalsIgnoreCase;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.nfa;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static org.testng.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Cardinality;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+
+
+public class PikeVmTest {
+
+  private static final String[] INPUTS = new String[] {
+    "", "a", "aa", "aaa", "aab", "ab", "abab", "abc", "abcabc", "ba", "bab", "b!", "aaab!", "abcab",
+  };
+
+  @Test
+  public void testBacktracking() {
+    // A star gives back characters for the rest of the sequence.
+    Recognizer pattern = sequence(zeroOrMore(any()), literal("ab"));
+    assertEquals(pattern.match("xxabyyab", 0, 8), FAIL);
+    assertEquals(nfa(pattern).match("xxabyyab", 0, 8), 8);
+    assertEquals(nfa(pattern).match("xxabyy", 0, 6), 4);
+
+    // A choice settles for a shorter alternative.
+    pattern = sequence(choice(literal("a"), literal("ab")), literal("bc"));
+    assertEquals(pattern.match("abc", 0, 3), FAIL);
+    assertEquals(nfa(pattern).match("abc", 0, 3), 3);
+
+    // Bounded repetition takes fewer than the maximum.
+    pattern = sequence(cardinality(characters('a'), 2, 4), literal("ab"));
+    assertEquals(pattern.match("aaaab", 0, 5), FAIL);
+    assertEquals(nfa(pattern).match("aaaab", 0, 5), 5);
+    assertEquals(nfa(pattern).match("aab", 0, 3), FAIL);
+    assertEquals(nfa(cardinality(characters('a'), 3, 2)).match("aaa", 0, 3), FAIL);
+
+    // Shorter decimals and literals are available too.
+    pattern = sequence(decimal(), literal("5"));
+    assertEquals(pattern.match("125", 0, 3), FAIL);
+    assertEquals(nfa(pattern).match("125", 0, 3), 3);
+    assertEquals(nfa(decimal()).match(".", 0, 1), FAIL);
+    assertEquals(nfa(decimal()).match("1.", 0, 2), 2);
+    assertEquals(nfa(decimal()).match(".5.", 0, 3), 2);
+
+    pattern = sequence(literals("a", "ab"), literal("bc"));
+    assertEquals(nfa(pattern).match("abc", 0, 3), 3);
+    pattern = sequence(literalsIgnoreCase("if", "ifx"), characters('X'));
+    assertEquals(nfa(pattern).match("IFX", 0, 3), 3);
+  }
+
+  @Test
+  public void testLinear() {
+    // (a+)+b against a run of a's is exponential with backtracking.
+    Recognizer pattern = nfa(sequence(oneOrMore(oneOrMore(characters('a'))), characters('b')));
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      buf.append('a');
+    }
+    assertEquals(pattern.match(buf, 0, buf.length()), FAIL);
+    buf.append('b');
+    assertEquals(pattern.match(buf, 0, buf.length()), buf.length());
+
+    // Repeating a pattern that can match empty terminates.
+    pattern = nfa(zeroOrMore(zeroOrMore(characters('a'))));
+    assertEquals(pattern.match("aaab", 0, 4), 3);
+  }
+
+  @Test
+  public void testLargeProgram() {
+    // Loop bodies long enough to grow the program while it is built.
+    Recognizer pattern = nfa(zeroOrMore(literal("abcdefghijklmnopqrst")));
+    assertEquals(pattern.match("", 0, 0), 0);
+    assertEquals(pattern.match("abcdefghijklmnopqrstabcdefghijklmnopqrstabc", 0, 43), 40);
+
+    pattern = nfa(cardinality(decimal(), 1, 3));
+    assertEquals(pattern.match("1.5", 0, 3), 3);
+    assertEquals(pattern.match("x", 0, 1), FAIL);
+
+    pattern = nfa(sequence(oneOrMore(literal("abcdefghijklmnopqrstuvwxyz")), characters('!')));
+    assertEquals(pattern.match("abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz!", 0, 53), 53);
+  }
+
+  @Test
+  public void testLookAhead() {
+    // Word followed by '!' somewhere later.
+    Recognizer pattern = nfa(sequence(lookAhead(sequence(zeroOrMore(any()), characters('!'))), oneOrMore(word())));
+    assertEquals(pattern.match("abc !", 0, 5), 3);
+    assertEquals(pattern.match("abc ?", 0, 5), FAIL);
+  }
+
+  @Test
+  public void testOpaque() {
+    // Unknown recognizers are matched atomically.
+    Recognizer custom = (seq, pos, length) -> pos + 2 <= length ? pos + 2 : FAIL;
+    Recognizer pattern = nfa(sequence(zeroOrMore(custom), characters('!')));
+    assertEquals(pattern.match("abcd!", 0, 5), 5);
+    assertEquals(pattern.match("abc!", 0, 4), FAIL);
+
+    pattern = nfa(sequence(choice(compile(digits()), literal("1")), literal("12")));
+    assertEquals(pattern.match("112", 0, 3), 3);
+    assertEquals(pattern.match("1212", 0, 4), FAIL);
+  }
+
+  @Test
+  public void testEquivalence() {
+    Recognizer ab = literal("ab");
+    Recognizer[] patterns = new Recognizer[] {
+      sequence(zeroOrMore(characters('a')), literal("ab")),
+      sequence(zeroOrMore(choice(characters('a'), ab)), characters('b')),
+      sequence(oneOrMore(any()), literal("b!")),
+      sequence(cardinality(charRange('a', 'c'), 1, 3), literal("c")),
+      zeroOrMore(sequence(zeroOrOne(characters('a')), zeroOrOne(characters('b')))),
+      sequence(choice(ab, literal("abc"), literal("a")), zeroOrMore(literal("cab"))),
+      sequence(zeroOrOne(ab), ab, zeroOrMore(characters('c'))),
+      choice(sequence(ab, ab), sequence(characters('a'), oneOrMore(characters('b', 'a')))),
+      sequence(oneOrMore(oneOrMore(characters('a'))), characters('b')),
+    };
+
+    for (Recognizer pattern : patterns) {
+      Recognizer nfa = nfa(pattern);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          Set<Integer> ends = ends(pattern, input, pos);
+          int expected = ends.isEmpty() ? FAIL : Collections.max(ends);
+          assertEquals(nfa.match(input, pos, input.length()), expected, "'" + input + "' at " + pos);
+        }
+      }
+    }
+  }
+
+  /**
+   * Every position a match of the pattern starting at 'pos' can end at,
+   * following all paths through the tree.
+   */
+  private static Set<Integer> ends(Recognizer pattern, String str, int pos) {
+    Set<Integer> result = new TreeSet<>();
+    if (pattern instanceof Sequence) {
+      result.add(pos);
+      for (Recognizer child : ((Sequence) pattern).patterns) {
+        Set<Integer> next = new TreeSet<>();
+        for (int end : result) {
+          next.addAll(ends(child, str, end));
+        }
+        result = next;
+      }
+    } else if (pattern instanceof Choice) {
+      for (Recognizer child : ((Choice) pattern).patterns) {
+        result.addAll(ends(child, str, pos));
+      }
+    } else if (pattern instanceof Cardinality) {
+      Cardinality card = (Cardinality) pattern;
+      Set<Integer> current = Collections.singleton(pos);
+      int limit = card.limit == 0 ? str.length() - pos + 1 : card.limit;
+      if (card.start == 0) {
+        result.add(pos);
+      }
+      for (int count = 1; count <= limit && !current.isEmpty(); count++) {
+        Set<Integer> next = new TreeSet<>();
+        for (int end : current) {
+          next.addAll(ends(card.pattern, str, end));
+        }
+        current = next;
+        if (count >= card.start) {
+          result.addAll(current);
+        }
+      }
+    } else if (pattern instanceof Literal) {
+      int end = pattern.match(str, pos, str.length());
+      if (end != FAIL) {
+        result.add(end);
+      }
+    } else {
+      // Single character.
+      int end = pattern.match(str, pos, Math.min(pos + 1, str.length()));
+      if (end != FAIL) {
+        result.add(end);
+      }
+    }
+    return result;
+  }
+
+}
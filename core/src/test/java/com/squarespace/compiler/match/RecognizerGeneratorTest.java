@@ -0,0 +1,135 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.any;
+import static com.squarespace.compiler.match.Recognizers.cardinality;
+import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.generate;
+import static com.squarespace.compiler.match.Recognizers.hexdigit;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.notAscii;
+import static com.squarespace.compiler.match.Recognizers.notCharacters;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.notWhitespace;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class RecognizerGeneratorTest {
+
+  private static final Recognizer SPACES = zeroOrMore(whitespace());
+
+  private static final Recognizer EXPR = sequence(
+      SPACES,
+      characters('n', 'i', 'v', 'w', 'f', 't'),
+      SPACES,
+      zeroOrMore(sequence(characters('%'), SPACES, digits())),
+      SPACES,
+      choice(characters('='), literal("!=")),
+      SPACES,
+      digits());
+
+  private static final String[] INPUTS = new String[] {
+    "", " ", "n", "n % 1000 != 350", "  i%10=3", "n%10%3 = 2", "n % 1000 !== 350", "w  %  7 != 1x",
+    ".", "..", "1.", ".1", "123.45.", "12a", "0x1f", "foobarfoo", "foofoobar", "abc123", "ab",
+    "::..::", "xy.", "xyxy:", "\u2018\u2019abc", "a\u00a0b", "%%", "==", "!=", "=!", "aaaa", "abab",
+    "abcdefghijklmnopqrstuvwxyz", "abcdefghijklmnopqrstuvwxyz!",
+  };
+
+  @Test
+  public void testGenerated() {
+    Recognizer generated = generate(EXPR);
+    assertNotSame(generated.getClass().getClassLoader(), Recognizers.class.getClassLoader());
+    assertEquals(generated.match("n % 1000 != 350", 0, 15), 15);
+    assertEquals(generated.match("___n%3=1", 3, 8), 8);
+    assertEquals(generated.match("n % 1000 !== 350", 0, 16), FAIL);
+    assertEquals(generated.match("n % = 350", 0, 9), FAIL);
+  }
+
+  @Test
+  public void testTooLarge() {
+    Recognizer[] patterns = new Recognizer[2000];
+    for (int i = 0; i < patterns.length; i++) {
+      patterns[i] = literal("abc");
+    }
+    Recognizer pattern = sequence(patterns);
+    assertSame(generate(pattern), pattern);
+  }
+
+  @Test
+  public void testEquivalence() {
+    Recognizer custom = (seq, pos, len) -> pos < len && seq.charAt(pos) == '!' ? pos + 1 : FAIL;
+    Recognizer[] patterns = new Recognizer[] {
+      EXPR,
+      compile(EXPR),
+      decimal(),
+      sequence(decimal(), characters('%')),
+      oneOrMore(literal("foo")),
+      sequence(oneOrMore(literal("foo")), literal("bar")),
+      sequence(zeroOrMore(characters('.')), characters('.')),
+      sequence(zeroOrMore(characters('.', ':')), characters(':')),
+      cardinality(characters('.', ':'), 2, 5),
+      cardinality(characters('a', 'b'), 3, 0),
+      cardinality(literal("ab"), 1, 2),
+      choice(zeroOrOne(characters('.')), zeroOrMore(characters(':'))),
+      choice(literal("a"), literal("ab"), literal("abc")),
+      sequence(choice(literal("a"), literal("ab")), characters('b')),
+      sequence(choice(literal("ab"), literal("abcd")), literal("cde")),
+      sequence(literal("xy"), any(), characters('z')),
+      sequence(oneOrMore(literal("xy")), lookAhead(characters('.', ':'))),
+      oneOrMore(choice(charRange('a', 'z'), charRange('A', 'Z'))),
+      oneOrMore(notCharacters('.', 'a', 'b', 'c')),
+      oneOrMore(notAscii()),
+      oneOrMore(notWhitespace()),
+      sequence(oneOrMore(word()), zeroOrMore(whitespace()), oneOrMore(hexdigit())),
+      zeroOrMore(sequence(characters('a'), zeroOrOne(characters('b')))),
+      zeroOrMore(choice(literal("ab"), literal("abcd"), literal("cde"))),
+      sequence(literal(""), characters('a')),
+      sequence(),
+      sequence(literal("abcdefghijklmnopqrstuvwxyz"), zeroOrOne(custom)),
+    };
+
+    for (Recognizer pattern : patterns) {
+      Recognizer generated = generate(pattern);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          int expected = pattern.match(input, pos, input.length());
+          assertEquals(generated.match(input, pos, input.length()), expected, "'" + input + "' at " + pos);
+        }
+      }
+    }
+  }
+
+}
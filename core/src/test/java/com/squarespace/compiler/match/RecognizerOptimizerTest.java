@@ -0,0 +1,176 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.any;
+import static com.squarespace.compiler.match.Recognizers.cardinality;
+import static com.squarespace.compiler.match.Recognizers.charClass;
+import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.digit;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.notCharacters;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.optimize;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static com.squarespace.compiler.text.DefaultCharClassifier.DIGIT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.CharacterRange;
+import com.squarespace.compiler.match.Recognizers.Characters;
+import com.squarespace.compiler.match.Recognizers.Choice;
+import com.squarespace.compiler.match.Recognizers.Literal;
+import com.squarespace.compiler.match.Recognizers.Plus;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Sequence;
+import com.squarespace.compiler.match.Recognizers.Star;
+import com.squarespace.compiler.text.DefaultCharClassifier;
+
+
+public class RecognizerOptimizerTest {
+
+  private static final Recognizer SPACES = zeroOrMore(whitespace());
+
+  private static final Recognizer EXPR = sequence(
+      SPACES,
+      characters('n', 'i', 'v', 'w', 'f', 't'),
+      SPACES,
+      zeroOrMore(sequence(characters('%'), SPACES, digits())),
+      SPACES,
+      choice(characters('='), literal("!=")),
+      SPACES,
+      digits());
+
+  private static final String[] INPUTS = new String[] {
+    "", " ", "n", "n % 1000 != 350", "  i%10=3", "n%10%3 = 2", "n % 1000 !== 350", "w  %  7 != 1x",
+    ".", "..", "1.", ".1", "123.45.", "12a", "0x1f", "foobarfoo", "foofoobar", "abc123", "ab",
+    "::..::", "xy.", "xyxy:", "\u2018\u2019abc", "a\u00a0b", "%%", "==", "!=", "=!", "aaaa", "abab",
+  };
+
+  @Test
+  public void testFlatten() {
+    Recognizer pattern = optimize(sequence(literal("{"), sequence(characters('.'), literal("if")), whitespace()));
+    assertTrue(pattern instanceof Sequence);
+    Recognizer[] children = ((Sequence) pattern).patterns;
+    assertEquals(children.length, 2);
+    assertEquals(((Literal) children[0]).literal, "{.if");
+
+    pattern = optimize(choice(literal("ab"), choice(literal("cd"), choice(literal("ef"), literal("gh")))));
+    assertEquals(((Choice) pattern).patterns.length, 4);
+
+    assertTrue(optimize(sequence(literal("a"), characters('b'))) instanceof Literal);
+    assertTrue(optimize(choice(literal("abc"))) instanceof Literal);
+  }
+
+  @Test
+  public void testCharacters() {
+    assertTrue(optimize(characters('a', 'b', 'c', 'd')) instanceof CharacterRange);
+    assertTrue(optimize(characters('a', 'x', 'c')) instanceof Characters);
+    assertTrue(optimize(characters('a', 'x', 'c', '!', '-', '+')) instanceof CharSet);
+    assertTrue(optimize(charClass(DIGIT, new DefaultCharClassifier())) instanceof CharacterRange);
+
+    // Single-character alternatives merge into one set.
+    Recognizer pattern = optimize(choice(charRange('a', 'z'), charRange('A', 'Z'), characters('_'), literal("::")));
+    assertEquals(((Choice) pattern).patterns.length, 2);
+    assertTrue(((Choice) pattern).patterns[0] instanceof CharSet);
+
+    assertSame(optimize(choice(notCharacters('a'), characters('a'))), any());
+  }
+
+  @Test
+  public void testCardinality() {
+    Recognizer pattern = optimize(zeroOrMore(oneOrMore(characters('a'))));
+    assertTrue(pattern instanceof Star);
+    assertTrue(((Star) pattern).pattern instanceof Characters);
+
+    pattern = optimize(oneOrMore(oneOrMore(characters('a'))));
+    assertTrue(pattern instanceof Plus);
+    assertTrue(((Plus) pattern).pattern instanceof Characters);
+
+    pattern = optimize(cardinality(zeroOrOne(characters('a')), 2, 3));
+    assertEquals(((Recognizers.Cardinality) pattern).start, 0);
+    assertEquals(((Recognizers.Cardinality) pattern).limit, 3);
+
+    // An empty outer range fails whatever the inner repetition matches.
+    Recognizer original = cardinality(zeroOrMore(characters('a')), 3, 2);
+    assertEquals(original.match("aaa", 0, 3), FAIL);
+    assertEquals(optimize(original).match("aaa", 0, 3), FAIL);
+    assertEquals(optimize(cardinality(zeroOrOne(characters('a')), 3, 2)).match("aaa", 0, 3), FAIL);
+  }
+
+  @Test
+  public void testIntern() {
+    Recognizer pattern = optimize(sequence(
+        charClass(DIGIT, new DefaultCharClassifier()), literal("-"), digit(), literal("-"), charRange('0', '9')));
+    Recognizer[] children = ((Sequence) pattern).patterns;
+    assertSame(children[0], children[2]);
+    assertSame(children[0], children[4]);
+  }
+
+  @Test
+  public void testEquivalence() {
+    Recognizer custom = (seq, pos, len) -> pos < len && seq.charAt(pos) == '!' ? pos + 1 : FAIL;
+    Recognizer[] patterns = new Recognizer[] {
+      EXPR,
+      decimal(),
+      sequence(decimal(), characters('%')),
+      sequence(oneOrMore(literal("foo")), literal("bar")),
+      sequence(zeroOrMore(characters('.')), characters('.')),
+      sequence(literal("ab"), sequence(characters('a'), literal("b")), characters('a', 'b')),
+      choice(literal("a"), choice(literal("ab"), choice(literal("abc"), characters('x')))),
+      choice(zeroOrOne(characters('.')), zeroOrMore(characters(':')), characters(':', '.', 'x')),
+      choice(charRange('a', 'z'), charRange('A', 'Z'), whitespace(), custom),
+      oneOrMore(oneOrMore(characters('a', 'b'))),
+      zeroOrMore(oneOrMore(literal("ab"))),
+      cardinality(oneOrMore(characters('a')), 1, 3),
+      cardinality(zeroOrOne(characters('a', 'b')), 2, 3),
+      cardinality(cardinality(characters('a'), 2, 0), 1, 2),
+      cardinality(cardinality(characters('a'), 2, 3), 1, 2),
+      zeroOrOne(zeroOrOne(literal("ab"))),
+      lookAhead(lookAhead(literal("ab"))),
+      sequence(oneOrMore(word()), zeroOrMore(whitespace()), oneOrMore(notCharacters('a', 'b', 'c', 'x', 'y'))),
+      sequence(literal(""), characters('a')),
+      sequence(),
+      choice(),
+    };
+
+    for (Recognizer pattern : patterns) {
+      Recognizer optimized = optimize(pattern);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          int expected = pattern.match(input, pos, input.length());
+          assertEquals(optimized.match(input, pos, input.length()), expected, "'" + input + "' at " + pos);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.compile;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.group;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.profiled;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.RecognizerProfiles.Snapshot;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class RecognizerProfilesTest {
+
+  @Test
+  public void testDisabled() {
+    Recognizer pattern = digits();
+    assertSame(profiled("test.disabled", pattern), pattern);
+    assertFalse(RecognizerProfiles.snapshot().containsKey("test.disabled"));
+  }
+
+  @Test
+  public void testProfiled() {
+    Recognizer pattern;
+    RecognizerProfiles.setEnabled(true);
+    try {
+      pattern = choice(
+          profiled("test.number", sequence(digits(), characters('%'))),
+          profiled("test.keyword", literal("auto")));
+    } finally {
+      RecognizerProfiles.setEnabled(false);
+    }
+
+    assertEquals(pattern.match("50%", 0, 3), 3);
+    assertEquals(pattern.match("auto", 0, 4), 4);
+    assertEquals(pattern.match("50px", 0, 4), FAIL);
+    assertEquals(pattern.match("1%".toCharArray(), 0, 2), 2);
+
+    Snapshot number = RecognizerProfiles.snapshot().get("test.number");
+    assertEquals(number.calls(), 3);
+    assertEquals(number.matches(), 2);
+    assertEquals(number.failures(), 1);
+    assertEquals(number.characters(), 5);
+    assertEquals(number.successRatio(), 2.0 / 3.0, 0.0001);
+    assertTrue(number.nanos() >= 0);
+
+    // Only tried where the first character allows it.
+    Snapshot keyword = RecognizerProfiles.snapshot().get("test.keyword");
+    assertEquals(keyword.calls(), 1);
+    assertEquals(keyword.characters(), 4);
+
+    // The wrapper survives compiling, with its contents compiled.
+    Recognizer compiled = compile(pattern);
+    assertEquals(compiled.match("7%", 0, 2), 2);
+    assertEquals(RecognizerProfiles.snapshot().get("test.number").calls(), 4);
+
+    RecognizerProfiles.reset();
+    assertEquals(RecognizerProfiles.snapshot().get("test.number").calls(), 0);
+  }
+
+  @Test
+  public void testGroups() {
+    Recognizer pattern;
+    RecognizerProfiles.setEnabled(true);
+    try {
+      pattern = profiled("test.groups", sequence(group(0, digits()), characters('%')));
+    } finally {
+      RecognizerProfiles.setEnabled(false);
+    }
+    int[] groups = new int[2];
+    assertEquals(pattern.match("12%", 0, 3, groups), 3);
+    assertEquals(groups, new int[] { 0, 2 });
+  }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.charSet;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.fromRegex;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.CharSet;
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class RecognizerTablesTest {
+
+  private static final String[] INPUTS = new String[] {
+    "", "1", "12.5%", "-3px", "auto", "autox", "foo bar", "\u00e9t\u00e9", "\u4e2d\u6587x", "  x", "100%%",
+  };
+
+  @Test
+  public void testRoundTrip() {
+    Map<String, Recognizer> patterns = new Tables().get();
+    Map<String, Recognizer> loaded = RecognizerTables.load(ByteBuffer.wrap(RecognizerTables.encode(patterns)));
+    assertEquals(loaded.keySet().toArray(), patterns.keySet().toArray());
+    assertTrue(loaded.get("number") instanceof Dfa);
+    assertTrue(loaded.get("letters") instanceof CharSet);
+    for (Map.Entry<String, Recognizer> entry : patterns.entrySet()) {
+      assertSame(loaded.get(entry.getKey()), entry.getValue(), entry.getKey());
+    }
+  }
+
+  @Test
+  public void testFile() throws Exception {
+    Path dir = Files.createTempDirectory("tables");
+    Path path = dir.resolve("out/recognizers.bin");
+    try {
+      RecognizerTables.main(new String[] { path.toString(), Tables.class.getName() });
+      Map<String, Recognizer> loaded = RecognizerTables.load(path);
+      assertSame(loaded.get("number"), new Tables().get().get("number"), "number");
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(path.getParent());
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void testRejected() {
+    Map<String, Recognizer> patterns = new LinkedHashMap<>();
+    patterns.put("lookahead", sequence(digits(), lookAhead(characters('%'))));
+    try {
+      RecognizerTables.encode(patterns);
+      fail("expected the look-ahead to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    byte[] data = RecognizerTables.encode(new Tables().get());
+    assertInvalid(Arrays.copyOf(data, data.length - 3));
+    data[0] = 'X';
+    assertInvalid(data);
+  }
+
+  private static void assertSame(Recognizer actual, Recognizer expected, String name) {
+    for (String input : INPUTS) {
+      for (int pos = 0; pos <= input.length(); pos++) {
+        assertEquals(actual.match(input, pos, input.length()), expected.match(input, pos, input.length()),
+            name + " at " + pos + " of '" + input + "'");
+      }
+    }
+  }
+
+  private static void assertInvalid(byte[] data) {
+    try {
+      RecognizerTables.load(ByteBuffer.wrap(data));
+      fail("expected the data to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public static class Tables implements Supplier<Map<String, Recognizer>> {
+
+    @Override
+    public Map<String, Recognizer> get() {
+      Map<String, Recognizer> result = new LinkedHashMap<>();
+      result.put("number", fromRegex("-?\\d+(?:\\.\\d+)?(?:%|px|em)?"));
+      result.put("keyword", fromRegex("auto|inherit|initial"));
+      result.put("segments", sequence(zeroOrMore(characters(' ')), literal("x")));
+      result.put("letters", charSet().addRange('a', 'z').addRange('\u00e0', '\u00ff').add('\u4e2d').build());
+      result.put("empty", literal(""));
+      return result;
+    }
+  }
+
+}
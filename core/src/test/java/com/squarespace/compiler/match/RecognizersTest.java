@@ -21,13 +21,17 @@ import static com.squarespace.compiler.match.Recognizers.FAIL;
 import static com.squarespace.compiler.match.Recognizers.any;
 import static com.squarespace.compiler.match.Recognizers.cardinality;
 import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.charSet;
 import static com.squarespace.compiler.match.Recognizers.characters;
 import static com.squarespace.compiler.match.Recognizers.choice;
 import static com.squarespace.compiler.match.Recognizers.decimal;
 import static com.squarespace.compiler.match.Recognizers.digit;
 import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.group;
 import static com.squarespace.compiler.match.Recognizers.hexdigit;
 import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.literalsIgnoreCase;
 import static com.squarespace.compiler.match.Recognizers.lookAhead;
 import static com.squarespace.compiler.match.Recognizers.notAscii;
 import static com.squarespace.compiler.match.Recognizers.notCharClass;
@@ -43,10 +47,21 @@ import static com.squarespace.compiler.match.Recognizers.worddash;
 import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
 import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
 import static com.squarespace.compiler.text.DefaultCharClassifier.DIGIT;
+import static com.squarespace.compiler.text.DefaultCharClassifier.LOWERCASE;
+import static com.squarespace.compiler.text.DefaultCharClassifier.UPPERCASE;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import org.testng.annotations.Test;
 
+import com.squarespace.compiler.common.StringView;
+import com.squarespace.compiler.match.Recognizers.AdaptiveChoice;
 import com.squarespace.compiler.match.Recognizers.Recognizer;
 import com.squarespace.compiler.text.DefaultCharClassifier;
 import com.squarespace.compiler.text.CharClassifier;
@@ -56,6 +71,43 @@ public class RecognizersTest {
 
   private static final CharClassifier CLASSIFIER = new DefaultCharClassifier();
 
+  @Test
+  public void testAdaptiveChoice() throws Exception {
+    Recognizer[] alternatives = new Recognizer[] {
+      literals("auto", "inherit"), sequence(literal("au"), zeroOrMore(word())), literal("a"),
+      sequence(digits(), zeroOrOne(literal("px"))), decimal(), lookAhead(characters('!')), charRange('a', 'z'),
+    };
+    Recognizer expected = choice(alternatives);
+    AdaptiveChoice adaptive = (AdaptiveChoice) Recognizers.adaptiveChoice(alternatives);
+    String[] inputs = new String[] {
+      "auto", "autos", "inherit", "a", "ab", "12px", "12.5", "12", ".5", "!", "", "x", "_", "au", "1.5px",
+    };
+
+    // Enough calls to reorder several times, mostly won by the numbers.
+    int rounds = AdaptiveChoice.SAMPLE_RATE * AdaptiveChoice.REORDER_INTERVAL / 4;
+    for (int i = 0; i < rounds; i++) {
+      String input = i % 8 == 0 ? inputs[(i / 8) % inputs.length] : "123px";
+      for (int pos = 0; pos <= input.length(); pos++) {
+        assertEquals(match(adaptive, pos, input), match(expected, pos, input), input + " at " + pos);
+      }
+    }
+    assertEquals(adaptive.ranking()[0], 3);
+
+    // Concurrent matching agrees while the order changes underneath.
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      pool.submit(() -> IntStream.range(0, rounds).parallel().forEach(i -> {
+        String input = inputs[i % inputs.length];
+        assertEquals(adaptive.match(input, 0, input.length()), expected.match(input, 0, input.length()));
+      })).get();
+    } finally {
+      pool.shutdown();
+    }
+
+    // Rewriting keeps the adaptive behavior.
+    assertTrue(Recognizers.optimize(adaptive) instanceof AdaptiveChoice);
+  }
+
   @Test
   public void testAny() {
 
@@ -189,6 +241,41 @@ public class RecognizersTest {
     assertEquals(match(pattern, "abCde"), FAIL);
   }
 
+  @Test
+  public void testCharSet() {
+
+    // REGEX  [a-zA-Z0-9_$\u00c0-\u024f]+
+    Recognizer pattern = oneOrMore(charSet()
+        .addClass(LOWERCASE | UPPERCASE | DIGIT)
+        .add('_', '$')
+        .addRange('\u00c0', '\u024f')
+        .build());
+
+    assertEquals(match(pattern, "abc_$123"), 8);
+    assertEquals(match(pattern, "\u00c0\u0100\u024fz"), 4);
+    assertEquals(match(pattern, "abc-def"), 3);
+    assertEquals(match(pattern, 3, "___xyz\u0250"), 6);
+
+    assertEquals(match(pattern, "-"), FAIL);
+    assertEquals(match(pattern, "\u00bf"), FAIL);
+    assertEquals(match(pattern, ""), FAIL);
+
+    // REGEX  [\u0000-\uffff&&[^a-z\s]]
+    pattern = charSet().invert().removeRange('a', 'z').removeWhitespace().build();
+
+    assertEquals(match(pattern, "A"), 1);
+    assertEquals(match(pattern, "\uffff"), 1);
+    assertEquals(match(pattern, "\u4e00"), 1);
+    assertEquals(match(pattern, "a"), FAIL);
+    assertEquals(match(pattern, "\u3000"), FAIL);
+    assertEquals(match(pattern, " "), FAIL);
+
+    // Operations apply in order.
+    pattern = charSet().addRange('0', '9').remove('5').add('5').removeClass(UPPERCASE).build();
+    assertEquals(match(pattern, "5"), 1);
+    assertEquals(match(pattern, "x"), FAIL);
+  }
+
   @Test
   public void testChoice() {
 
@@ -207,6 +294,35 @@ public class RecognizersTest {
     assertEquals(match(pattern, "x"), 0);
   }
 
+  @Test
+  public void testChoiceDispatch() {
+    Recognizer custom = (seq, pos, len) -> pos + 1 < len && seq.charAt(pos + 1) == '!' ? pos + 2 : FAIL;
+    Recognizer[] alternatives = new Recognizer[] {
+      literal("=="), literal("!="), literal("<="), literal(""), characters('<', '>'), notCharacters('a'),
+      charRange('\u00c0', '\u00ff'), notCharRange('\u0000', '\u007f'), whitespace(), digits(), decimal(),
+      sequence(zeroOrOne(characters('-')), digits()), lookAhead(characters('x')), literals("if", "in", "\u00e9t\u00e9"),
+      literalsIgnoreCase("else", "end"), charSet().add('@', '#').addRange('\u4e00', '\u4e0f').build(), custom,
+    };
+    String[] inputs = new String[] {
+      "", "==", "!=", "<=", "<", ">", "a", "b", "\u00c0", "\u00e9t\u00e9", "\u3000", " ", "123", ".5", "-7",
+      "x", "if", "in", "ELSE", "End", "@", "#", "\u4e00", "\u4e10", "a!", "\u212a",
+    };
+
+    // Each pair of alternatives, which must match the longest of the two.
+    for (Recognizer first : alternatives) {
+      for (Recognizer second : alternatives) {
+        Recognizer pattern = choice(first, second);
+        for (String input : inputs) {
+          for (int pos = 0; pos <= input.length(); pos++) {
+            int len = input.length();
+            int expected = Math.max(first.match(input, pos, len), second.match(input, pos, len));
+            assertEquals(pattern.match(input, pos, len), expected, "'" + input + "' at " + pos);
+          }
+        }
+      }
+    }
+  }
+
   @Test
   public void testDecimal() {
 
@@ -236,6 +352,71 @@ public class RecognizersTest {
     assertEquals(match(pattern, "a1234"), FAIL);
   }
 
+  @Test
+  public void testGroups() {
+
+    // REGEX  (\d+)(?:\.(\d+))?%
+    Recognizer pattern = sequence(
+        group(0, digits()), zeroOrOne(sequence(characters('.'), group(1, digits()))), characters('%'));
+
+    int[] groups = groups(2);
+    assertEquals(pattern.match("12.50%", 0, 6, groups), 6);
+    assertEquals(groups, new int[] { 0, 2, 3, 5 });
+
+    groups = groups(2);
+    assertEquals(pattern.match("___7%", 3, 5, groups), 5);
+    assertEquals(groups, new int[] { 3, 4, FAIL, FAIL });
+
+    // Without a register file groups are ignored.
+    assertEquals(pattern.match("12.50%", 0, 6), 6);
+
+    // Only the longest alternative records its groups.
+    pattern = choice(sequence(group(0, literal("ab")), literal("c")), group(1, literal("abcd")));
+    groups = groups(2);
+    assertEquals(pattern.match("abcd", 0, 4, groups), 4);
+    assertEquals(groups, new int[] { FAIL, FAIL, 0, 4 });
+
+    // The adaptive choice picks its candidates from its own order.
+    pattern = Recognizers.adaptiveChoice(sequence(group(0, literal("ab")), literal("c")), group(1, literal("abcd")));
+    groups = groups(2);
+    assertEquals(pattern.match("abcd", 0, 4, groups), 4);
+    assertEquals(groups, new int[] { FAIL, FAIL, 0, 4 });
+
+    // A repetition keeps the groups of its last complete iteration.
+    pattern = zeroOrMore(sequence(group(0, digits()), characters(',')));
+    groups = groups(1);
+    assertEquals(pattern.match("1,22,333", 0, 8, groups), 5);
+    assertEquals(groups, new int[] { 2, 4 });
+
+    pattern = sequence(literal("x"), lookAhead(group(0, digits())));
+    groups = groups(1);
+    assertEquals(pattern.match("x42", 0, 3, groups), 1);
+    assertEquals(groups, new int[] { 1, 3 });
+  }
+
+  @Test
+  public void testEntryPoints() {
+    Recognizer pattern = sequence(literal("ab"), oneOrMore(charRange('0', '9')), zeroOrOne(characters('%')));
+
+    // Offsets are relative to the view or buffer, not to the backing store.
+    StringView view = new StringView("__ab12%__", 2, 7);
+    assertEquals(Recognizers.match(pattern, view, 0, view.length()), 5);
+    assertEquals(Recognizers.match(pattern, view, 1, view.length()), FAIL);
+    assertEquals(Recognizers.match(pattern, view.subview(0, 4), 0, 4), 4);
+
+    CharBuffer buf = CharBuffer.wrap("__ab12%__".toCharArray(), 2, 5).slice();
+    assertEquals(Recognizers.match(pattern, buf, 0, buf.length()), 5);
+    assertEquals(Recognizers.match(pattern, CharBuffer.wrap("ab1"), 0, 3), 3);
+
+    assertEquals(Recognizers.match(pattern, "ab12", 0, 3), 3);
+    assertEquals(Recognizers.match(pattern, new StringBuilder("xab12"), 1, 5), 5);
+
+    // Recognizers outside this package see a char array through a wrapper.
+    Recognizer custom = (seq, pos, length) -> pos < length && seq.charAt(pos) == 'x' ? pos + 1 : FAIL;
+    assertEquals(custom.match("_x".toCharArray(), 1, 2), 2);
+    assertEquals(sequence(custom, digit()).match("x1".toCharArray(), 0, 2), 2);
+  }
+
   @Test
   public void testHexdigit() {
 
@@ -255,6 +436,41 @@ public class RecognizersTest {
     assertEquals(match(pattern, "deadc0de"), FAIL);
   }
 
+  @Test
+  public void testLengths() {
+    Recognizer percent = sequence(digits(), zeroOrOne(sequence(characters('.'), digits())), characters('%'));
+    assertEquals(Recognizers.minLength(percent), 2);
+    assertEquals(Recognizers.maxLength(percent), Integer.MAX_VALUE);
+
+    Recognizer unit = choice(literals("px", "em", "rem"), characters('%'), literal("vmax"));
+    assertEquals(Recognizers.minLength(unit), 1);
+    assertEquals(Recognizers.maxLength(unit), 4);
+
+    Recognizer bounded = sequence(cardinality(literal("ab"), 2, 3), lookAhead(any()), group(0, any()));
+    assertEquals(Recognizers.minLength(bounded), 5);
+    assertEquals(Recognizers.maxLength(bounded), 7);
+    assertEquals(Recognizers.minLength(zeroOrMore(literal("ab"))), 0);
+    assertEquals(Recognizers.maxLength(zeroOrMore(lookAhead(any()))), 0);
+
+    // Short positions fail up front, everything else matches as before.
+    assertEquals(match(percent, 0, "1%"), 2);
+    assertEquals(match(percent, 1, "12%"), 3);
+    assertEquals(match(percent, 2, "12%"), FAIL);
+    assertEquals(match(unit, 3, "12px"), FAIL);
+    assertEquals(match(bounded, 0, "abab"), FAIL);
+    assertEquals(match(bounded, 0, "ababx"), 5);
+
+    // A sequence with no children ends at 0, so it disables the check.
+    Recognizer rewinding = sequence(literal("ab"), sequence(), literal("ab"));
+    assertEquals(Recognizers.minLength(rewinding), 0);
+    assertEquals(match(rewinding, 0, "ab"), 2);
+
+    // Recognizers of unknown length are assumed to match anything.
+    Recognizer custom = (seq, pos, length) -> pos + 1;
+    assertEquals(Recognizers.minLength(sequence(custom, literal("abc"))), 0);
+    assertEquals(Recognizers.maxLength(custom), Integer.MAX_VALUE);
+  }
+
   @Test
   public void testLiteral() {
     // REGEX  foobar
@@ -264,6 +480,45 @@ public class RecognizersTest {
     assertEquals(match(pattern, "FOOBAR"), FAIL);
   }
 
+  @Test
+  public void testLiterals() {
+    // REGEX  (?:px|pt|em|ex|rem|vw|vh|vmin|vmax|%)
+    Recognizer pattern = literals("px", "pt", "em", "ex", "rem", "vw", "vh", "vmin", "vmax", "%");
+
+    assertEquals(match(pattern, "px"), 2);
+    assertEquals(match(pattern, "rem"), 3);
+    assertEquals(match(pattern, "vmin"), 4);
+    assertEquals(match(pattern, "vminx"), 4);
+    assertEquals(match(pattern, "%"), 1);
+    assertEquals(match(pattern, 3, "___vmax"), 7);
+
+    assertEquals(match(pattern, ""), FAIL);
+    assertEquals(match(pattern, "v"), FAIL);
+    assertEquals(match(pattern, "vm"), FAIL);
+    assertEquals(match(pattern, "PX"), FAIL);
+
+    // Longest match wins, without backtracking to a shorter prefix.
+    pattern = literals("a", "ab", "abcd");
+    assertEquals(match(pattern, "a"), 1);
+    assertEquals(match(pattern, "abc"), 2);
+    assertEquals(match(pattern, "abcd"), 4);
+    assertEquals(match(pattern, "abcde"), 4);
+
+    // Wide nodes use a binary search over their edges.
+    pattern = literals("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "kk");
+    assertEquals(match(pattern, "a"), 1);
+    assertEquals(match(pattern, "f"), 1);
+    assertEquals(match(pattern, "kk"), 2);
+    assertEquals(match(pattern, "z"), FAIL);
+
+    pattern = literalsIgnoreCase("if", "else", "end", "\u00fcber");
+    assertEquals(match(pattern, "IF"), 2);
+    assertEquals(match(pattern, "Else"), 4);
+    assertEquals(match(pattern, "eNd"), 3);
+    assertEquals(match(pattern, "\u00dcBER"), 4);
+    assertEquals(match(pattern, "en"), FAIL);
+  }
+
   @Test
   public void testLookAhead() {
 
@@ -297,6 +552,40 @@ public class RecognizersTest {
     assertEquals(match(pattern, "1.."), FAIL);
   }
 
+  @Test
+  public void testMatchAll() {
+    Recognizer pattern = sequence(digits(), zeroOrOne(sequence(characters('.'), digits())), characters('%'));
+    CharSequence[] inputs = new CharSequence[5000];
+    for (int i = 0; i < inputs.length; i++) {
+      String value = (i % 3 == 0) ? i + "px" : (i % 3 == 1) ? i + "%" : i + ".5%";
+      inputs[i] = i % 2 == 0 ? value : new StringBuilder(value);
+    }
+
+    int[] ends = new int[inputs.length];
+    Recognizers.matchAll(pattern, inputs, ends);
+    for (int i = 0; i < inputs.length; i++) {
+      assertEquals(ends[i], pattern.match(inputs[i], 0, inputs[i].length()));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      int[] other = new int[inputs.length];
+      Recognizers.matchAll(pattern, new LinkedList<>(Arrays.asList(inputs)), other, pool);
+      assertEquals(other, ends);
+    } finally {
+      pool.shutdown();
+    }
+
+    ends = new int[3];
+    Recognizers.matchAll(pattern, Arrays.asList("1%", "x", "2.5%"), ends);
+    assertEquals(ends, new int[] { 2, FAIL, 4 });
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testMatchAllShort() {
+    Recognizers.matchAll(digits(), new CharSequence[] { "1", "2" }, new int[1]);
+  }
+
   @Test
   public void testNonAscii() {
 
@@ -424,12 +713,24 @@ public class RecognizersTest {
     assertEquals(match(pattern, 3, "___****"), 6);
   }
 
+  private static int[] groups(int count) {
+    int[] groups = new int[count * 2];
+    Arrays.fill(groups, FAIL);
+    return groups;
+  }
+
   private int match(Recognizers.Recognizer pattern, String str) {
     return match(pattern, 0, str);
   }
 
+  /**
+   * Matches through each entry point, checking they agree.
+   */
   private int match(Recognizer pattern, int pos, String str) {
-    return pattern.match(str, pos, str.length());
+    int result = pattern.match(str, pos, str.length());
+    assertEquals(pattern.match(new StringBuilder(str), pos, str.length()), result);
+    assertEquals(pattern.match(str.toCharArray(), pos, str.length()), result);
+    return result;
   }
 
 }
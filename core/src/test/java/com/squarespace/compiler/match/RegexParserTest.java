@@ -0,0 +1,166 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.fromRegex;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class RegexParserTest {
+
+  private static final String[] INPUTS = new String[] {
+    "", "a", "abc", "aac", "xxxx", "x", "xy", "12.5%", "-12", "007.", "foo_bar9 baz", "  \t\nx", "a.c\nd",
+    "abcdab", "ababcd", "]]a-", "name@example.com", "AB", "*.*", "\u00e9\u2028z", "\u0085", "a\rb",
+  };
+
+  @Test
+  public void testEquivalence() {
+    // Possessive quantifiers and prefix-free alternatives behave the same
+    // with and without backtracking, so java.util.regex is the reference.
+    String[] patterns = new String[] {
+      "abc", "a.c", ".*+", "[a-c]++x?+", "[^a-c]*+", "\\d++(?:\\.\\d++)?+%?+", "-?+\\d++", "\\w++", "\\W++",
+      "\\s*+x", "\\S++", "\\D++", "[\\d-]++", "[]a]++", "[a-]++", "[^]a]++", "x{2}", "x{2,}+", "x{1,3}+",
+      "(?:ab|cd)++", "(?:ab)?+c", "\\x41\\u0042", "\\.\\*", "a(?=b)", "[\\w.]++@", "a{0}b", "a|", "(?:)",
+      "[\\]\\-]++", "\\t|\\n|\\r", "[\\s\\d]++", "[^\\s]++", "(?:a|b|c)++d",
+    };
+    for (String regex : patterns) {
+      Matcher matcher = Pattern.compile(regex).matcher("");
+      Recognizer pattern = fromRegex(regex);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          matcher.reset(input).region(pos, input.length());
+          int expected = matcher.lookingAt() ? matcher.end() : FAIL;
+          assertEquals(pattern.match(input, pos, input.length()), expected,
+              "'" + regex + "' at " + pos + " of '" + input + "'");
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBacktracking() {
+    // Greedy patterns whose first match is also their longest.
+    String[] patterns = new String[] {
+      "a*a", ".*x", ".*c", "a.*c", "\\w*\\d", "[a-c]*c", "x?x", "(?:ab)*a", "\\s*\\S*\\.", "(?:a|b)*b",
+    };
+    for (String regex : patterns) {
+      Matcher matcher = Pattern.compile(regex).matcher("");
+      Recognizer pattern = fromRegex(regex);
+      for (String input : INPUTS) {
+        for (int pos = 0; pos <= input.length(); pos++) {
+          matcher.reset(input).region(pos, input.length());
+          int expected = matcher.lookingAt() ? matcher.end() : FAIL;
+          assertEquals(pattern.match(input, pos, input.length()), expected,
+              "'" + regex + "' at " + pos + " of '" + input + "'");
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSemantics() {
+    // Patterns which need to give back characters run as an automaton.
+    assertEquals(fromRegex("a*a").match("aaax1", 0, 5), 3);
+    assertEquals(fromRegex(".*x").match("aaax1", 0, 5), 4);
+    assertTrue(fromRegex("a*a") instanceof PikeVm);
+    assertFalse(fromRegex("a*b") instanceof PikeVm);
+
+    // A choice takes its longest alternative rather than the first.
+    assertEquals(fromRegex("a|ab").match("ab", 0, 2), 2);
+    assertEquals(fromRegex("(?:foo|foobar)+").match("foobarfoo", 0, 9), 9);
+
+    // A lone quantifier suffix '+' is possessive and changes nothing.
+    assertEquals(fromRegex("\\d++").match("123", 0, 3), 3);
+    assertEquals(fromRegex("x{2,3}").match("xxxx", 0, 4), 3);
+  }
+
+  @Test
+  public void testRejected() {
+    assertRejected("(a)", 0);
+    assertRejected("a*?", 2);
+    assertRejected("a{1,2}?", 6);
+    assertRejected("^a", 0);
+    assertRejected("a$", 1);
+    assertRejected("\\1", 0);
+    assertRejected("\\b", 0);
+    assertRejected("\\p{L}", 0);
+    assertRejected("(?i)a", 1);
+    assertRejected("(?!a)", 1);
+    assertRejected("[a&&b]", 2);
+    assertRejected("[[a]]", 1);
+    assertRejected("[a-\\d]", 1);
+    assertRejected("[b-a]", 1);
+    assertRejected("x{2,1}", 6);
+    assertRejected("a{,2}", 1);
+    assertRejected("a{", 1);
+    assertRejected("a{2", 3);
+    assertRejected("a**", 2);
+    assertRejected("*a", 0);
+    assertRejected("{1}", 0);
+    assertRejected("(?:a", 0);
+    assertRejected("a)", 1);
+    assertRejected("[a", 0);
+    assertRejected("[]", 0);
+    assertRejected("\\", 0);
+    assertRejected("\\xg1", 0);
+    assertRejected("\\u12", 0);
+
+    // Unbounded repetitions of patterns which can match empty.
+    assertRejected("(?:a?b?)*", 8);
+    assertRejected("(?:a*|b)*", 8);
+    assertRejected("(?:a|)+", 6);
+    assertRejected("(?:\\s*,?)*x", 9);
+    assertRejected("(?:a?b?){2,}", 8);
+    assertRejected("(?=a)*", 5);
+
+    // Possessive quantifiers where the pattern needs backtracking.
+    assertRejected("a*+a", 2);
+    assertRejected("x++|.*x", 2);
+  }
+
+  @Test
+  public void testEmptyRepetition() {
+    // Shapes the optimizer rewrites to a single repetition are accepted.
+    assertEquals(fromRegex("(?:a?)*").match("aab", 0, 3), 2);
+    assertEquals(fromRegex("(?:a*)+").match("aab", 0, 3), 2);
+    assertEquals(fromRegex("(?:a?){2,}").match("aab", 0, 3), 2);
+    assertEquals(fromRegex("(?:a?b?){0,3}").match("abc", 0, 3), 2);
+  }
+
+  private static void assertRejected(String regex, int index) {
+    try {
+      fromRegex(regex);
+      fail("expected '" + regex + "' to be rejected");
+    } catch (PatternSyntaxException e) {
+      assertEquals(e.getPattern(), regex);
+      assertEquals(e.getIndex(), index, e.getMessage());
+    }
+  }
+
+}
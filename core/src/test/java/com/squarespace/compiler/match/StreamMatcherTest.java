@@ -0,0 +1,140 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.streamMatcher;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.match.Recognizers.zeroOrOne;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+
+
+public class StreamMatcherTest {
+
+  private static final Recognizer NUMBER = sequence(
+      digits(), zeroOrOne(sequence(characters('.'), digits())), zeroOrOne(literal("px")));
+
+  @Test
+  public void testChunks() {
+    String[] inputs = new String[] { "", "1", "12", "12.", "12.5", "12.50px", "12.50p", "12px;", "x1", ".5" };
+    for (String input : inputs) {
+      int expected = NUMBER.match(input, 0, input.length());
+
+      // Split the input at every position.
+      StreamMatcher matcher = streamMatcher(NUMBER);
+      for (int split = 0; split <= input.length(); split++) {
+        matcher.reset();
+        CharBuffer first = CharBuffer.wrap(input, 0, split);
+        CharBuffer second = CharBuffer.wrap(input, split, input.length());
+        if (!matcher.feed(first)) {
+          assertFalse(first.hasRemaining());
+          if (!matcher.feed(second)) {
+            assertFalse(second.hasRemaining());
+            matcher.finish();
+          }
+        }
+        assertTrue(matcher.done());
+        assertEquals(matcher.end(), expected, "'" + input + "' split at " + split);
+      }
+    }
+  }
+
+  @Test
+  public void testStops() {
+    StreamMatcher matcher = streamMatcher(NUMBER);
+
+    // The character which ends the match is left in the chunk.
+    CharBuffer chunk = CharBuffer.wrap("12.x");
+    assertTrue(matcher.feed(chunk));
+    assertEquals(matcher.end(), 2);
+    assertEquals(matcher.consumed(), 3);
+    assertEquals(chunk.position(), 3);
+
+    // Nothing can follow, so the match is decided without more input.
+    matcher = streamMatcher(literal("{.end}"));
+    assertTrue(matcher.feed(CharBuffer.wrap("{.en")) || matcher.feed(CharBuffer.wrap("d}")));
+    assertEquals(matcher.end(), 6);
+
+    matcher.reset();
+    assertFalse(matcher.feed(CharBuffer.wrap("{.e")));
+    assertEquals(matcher.end(), FAIL);
+    assertFalse(matcher.finish());
+    assertEquals(matcher.end(), FAIL);
+  }
+
+  @Test
+  public void testReader() throws IOException {
+    // Tokens spanning the reader's internal buffer are still matched.
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      buf.append("abc").append(i).append(' ');
+    }
+    BufferedReader reader = new BufferedReader(new StringReader(buf.toString()), 16);
+
+    StreamMatcher token = streamMatcher(oneOrMore(word()));
+    StreamMatcher space = streamMatcher(zeroOrMore(whitespace()));
+    for (int i = 0; i < 500; i++) {
+      assertEquals(token.match(reader, 100), 3 + String.valueOf(i).length());
+      assertEquals(space.match(reader, 100), 1);
+    }
+    assertEquals(token.match(reader, 100), FAIL);
+    assertEquals(reader.read(), -1);
+
+    // A failed match leaves the reader where it was.
+    reader = new BufferedReader(new StringReader("12.xyz"));
+    assertEquals(streamMatcher(literal("12.5")).match(reader, 100), FAIL);
+    assertEquals(streamMatcher(NUMBER).match(reader, 100), 2);
+    assertEquals(reader.read(), '.');
+
+    // No more than the limit is read.
+    reader = new BufferedReader(new StringReader("123456789"));
+    assertEquals(streamMatcher(digits()).match(reader, 4), 4);
+    assertEquals(reader.read(), '5');
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNotCompiled() {
+    streamMatcher(sequence(lookAhead(literal("a")), choice(literal("a"), literal("ab"))));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNoMark() throws IOException {
+    streamMatcher(digits()).match(new InputStreamReader(System.in), 10);
+  }
+
+}
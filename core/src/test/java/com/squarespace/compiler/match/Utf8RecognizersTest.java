@@ -0,0 +1,166 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.match;
+
+import static com.squarespace.compiler.match.Recognizers.FAIL;
+import static com.squarespace.compiler.match.Recognizers.charRange;
+import static com.squarespace.compiler.match.Recognizers.charSet;
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.decimal;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.fromRegex;
+import static com.squarespace.compiler.match.Recognizers.group;
+import static com.squarespace.compiler.match.Recognizers.integer;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.literals;
+import static com.squarespace.compiler.match.Recognizers.literalsIgnoreCase;
+import static com.squarespace.compiler.match.Recognizers.lookAhead;
+import static com.squarespace.compiler.match.Recognizers.notAscii;
+import static com.squarespace.compiler.match.Recognizers.notCharRange;
+import static com.squarespace.compiler.match.Recognizers.notWhitespace;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.sequence;
+import static com.squarespace.compiler.match.Recognizers.utf8;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.match.Recognizers.Recognizer;
+import com.squarespace.compiler.match.Recognizers.Utf8Recognizer;
+
+
+public class Utf8RecognizersTest {
+
+  private static final String[] INPUTS = new String[] {
+    "", "a", "abc 123", "  \t x", "\u00a0\u3000 y", "\u00e9t\u00e9", "\u4e2d\u6587 text", "\ud83d\ude00!",
+    "x\ud83d\ude00\ud83d\ude01y", "12.5\u00b5m", "vmax", "VMAX", "vm\u00e1x", "\u2028\u2029", "if x", "ifx",
+  };
+
+  private static final Recognizer[] PATTERNS = new Recognizer[] {
+    oneOrMore(notAscii()),
+    zeroOrMore(whitespace()),
+    oneOrMore(notWhitespace()),
+    sequence(zeroOrMore(whitespace()), oneOrMore(word())),
+    literals("vm", "vmax", "vmin", "\u4e2d\u6587", "\ud83d\ude00"),
+    literalsIgnoreCase("vmax", "ifx"),
+    sequence(decimal(), zeroOrMore(notWhitespace())),
+    choice(literal("if"), sequence(characters('x'), oneOrMore(notAscii())), digits()),
+    sequence(literal("if"), lookAhead(whitespace())),
+    sequence(group(0, oneOrMore(notAscii())), zeroOrMore(characters('!'))),
+    fromRegex("[^\\x00-\\x7f]+|\\s+|\\w+"),
+    fromRegex("(?:\\w|\u00e9)+"),
+    charSet().build(),
+    choice(literal("x"), charSet().build()),
+    sequence(charRange('b', 'a'), literal("c")),
+    zeroOrMore(notCharRange('\u0000', '\uffff')),
+  };
+
+  @Test
+  public void testEquivalence() {
+    for (Recognizer pattern : PATTERNS) {
+      Utf8Recognizer bytes = utf8(pattern);
+      for (String input : INPUTS) {
+        byte[] data = input.getBytes(UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        for (int pos = 0; pos <= input.length(); pos++) {
+          int expected = pattern.match(input, pos, input.length());
+          if (between(input, pos) || (expected != FAIL && between(input, expected))) {
+            // Byte positions can't fall between the surrogates of a pair.
+            continue;
+          }
+          int start = offset(input, pos);
+          int end = expected == FAIL ? FAIL : offset(input, expected);
+          String message = pattern + " at " + pos + " of '" + input + "'";
+          assertEquals(bytes.match(data, start, data.length), end, message);
+          assertEquals(bytes.match(direct, start, data.length), end, message);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBuffers() {
+    Utf8Recognizer pattern = utf8(sequence(literal("a"), oneOrMore(notAscii())));
+    byte[] data = "xxa\u00e9\u4e2d!".getBytes(UTF_8);
+    assertEquals(pattern.match(data, 2, data.length), 8);
+    assertEquals(pattern.match(data, 0, data.length), FAIL);
+
+    // Buffer positions are relative to the start of the buffer, not its array.
+    ByteBuffer slice = ByteBuffer.wrap(data, 2, data.length - 2).slice();
+    assertEquals(pattern.match(slice, 0, slice.capacity()), 6);
+
+    // A character cut off by the length reads as malformed bytes.
+    assertEquals(pattern.match(data, 2, 6), 6);
+    assertEquals(pattern.match(data, 2, 3), FAIL);
+  }
+
+  @Test
+  public void testMalformed() {
+    Utf8Recognizer pattern = utf8(oneOrMore(notAscii()));
+    // Stray continuation byte, overlong slash, encoded surrogate, truncated sequence.
+    byte[][] inputs = new byte[][] {
+      { (byte) 0x80, 'a' },
+      { (byte) 0xc0, (byte) 0xaf, 'a' },
+      { (byte) 0xed, (byte) 0xa0, (byte) 0x80, 'a' },
+      { (byte) 0xe4, (byte) 0xb8, 'a' },
+    };
+    for (byte[] input : inputs) {
+      // Each malformed byte is one replacement character.
+      assertEquals(pattern.match(input, 0, input.length), input.length - 1);
+    }
+    assertEquals(utf8(literal("\ufffd")).match(new byte[] { (byte) 0xff }, 0, 1), 1);
+    assertEquals(utf8(literal("/")).match(new byte[] { (byte) 0xc0, (byte) 0xaf }, 0, 2), FAIL);
+  }
+
+  @Test
+  public void testCharacterLeaves() {
+    // Sets the DFA compiler leaves uncompiled are matched a character at a time.
+    byte[] data = "x\u00e9".getBytes(UTF_8);
+    assertEquals(utf8(charSet().build()).match(data, 0, data.length), FAIL);
+    assertEquals(utf8(choice(literal("x"), charSet().build())).match(data, 0, data.length), 1);
+    assertEquals(utf8(charRange('b', 'a')).match(data, 0, data.length), FAIL);
+    assertEquals(utf8(notCharRange('\u0000', '\uffff')).match(data, 0, data.length), FAIL);
+  }
+
+  @Test
+  public void testRejected() {
+    try {
+      utf8(sequence(integer(), literal("px")));
+      fail("expected the number recognizer to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static boolean between(String input, int index) {
+    return index > 0 && index < input.length() && Character.isLowSurrogate(input.charAt(index));
+  }
+
+  private static int offset(String input, int index) {
+    return input.substring(0, index).getBytes(UTF_8).length;
+  }
+
+}
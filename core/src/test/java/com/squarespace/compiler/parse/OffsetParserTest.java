@@ -0,0 +1,303 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+import static com.squarespace.compiler.match.Recognizers.characters;
+import static com.squarespace.compiler.match.Recognizers.choice;
+import static com.squarespace.compiler.match.Recognizers.digit;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.oneOrMore;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.word;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.parse.Atom.atom;
+import static com.squarespace.compiler.parse.OffsetParser.matcher;
+import static com.squarespace.compiler.parse.OffsetParserTest.TestType.EXPR;
+import static com.squarespace.compiler.parse.OffsetParserTest.TestType.INTEGER;
+import static com.squarespace.compiler.parse.OffsetParserTest.TestType.INTLIST;
+import static com.squarespace.compiler.parse.OffsetParserTest.TestType.OP;
+import static com.squarespace.compiler.parse.OffsetParserTest.TestType.VAR;
+import static com.squarespace.compiler.parse.Struct.struct;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.common.Maybe;
+import com.squarespace.compiler.common.StringView;
+
+
+public class OffsetParserTest {
+
+  @Test
+  public void testMany() {
+    Maybe<Pair<List<CharSequence>, Integer>> r = matcher(digit()).zeroOrMore().parse("123x");
+    assertEquals(strings(r.get()._1), Arrays.asList("1", "2", "3"));
+    assertEquals((int) r.get()._2, 3);
+
+    r = matcher(digit()).oneOrMore().parse("x123", 1);
+    assertEquals(strings(r.get()._1), Arrays.asList("1", "2", "3"));
+    assertEquals((int) r.get()._2, 4);
+
+    assertFalse(matcher(digit()).oneOrMore().parse("").isJust());
+    assertTrue(matcher(digit()).zeroOrMore().parse("").isJust());
+  }
+
+  @Test
+  public void testRepeat() {
+    OffsetParser<Void> digit = OffsetParser.skip(digit());
+    ParseState state = new ParseState();
+    assertTrue(digit.repeat(2, 3).parse(state.reset("12345", 0)));
+    assertEquals(state.position(), 3);
+    assertFalse(digit.repeat(2, 3).parse(state.reset("1x", 0)));
+    assertEquals(state.position(), 0);
+
+    OffsetParser<Void> comma = OffsetParser.skip(characters(','));
+    assertTrue(digit.sepBy(comma).parse(state.reset("1,2,x", 0)));
+    assertEquals(state.<List<Void>>value().size(), 2);
+    assertEquals(state.position(), 3);
+    assertTrue(digit.sepBy(comma).parse(state.reset("x", 0)));
+    assertEquals(state.<List<Void>>value().size(), 0);
+
+    int size = 100000;
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      buf.append(i == 0 ? "" : ",").append(i % 10);
+    }
+    assertTrue(digit.separated(comma).parse(state.reset(buf, 0)));
+    assertEquals(state.<List<Void>>value().size(), size);
+  }
+
+  @Test
+  public void testMemo() {
+    int[] calls = new int[1];
+    OffsetParser<Void> digits = OffsetParser.skip(digits());
+    OffsetParser<Void> counted = state -> {
+      calls[0]++;
+      return digits.parse(state);
+    };
+
+    // Each alternative retries the shared prefix.
+    OffsetParser<Void> plain = alternatives(counted);
+    ParseState state = new ParseState();
+    assertTrue(plain.parse(state.reset("123c", 0)));
+    assertEquals(calls[0], 3);
+
+    calls[0] = 0;
+    OffsetParser<Void> memoized = alternatives(counted.memo());
+    assertTrue(memoized.parse(state.reset("123c", 0)));
+    assertEquals(state.position(), 4);
+    assertEquals(calls[0], 1);
+
+    // Failures are remembered too, and a reset forgets everything.
+    assertFalse(memoized.parse(state.reset("x", 0)));
+    assertFalse(memoized.parse(state));
+    assertEquals(calls[0], 2);
+    assertTrue(memoized.parse(state.reset("45b", 0)));
+    assertEquals(calls[0], 3);
+
+    // Nested alternatives are exponential without memoization.
+    calls[0] = 0;
+    OffsetParser<Void> rule = counted.memo();
+    for (int i = 0; i < 20; i++) {
+      rule = alternatives(rule).memo();
+    }
+    assertFalse(rule.parse(state.reset("1", 0)));
+    assertEquals(calls[0], 1);
+  }
+
+  @Test
+  public void testMemoTable() {
+    MemoTable table = new MemoTable();
+    int size = 10000;
+    for (int i = 0; i < size; i++) {
+      table.put(i % 7, i, i % 3 == 0 ? MemoTable.FAIL : i + 1, i % 3 == 0 ? null : "v" + i);
+    }
+    assertEquals(table.size(), size);
+    for (int i = 0; i < size; i++) {
+      int slot = table.find(i % 7, i);
+      assertEquals(table.end(slot), i % 3 == 0 ? MemoTable.FAIL : i + 1);
+      assertEquals(table.value(slot), i % 3 == 0 ? null : "v" + i);
+      assertEquals(table.find(i % 7 + 1, i), -1);
+    }
+    int slot = table.find(1, 1);
+    table.clear();
+    assertEquals(table.size(), 0);
+    assertEquals(table.find(0, 0), -1);
+    // The values written before are released.
+    assertEquals(table.value(slot), null);
+    table.put(0, 0, 5, "x");
+    assertEquals(table.end(table.find(0, 0)), 5);
+  }
+
+  private static OffsetParser<Void> alternatives(OffsetParser<Void> prefix) {
+    OffsetParser<Void> a = prefix.then(OffsetParser.skip(characters('a')), (x, y) -> null);
+    OffsetParser<Void> b = prefix.then(OffsetParser.skip(characters('b')), (x, y) -> null);
+    OffsetParser<Void> c = prefix.then(OffsetParser.skip(characters('c')), (x, y) -> null);
+    return a.or(b).or(c);
+  }
+
+  @Test
+  public void testSlices() {
+    // String input is viewed in place rather than copied.
+    String input = "abc 123";
+    CharSequence value = matcher(digits()).parse(input, 4).get()._1;
+    assertTrue(value instanceof StringView);
+    assertTrue(((StringView) value).data() == input);
+    assertEquals(value.toString(), "123");
+
+    value = matcher(word()).parse(new StringBuilder(input), 0).get()._1;
+    assertEquals(value.toString(), "a");
+    value = matcher(digits()).parse(CharBuffer.wrap(input), 4).get()._1;
+    assertEquals(value.toString(), "123");
+  }
+
+  @Test
+  public void testTypedParser() {
+    Maybe<Pair<Node<TestType>, Integer>> r = P_VAR.parse(" num");
+    assertEquals(r.get()._1, atom(VAR, "num"));
+    assertEquals((int) r.get()._2, 4);
+
+    String block = " { number != 123, 456, 789 } ";
+    r = P_BLOCK.parse(block);
+    assertEquals(r.get()._1,
+        struct(EXPR,
+            atom(VAR, "number"),
+            atom(OP, "!="),
+            struct(INTLIST,
+                atom(INTEGER, 123),
+                atom(INTEGER, 456),
+                atom(INTEGER, 789))));
+    assertEquals((int) r.get()._2, block.length() - 1);
+
+    assertFalse(P_BLOCK.parse(" { number != } ").isJust());
+    assertFalse(P_BLOCK.parse(block, 2).isJust());
+  }
+
+  @Test
+  public void testToParser() {
+    Maybe<Pair<Node<TestType>, CharSequence>> r = P_EXPR.toParser().parse("n = 1, 2 ; rest");
+    assertEquals(r.get()._1,
+        struct(EXPR,
+            atom(VAR, "n"),
+            atom(OP, "="),
+            struct(INTLIST,
+                atom(INTEGER, 1),
+                atom(INTEGER, 2))));
+    assertEquals(r.get()._2.toString(), " ; rest");
+  }
+
+  @Test
+  public void testState() {
+    OffsetParser<Node<TestType>> assign = OffsetParser.matcher(digits(), (s, start, end) -> atom(INTEGER,
+        Integer.valueOf(s.subSequence(start, end).toString())))
+        .prefix(OffsetParser.skip(zeroOrMore(whitespace())))
+        .then(OffsetParser.skip(characters(';')), (n, o) -> n);
+
+    ParseState state = new ParseState();
+    String input = " 12; 34;56;";
+    state.reset(input, 0);
+    List<Integer> ends = new ArrayList<>();
+    while (assign.parse(state)) {
+      assertTrue(state.ok());
+      ends.add(state.position());
+    }
+    assertEquals(ends, Arrays.asList(4, 8, 11));
+    assertFalse(state.ok());
+    assertEquals(state.position(), 11);
+
+    // A failure part way through rewinds to where the parse started.
+    state.reset(" 78 x", 0);
+    assertFalse(assign.parse(state));
+    assertEquals(state.position(), 0);
+    assertFalse(P_BLOCK.parse(state.reset(" { number != 1 ", 0)));
+    assertEquals(state.position(), 0);
+
+    // Values can be left out, or computed from the span.
+    assertTrue(OffsetParser.skip(digits()).parse(state.reset("x123", 1)));
+    assertEquals(state.position(), 4);
+    assertEquals(state.<Object>value(), null);
+
+    // Repetitions of an empty match stop rather than loop.
+    assertTrue(OffsetParser.skip(zeroOrMore(whitespace())).zeroOrMore().parse(state.reset("abc", 0)));
+    assertEquals(state.<List<Void>>value().size(), 1);
+  }
+
+  @Test
+  public void testFrom() {
+    Parser<CharSequence> digitsParser = Parser.matcher(digits());
+    OffsetParser<List<Node<TestType>>> parser = OffsetParser.from(digitsParser)
+        .map(v -> atom(INTEGER, Integer.valueOf(v.toString())))
+        .separated(OffsetParser.matcher(characters(',')));
+    Maybe<Pair<List<Node<TestType>>, Integer>> r = parser.parse("x1,22,333!", 1);
+    assertEquals(r.get()._1, Arrays.asList(atom(INTEGER, 1), atom(INTEGER, 22), atom(INTEGER, 333)));
+    assertEquals((int) r.get()._2, 9);
+  }
+
+  private static List<String> strings(List<CharSequence> values) {
+    String[] result = new String[values.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = values.get(i).toString();
+    }
+    return Arrays.asList(result);
+  }
+
+  private final OffsetParser<CharSequence> P_SPACE =
+      matcher(zeroOrMore(whitespace()));
+
+  private final OffsetParser<Node<TestType>> P_VAR =
+      matcher(oneOrMore(characters('n', 'u', 'm', 'b', 'e', 'r'))).prefix(P_SPACE)
+          .map(v -> atom(VAR, v.toString()));
+
+  private final OffsetParser<Node<TestType>> P_OP =
+      matcher(choice(literal("="), literal("!="))).prefix(P_SPACE)
+          .map(v -> atom(OP, v.toString()));
+
+  private final OffsetParser<Node<TestType>> P_INTEGER =
+      matcher(digits()).prefix(P_SPACE)
+          .map(v -> atom(INTEGER, Integer.valueOf(v.toString())));
+
+  private final OffsetParser<CharSequence> P_COMMA =
+      matcher(characters(',')).prefix(P_SPACE);
+
+  private final OffsetParser<Node<TestType>> P_INTLIST =
+      P_INTEGER.separated(P_COMMA)
+          .map(i -> struct(INTLIST, i));
+
+  private final OffsetParser<Node<TestType>> P_EXPR =
+      P_VAR.flatMap(v -> P_OP.flatMap(o -> P_INTLIST
+          .map(i -> struct(EXPR, v, o, i))));
+
+  private final OffsetParser<Node<TestType>> P_BLOCK =
+      P_EXPR.prefix(matcher(characters('{')).prefix(P_SPACE)).suffix(matcher(characters('}')).prefix(P_SPACE));
+
+  enum TestType {
+    EXPR,
+    INTEGER,
+    INTLIST,
+    OP,
+    VAR
+  }
+
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright, 2017, Squarespace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squarespace.compiler.parse;
+
+import static com.squarespace.compiler.common.Converters.toInteger;
+import static com.squarespace.compiler.match.Recognizers.digits;
+import static com.squarespace.compiler.match.Recognizers.literal;
+import static com.squarespace.compiler.match.Recognizers.whitespace;
+import static com.squarespace.compiler.match.Recognizers.zeroOrMore;
+import static com.squarespace.compiler.parse.Atom.atom;
+import static com.squarespace.compiler.parse.OperatorTable.Associativity.LEFT;
+import static com.squarespace.compiler.parse.OperatorTable.Associativity.RIGHT;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.ADD;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.DIV;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.EQ;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.MUL;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.NE;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.NEG;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.NUM;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.POW;
+import static com.squarespace.compiler.parse.OperatorTableTest.ArithType.SUB;
+import static com.squarespace.compiler.parse.Parser.matcher;
+import static com.squarespace.compiler.parse.Struct.struct;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.squarespace.compiler.common.Maybe;
+import com.squarespace.compiler.common.StringView;
+
+
+public class OperatorTableTest {
+
+  private static final Parser<Node<ArithType>> EXPR = new OperatorTable<ArithType>()
+      .infix(op("+"), ADD, 10, LEFT)
+      .infix(op("-"), SUB, 10, LEFT)
+      .infix(op("*"), MUL, 20, LEFT)
+      .infix(op("/"), DIV, 20, LEFT)
+      .infix(op("^"), POW, 30, RIGHT)
+      .infix(op("="), EQ, 5, LEFT)
+      .infix(op("=="), EQ, 5, LEFT)
+      .infix(op("!="), NE, 5, LEFT)
+      .prefix(op("-"), NEG, 25)
+      .parser(matcher(digits()).suffix(matcher(zeroOrMore(whitespace())))
+          .map(s -> atom(NUM, Integer.parseInt(s.toString()))));
+
+  private static final OffsetParser<Node<ArithType>> OFFSET_EXPR = new OperatorTable<ArithType>()
+      .infix(offsetOp("+"), ADD, 10, LEFT)
+      .infix(offsetOp("-"), SUB, 10, LEFT)
+      .infix(offsetOp("*"), MUL, 20, LEFT)
+      .infix(offsetOp("/"), DIV, 20, LEFT)
+      .infix(offsetOp("^"), POW, 30, RIGHT)
+      .infix(offsetOp("="), EQ, 5, LEFT)
+      .infix(offsetOp("=="), EQ, 5, LEFT)
+      .infix(offsetOp("!="), NE, 5, LEFT)
+      .prefix(offsetOp("-"), NEG, 25)
+      .offsetParser(OffsetParser.matcher(digits(), (s, start, end) -> num(toInteger(s, start, end)))
+          .suffix(OffsetParser.skip(zeroOrMore(whitespace()))));
+
+  @Test
+  public void testPrecedence() {
+    assertEquals(eval("1 + 2 * 3"), 7);
+    assertEquals(eval("1 * 2 + 3"), 5);
+    assertEquals(eval("2 * 3 ^ 2"), 18);
+    assertEquals(eval("1 + 2 * 3 ^ 2 - 4 / 2"), 17);
+    assertEquals(eval("7"), 7);
+
+    assertEquals(parse("1 + 2 * 3"),
+        struct(ADD, num(1), struct(MUL, num(2), num(3))));
+  }
+
+  @Test
+  public void testAssociativity() {
+    assertEquals(eval("10 - 4 - 3"), 3);
+    assertEquals(eval("100 / 10 / 5"), 2);
+    assertEquals(eval("2 ^ 3 ^ 2"), 512);
+
+    assertEquals(parse("1 - 2 - 3"),
+        struct(SUB, struct(SUB, num(1), num(2)), num(3)));
+    assertEquals(parse("1 ^ 2 ^ 3"),
+        struct(POW, num(1), struct(POW, num(2), num(3))));
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals(eval("-3"), -3);
+    assertEquals(eval("- -3"), 3);
+    assertEquals(eval("-2 * 3"), -6);
+    assertEquals(eval("2 - -3"), 5);
+
+    // Negation binds looser than exponentiation.
+    assertEquals(parse("-2 ^ 2"), struct(NEG, struct(POW, num(2), num(2))));
+    assertEquals(eval("-2 ^ 2"), -4);
+    assertEquals(parse("-2 * 3"), struct(MUL, struct(NEG, num(2)), num(3)));
+  }
+
+  @Test
+  public void testLongestOperator() {
+    assertEquals(parse("1 == 2"), struct(EQ, num(1), num(2)));
+    assertEquals(parse("1 = 2"), struct(EQ, num(1), num(2)));
+    assertEquals(parse("1 != 2 + 3"), struct(NE, num(1), struct(ADD, num(2), num(3))));
+  }
+
+  @Test
+  public void testDangling() {
+    Maybe<Pair<Node<ArithType>, CharSequence>> r = EXPR.parse("1 + 2 * ");
+    assertEquals(r.get()._1, struct(ADD, num(1), num(2)));
+    assertEquals(r.get()._2.toString(), "* ");
+
+    r = EXPR.parse("1 + - x");
+    assertEquals(r.get()._1, num(1));
+    assertEquals(r.get()._2.toString(), "+ - x");
+
+    assertFalse(EXPR.parse("x + 1").isJust());
+    assertFalse(EXPR.parse("- x").isJust());
+  }
+
+  @Test
+  public void testOffsetParser() {
+    String[] inputs = new String[] {
+      "1 + 2 * 3", "1 + 2 * 3 ^ 2 - 4 / 2", "2 ^ 3 ^ 2", "10 - 4 - 3", "- -3", "-2 ^ 2", "-2 * 3",
+      "1 == 2", "1 != 2 + 3", "1 + 2 * ", "1 + - x", "7", "x + 1", "- x", "",
+    };
+    for (String input : inputs) {
+      Maybe<Pair<Node<ArithType>, CharSequence>> expected = EXPR.parse(input);
+      Maybe<Pair<Node<ArithType>, Integer>> actual = OFFSET_EXPR.parse(input);
+      assertEquals(actual.isJust(), expected.isJust(), input);
+      if (expected.isJust()) {
+        assertEquals(actual.get()._1, expected.get()._1, input);
+        assertEquals((int) actual.get()._2, input.length() - expected.get()._2.length(), input);
+      }
+    }
+
+    // Parsing starts at the state's position and a failure leaves it there.
+    ParseState state = new ParseState();
+    assertTrue(OFFSET_EXPR.parse(state.reset("x 1 + 2", 2)));
+    assertEquals(state.value(), struct(ADD, num(1), num(2)));
+    assertFalse(OFFSET_EXPR.parse(state.reset("x - y", 2)));
+    assertEquals(state.position(), 2);
+  }
+
+  @Test
+  public void testLongChain() {
+    int count = 100000;
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        buf.append(i % 2 == 0 ? "+ " : "- ");
+      }
+      buf.append("1 ");
+    }
+    String input = buf.toString();
+    assertLongChain(OFFSET_EXPR.parse(input).get()._1, count);
+
+    // A Parser slices its input at each step, which doesn't copy a view.
+    assertLongChain(EXPR.parse(new StringView(input)).get()._1, count);
+  }
+
+  private static void assertLongChain(Node<ArithType> node, int count) {
+
+    // Walk down the left spine, since a tree this deep would overflow the
+    // stack of a recursive walk.
+    int depth = 0;
+    while (node.type() != NUM) {
+      List<Node<ArithType>> nodes = node.asStruct().nodes();
+      assertEquals(nodes.get(1), num(1));
+      assertEquals(node.type(), (count - 1 - depth) % 2 == 0 ? ADD : SUB);
+      node = nodes.get(0);
+      depth++;
+    }
+    assertEquals(depth, count - 1);
+  }
+
+  private static Node<ArithType> parse(String s) {
+    Maybe<Pair<Node<ArithType>, CharSequence>> r = EXPR.parse(s);
+    assertEquals(r.get()._2.length(), 0);
+    return r.get()._1;
+  }
+
+  private static int eval(String s) {
+    return eval(parse(s));
+  }
+
+  private static int eval(Node<ArithType> node) {
+    if (node.type() == NUM) {
+      return (Integer) node.asAtom().value();
+    }
+    List<Node<ArithType>> nodes = node.asStruct().nodes();
+    int left = eval(nodes.get(0));
+    if (node.type() == NEG) {
+      return -left;
+    }
+    int right = eval(nodes.get(1));
+    switch (node.type()) {
+      case ADD:
+        return left + right;
+      case SUB:
+        return left - right;
+      case MUL:
+        return left * right;
+      case DIV:
+        return left / right;
+      case POW:
+        return (int) Math.pow(left, right);
+      case EQ:
+        return left == right ? 1 : 0;
+      case NE:
+        return left != right ? 1 : 0;
+      default:
+        throw new IllegalArgumentException("unexpected node " + node.type());
+    }
+  }
+
+  private static Node<ArithType> num(int n) {
+    return atom(NUM, n);
+  }
+
+  private static Parser<CharSequence> op(String s) {
+    return matcher(literal(s)).suffix(matcher(zeroOrMore(whitespace())));
+  }
+
+  private static OffsetParser<Void> offsetOp(String s) {
+    return OffsetParser.skip(literal(s)).suffix(OffsetParser.skip(zeroOrMore(whitespace())));
+  }
+
+  enum ArithType {
+    NUM,
+    ADD,
+    SUB,
+    MUL,
+    DIV,
+    POW,
+    NEG,
+    EQ,
+    NE
+  }
+
+}
@@ -47,6 +47,7 @@ import java.util.List;
 import org.testng.annotations.Test;
 
 import com.squarespace.compiler.common.Maybe;
+import com.squarespace.compiler.common.StringView;
 import com.squarespace.compiler.text.DefaultCharClassifier;
 import com.squarespace.compiler.text.CharClassifier;
 
@@ -71,6 +72,42 @@ public class ParserTest {
     assertEquals(r2.get()._1, "123");
   }
 
+  @Test
+  public void testRepeat() {
+    Parser<CharSequence> digit = matcher(digit());
+    assertEquals(digit.repeat(2, 3).parse("12345").get()._1, Arrays.asList("1", "2", "3"));
+    assertEquals(digit.repeat(2, 3).parse("12345").get()._2, "45");
+    assertEquals(digit.repeat(2, 0).parse("12345").get()._1.size(), 5);
+    assertFalse(digit.repeat(2, 3).parse("1x").isJust());
+
+    Parser<CharSequence> comma = matcher(characters(','));
+    assertEquals(digit.sepBy(comma).parse("1,2,3x").get()._1, Arrays.asList("1", "2", "3"));
+    assertEquals(digit.sepBy(comma).parse("1,2,x").get()._2, ",x");
+    assertEquals(digit.sepBy(comma).parse("x").get()._1, Arrays.asList());
+    assertEquals(digit.sepBy(comma).parse("x").get()._2, "x");
+    assertFalse(digit.separated(comma).parse("x").isJust());
+
+    // An empty match ends the repetition instead of repeating forever.
+    assertEquals(matcher(zeroOrMore(digit())).zeroOrMore().parse("ab").get()._1, Arrays.asList(""));
+  }
+
+  @Test
+  public void testLongRepeat() {
+    // Long lists are built in a loop, without deep recursion.
+    int size = 100000;
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      buf.append(i == 0 ? "" : ",").append(i % 10);
+    }
+    CharSequence input = new StringView(buf.toString());
+    Maybe<Pair<List<CharSequence>, CharSequence>> r = matcher(digit()).separated(matcher(characters(','))).parse(input);
+    assertEquals(r.get()._1.size(), size);
+    assertEquals(r.get()._2.length(), 0);
+
+    r = matcher(characters(',')).prefix(matcher(digit())).oneOrMore().parse(input);
+    assertEquals(r.get()._1.size(), size - 1);
+  }
+
   @Test
   public void testCons() {
     assertEquals(cons("a", Arrays.asList("b", "c")), Arrays.asList("a", "b", "c"));
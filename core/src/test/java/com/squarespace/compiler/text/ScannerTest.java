@@ -99,4 +99,19 @@ public class ScannerTest {
     stm1.seek(digits(), stm2);
     assertEquals(stm2.toString(), "123");
   }
+
+  @Test
+  public void testCharArray() {
+    Scanner scanner = new Scanner("abc123".toCharArray());
+    Scanner.Stream stm1 = scanner.stream();
+    Scanner.Stream stm2 = scanner.stream();
+
+    assertTrue(stm1.seek(literal("abc"), stm2));
+    assertEquals(stm2.toString(), "abc");
+    assertFalse(stm1.skip(digits()));
+
+    stm1.jump(stm2);
+    assertTrue(stm1.skip(digits()));
+    assertEquals(stm1.pos, 6);
+  }
 }